@@ -0,0 +1,146 @@
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A small measurement harness in the spirit of JMH: a benchmark body runs for a number of timed
+ * warmup iterations, whose results are thrown away, then for a number of measured iterations.
+ * Every invocation is timed on its own, so besides throughput the result gives latency
+ * percentiles, and the bytes allocated by the calling thread are counted to give an allocation
+ * rate per invocation. State that a body changes is created afresh by a setup step that is not
+ * timed.
+ *
+ * <p>JMH itself cannot be used here: it refuses benchmark classes in the default package, and
+ * the classes under test all live there, out of reach of any named package.
+ */
+public class Bench {
+
+    /** Creates the state for one invocation, outside of the timing */
+    public interface Setup<T> {
+        T create() throws Exception;
+    }
+
+    /** The code being measured */
+    public interface Body<T> {
+        Object run(T state) throws Exception;
+    }
+
+    /** Measurements of one benchmark */
+    public static class Result {
+        public final String name;
+        public final long[] nanos;
+        public final long allocatedBytes;
+
+        private Result(String name, long[] nanos, long allocatedBytes) {
+            this.name = name;
+            this.nanos = nanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        /** @return invocations per second over the measured time */
+        public double throughput() {
+            long total = 0;
+            for (long n : nanos)
+                total += n;
+            return nanos.length * 1e9 / total;
+        }
+
+        /** @return the latency below which {@code p} percent of the invocations finished */
+        public long percentile(double p) {
+            int idx = (int) Math.ceil(p / 100 * nanos.length) - 1;
+            return nanos[Math.max(0, Math.min(nanos.length - 1, idx))];
+        }
+
+        /** @return bytes allocated by the calling thread per invocation, -1 if unknown */
+        public double bytesPerOp() {
+            return allocatedBytes < 0 ? -1 : (double) allocatedBytes / nanos.length;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "%-40s %10.1f ops/s  p50 %9.1f us  p90 %9.1f us  p99 %9.1f us  p99.9 %9.1f us  max %9.1f us  %12.0f B/op",
+                    name, throughput(), percentile(50) / 1e3, percentile(90) / 1e3, percentile(99) / 1e3,
+                    percentile(99.9) / 1e3, nanos[nanos.length - 1] / 1e3, bytesPerOp());
+        }
+    }
+
+    /** the JVM's thread bean if it can count allocated bytes, else null */
+    private static final com.sun.management.ThreadMXBean THREADS =
+            ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean
+                    ? (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean() : null;
+
+    private final int warmupIterations;
+    private final int measuredIterations;
+    private final long iterationNanos;
+
+    /** sink for the results of the bodies, so that the JIT cannot drop the work */
+    private volatile int sink;
+
+    /**
+     * Creates a harness running {@code warmupIterations} and then {@code measuredIterations}
+     * iterations, each of which invokes the body repeatedly for about {@code iterationNanos}
+     */
+    public Bench(int warmupIterations, int measuredIterations, long iterationNanos) {
+        this.warmupIterations = warmupIterations;
+        this.measuredIterations = measuredIterations;
+        this.iterationNanos = iterationNanos;
+    }
+
+    /** Measures {@code body}, which needs no state of its own */
+    public Result run(String name, Body<Void> body) throws Exception {
+        return run(name, () -> null, body);
+    }
+
+    /** Measures {@code body}, on a state created by {@code setup} for every invocation */
+    public <T> Result run(String name, Setup<T> setup, Body<T> body) throws Exception {
+        for (int i = 0; i < warmupIterations; i++)
+            iteration(setup, body, new LongList(), null);
+        LongList nanos = new LongList();
+        long[] allocated = {0};
+        for (int i = 0; i < measuredIterations; i++)
+            iteration(setup, body, nanos, allocated);
+        long[] sorted = nanos.toArray();
+        Arrays.sort(sorted);
+        return new Result(name, sorted, allocated[0]);
+    }
+
+    private <T> void iteration(Setup<T> setup, Body<T> body, LongList nanos, long[] allocated) throws Exception {
+        long end = System.nanoTime() + iterationNanos;
+        long tid = Thread.currentThread().getId();
+        do {
+            T state = setup.create();
+            long allocatedBefore = allocatedBytes(tid);
+            long start = System.nanoTime();
+            Object result = body.run(state);
+            long elapsed = System.nanoTime() - start;
+            long allocatedAfter = allocatedBytes(tid);
+            nanos.add(elapsed);
+            if (allocated != null)
+                allocated[0] = allocatedBefore < 0 || allocated[0] < 0 ? -1 : allocated[0] + allocatedAfter - allocatedBefore;
+            sink += result == null ? 0 : result.hashCode();
+        } while (System.nanoTime() < end);
+    }
+
+    /** @return the bytes allocated so far by thread {@code tid}, or -1 if the JVM does not say */
+    private static long allocatedBytes(long tid) {
+        return THREADS == null ? -1 : THREADS.getThreadAllocatedBytes(tid);
+    }
+
+    /** a growable list of longs, so that recording a timing allocates next to nothing */
+    private static class LongList {
+        private long[] values = new long[1024];
+        private int size;
+
+        private void add(long value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        private long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Benchmarks of the validation and selection hot paths on a synthetic epoch made by
+ * {@link EpochGenerator}. Arguments are {@code key=value} pairs:
+ *
+ * <pre>
+ * txCount, fanIn, fanOut, conflictRatio, chainDepth,
+ * invalidSignatureRatio, keyCount, seed                               shape of the epoch
+ * file                                                                 workload file, generated once and replayed after
+ * warmup, iterations                                                   iterations to run (5, 10)
+ * time                                                                 milliseconds per iteration (1000)
+ * filter                                                               only run benchmarks whose name contains it
+ * </pre>
+ *
+ * Each benchmark prints its throughput, latency percentiles and bytes allocated per invocation.
+ */
+public class ScroogeBenchmarks {
+
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0)
+                throw new IllegalArgumentException("expected key=value, got " + arg);
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        EpochGenerator.Settings settings = new EpochGenerator.Settings()
+                .txCount(Integer.parseInt(options.getOrDefault("txCount", "1000")))
+                .fanIn(Integer.parseInt(options.getOrDefault("fanIn", "2")))
+                .fanOut(Integer.parseInt(options.getOrDefault("fanOut", "2")))
+                .conflictRatio(Double.parseDouble(options.getOrDefault("conflictRatio", "0.1")))
+                .chainDepth(Integer.parseInt(options.getOrDefault("chainDepth", "3")))
+                .invalidSignatureRatio(Double.parseDouble(options.getOrDefault("invalidSignatureRatio", "0")))
+                .keyCount(Integer.parseInt(options.getOrDefault("keyCount", "8")))
+                .seed(Long.parseLong(options.getOrDefault("seed", "1")));
+        Bench bench = new Bench(Integer.parseInt(options.getOrDefault("warmup", "5")),
+                Integer.parseInt(options.getOrDefault("iterations", "10")),
+                Long.parseLong(options.getOrDefault("time", "1000")) * 1_000_000L);
+        String filter = options.getOrDefault("filter", "");
+
+        Workload workload = options.containsKey("file")
+                ? Workload.cached(Paths.get(options.get("file")), settings)
+                : new EpochGenerator(settings).workload();
+        UTXOPool genesis = workload.genesis();
+        Transaction[] epoch = workload.epoch();
+        System.out.printf("epoch of %d transactions over %d genesis outputs%n", epoch.length, genesis.size());
+
+        for (Benchmark benchmark : benchmarks(genesis, epoch)) {
+            if (benchmark.name.contains(filter))
+                System.out.println(benchmark.run(bench));
+        }
+    }
+
+    /** a named benchmark, bound to the epoch */
+    private static abstract class Benchmark {
+        final String name;
+
+        Benchmark(String name) {
+            this.name = name;
+        }
+
+        abstract Bench.Result run(Bench bench) throws Exception;
+    }
+
+    private static ArrayList<Benchmark> benchmarks(UTXOPool genesis, Transaction[] epoch) {
+        ArrayList<Benchmark> benchmarks = new ArrayList<>();
+        ArrayList<UTXO> genesisUTXOs = genesis.getAllUTXO();
+
+        //validation with the signatures cached already, as after a first look at the epoch
+        benchmarks.add(new Benchmark("TxHandler.isValidTx (warm cache)") {
+            Bench.Result run(Bench bench) throws Exception {
+                TxHandler handler = new TxHandler(genesis);
+                int[] next = {0};
+                return bench.run(name, state -> handler.isValidTx(epoch[next[0]++ % epoch.length]));
+            }
+        });
+        benchmarks.add(new Benchmark("TxHandler.isValidTx (cold cache)") {
+            Bench.Result run(Bench bench) throws Exception {
+                int[] next = {0};
+                return bench.run(name,
+                        () -> new TxHandler(genesis, ForkJoinPool.commonPool(), new SignatureCache(1 << 16)),
+                        handler -> handler.isValidTx(epoch[next[0]++ % epoch.length]));
+            }
+        });
+        benchmarks.add(new Benchmark("TxHandler.handleTxs") {
+            Bench.Result run(Bench bench) throws Exception {
+                return bench.run(name,
+                        () -> new TxHandler(genesis, ForkJoinPool.commonPool(), new SignatureCache(1 << 16)),
+                        handler -> handler.handleTxs(epoch).length);
+            }
+        });
+        benchmarks.add(new Benchmark("MaxFeeTxHandler.handleTxs") {
+            Bench.Result run(Bench bench) throws Exception {
+                return bench.run(name,
+                        () -> new MaxFeeTxHandler(genesis, new SignatureCache(1 << 16)),
+                        handler -> handler.handleTxs(epoch).length);
+            }
+        });
+
+        //pool operations, on each kind of store
+        String[] stores = {"overlay", "hash", "offHeap", "concurrent", "snapshot"};
+        for (String store : stores) {
+            benchmarks.add(new Benchmark("UTXOPool.getTxOutput [" + store + "]") {
+                Bench.Result run(Bench bench) throws Exception {
+                    UTXOPool pool = fill(store, genesisUTXOs, genesis);
+                    int[] next = {0};
+                    return bench.run(name, state -> pool.getTxOutput(genesisUTXOs.get(next[0]++ % genesisUTXOs.size())));
+                }
+            });
+            benchmarks.add(new Benchmark("UTXOPool copy+remove+add [" + store + "]") {
+                Bench.Result run(Bench bench) throws Exception {
+                    UTXOPool pool = fill(store, genesisUTXOs, genesis);
+                    return bench.run(name, state -> {
+                        UTXOPool copy = new UTXOPool(pool);
+                        for (int i = 0; i < genesisUTXOs.size(); i += 16) {
+                            UTXO utxo = genesisUTXOs.get(i);
+                            Transaction.Output out = copy.getTxOutput(utxo);
+                            copy.removeUTXO(utxo);
+                            copy.addUTXO(new UTXO(utxo.getTxHash(), utxo.getIndex() + 1_000_000), out);
+                        }
+                        return copy.size();
+                    });
+                }
+            });
+        }
+
+        //serialization
+        benchmarks.add(new Benchmark("Transaction.getRawTx") {
+            Bench.Result run(Bench bench) throws Exception {
+                int[] next = {0};
+                return bench.run(name, state -> epoch[next[0]++ % epoch.length].getRawTx());
+            }
+        });
+        benchmarks.add(new Benchmark("Transaction.writeRawTx") {
+            Bench.Result run(Bench bench) throws Exception {
+                ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+                int[] next = {0};
+                return bench.run(name, state -> {
+                    buf.clear();
+                    epoch[next[0]++ % epoch.length].writeRawTx(buf);
+                    return buf.position();
+                });
+            }
+        });
+        benchmarks.add(new Benchmark("Transaction.getRawDataToSign") {
+            Bench.Result run(Bench bench) throws Exception {
+                int[] next = {0};
+                return bench.run(name, state -> epoch[next[0]++ % epoch.length].getRawDataToSign(0));
+            }
+        });
+        return benchmarks;
+    }
+
+    private static UTXOPool fill(String store, ArrayList<UTXO> utxos, UTXOPool source) throws IOException {
+        UTXOPool pool;
+        switch (store) {
+            case "snapshot":
+                Path file = Files.createTempFile("utxos", ".snapshot");
+                file.toFile().deleteOnExit();
+                source.writeSnapshot(file, 0);
+                return UTXOPool.fromSnapshot(file);
+            case "hash":
+                pool = new UTXOPool(new HashUTXOStore());
+                break;
+            case "offHeap":
+                pool = UTXOPool.offHeap(utxos.size());
+                break;
+            case "concurrent":
+                pool = UTXOPool.concurrent();
+                break;
+            default:
+                pool = new UTXOPool();
+        }
+        for (UTXO utxo : utxos)
+            pool.addUTXO(utxo, source.getTxOutput(utxo));
+        return pool;
+    }
+}
@@ -0,0 +1,89 @@
+
+/**
+ * Amounts of coins as fixed-point longs, counted in units of 1/{@value #UNITS_PER_COIN} of a coin.
+ * Sums of units are exact and do not depend on the order they are added in, so fee checks
+ * compare exactly and fees can be summed in parallel with the same result every time. Overflow
+ * is detected rather than wrapped around.
+ */
+public final class Amount {
+
+    /** number of units in one coin */
+    public static final long UNITS_PER_COIN = 100_000_000L;
+
+    /** returned by {@link #fee(Transaction, UTXOPool)} when a sum overflows */
+    public static final long OVERFLOW = Long.MIN_VALUE;
+
+    private Amount() {
+    }
+
+    /**
+     * @return {@code coins} in units, rounded to the nearest unit
+     * @throws IllegalArgumentException if {@code coins} is negative, not a number or too large
+     *         for a long; a negative amount is rejected before it is rounded, so none comes out as
+     *         zero
+     */
+    public static long ofCoins(double coins) {
+        if (Double.isNaN(coins) || coins < 0 || coins > (double) (Long.MAX_VALUE / UNITS_PER_COIN))
+            throw new IllegalArgumentException("not a representable amount: " + coins);
+        return Math.round(coins * UNITS_PER_COIN);
+    }
+
+    /** @return {@code units} in coins, which may be rounded for very large amounts */
+    public static double toCoins(long units) {
+        return (double) units / UNITS_PER_COIN;
+    }
+
+    /**
+     * @return {@code a + b}, or {@link Long#MAX_VALUE} or {@link Long#MIN_VALUE} if the sum does
+     *         not fit in a long; for totals of fees that only need to compare correctly
+     */
+    public static long addSaturated(long a, long b) {
+        long sum = a + b;
+        //overflow only if both have the same sign and the sum has the other one
+        if (((a ^ sum) & (b ^ sum)) < 0)
+            return a < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+        return sum;
+    }
+
+    /**
+     * @return the sum of the values claimed by the inputs of {@code tx}, all of which must be in
+     *         {@code ledger}, minus the sum of its output values, or {@link #OVERFLOW} if either
+     *         sum does not fit in a long
+     */
+    public static long fee(Transaction tx, UTXOPool ledger) {
+        return fee(tx, tx.getInputs().stream().map(ledger::getTxOutput).toArray(Transaction.Output[]::new));
+    }
+
+    /**
+     * Same as {@link #fee(Transaction, UTXOPool)}, with {@code spent} holding the output claimed
+     * by each input of {@code tx}, in order
+     */
+    public static long fee(Transaction tx, Transaction.Output[] spent) {
+        try {
+            long inputSum = 0;
+            for (Transaction.Output out : spent)
+                inputSum = Math.addExact(inputSum, out.value);
+            long outputSum = 0;
+            for (Transaction.Output op : tx.getOutputs())
+                outputSum = Math.addExact(outputSum, op.value);
+            return Math.subtractExact(inputSum, outputSum);
+        } catch (ArithmeticException e) {
+            return OVERFLOW;
+        }
+    }
+
+    /** Same as {@link #fee(Transaction, Transaction.Output[])} for the transaction {@code view} is on */
+    public static long fee(TransactionView view, Transaction.Output[] spent) {
+        try {
+            long inputSum = 0;
+            for (Transaction.Output out : spent)
+                inputSum = Math.addExact(inputSum, out.value);
+            long outputSum = 0;
+            for (int j = 0; j < view.numOutputs(); j++)
+                outputSum = Math.addExact(outputSum, view.outputValue(j));
+            return Math.subtractExact(inputSum, outputSum);
+        } catch (ArithmeticException e) {
+            return OVERFLOW;
+        }
+    }
+}
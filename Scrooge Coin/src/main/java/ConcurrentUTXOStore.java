@@ -0,0 +1,132 @@
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link UTXOStore} that many validator threads can use at once. Reads go straight to a
+ * {@link ConcurrentHashMap} without locking. Every change takes the lock of the stripe its UTXO
+ * hashes to, and {@link #trySpend(Collection)} takes the locks of all stripes touched by the
+ * transaction, always in ascending order so that two spends can never deadlock. Transactions
+ * with disjoint stripes commit in parallel, and of two transactions claiming the same UTXO only
+ * one can succeed.
+ */
+public class ConcurrentUTXOStore implements UTXOStore {
+
+    private static final int STRIPES = 64;
+
+    private final ConcurrentHashMap<UTXO, Transaction.Output> H;
+    private final ReentrantLock[] locks;
+
+    /** Creates a new empty store */
+    public ConcurrentUTXOStore() {
+        this(new ConcurrentHashMap<UTXO, Transaction.Output>());
+    }
+
+    private ConcurrentUTXOStore(ConcurrentHashMap<UTXO, Transaction.Output> H) {
+        this.H = H;
+        this.locks = new ReentrantLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++)
+            locks[i] = new ReentrantLock();
+    }
+
+    private static int stripeOf(UTXO utxo) {
+        int h = utxo.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        ReentrantLock lock = locks[stripeOf(utxo)];
+        lock.lock();
+        try {
+            H.put(utxo, txOut);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void remove(UTXO utxo) {
+        ReentrantLock lock = locks[stripeOf(utxo)];
+        lock.lock();
+        try {
+            H.remove(utxo);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        return H.get(utxo);
+    }
+
+    public boolean contains(UTXO utxo) {
+        return H.containsKey(utxo);
+    }
+
+    public ArrayList<UTXO> keys() {
+        return new ArrayList<UTXO>(H.keySet());
+    }
+
+    public long size() {
+        return H.size();
+    }
+
+    /** Copies the store while holding every stripe, so the copy is a consistent snapshot */
+    public UTXOStore copy() {
+        int[] all = new int[STRIPES];
+        for (int i = 0; i < STRIPES; i++)
+            all[i] = i;
+        lockAll(all);
+        try {
+            return new ConcurrentUTXOStore(new ConcurrentHashMap<UTXO, Transaction.Output>(H));
+        } finally {
+            unlockAll(all);
+        }
+    }
+
+    @Override
+    public boolean trySpend(Collection<UTXO> utxos) {
+        HashSet<UTXO> distinct = new HashSet<>();
+        int[] stripes = new int[utxos.size()];
+        int n = 0;
+        for (UTXO utxo : utxos) {
+            if (!distinct.add(utxo))
+                return false;
+            stripes[n++] = stripeOf(utxo);
+        }
+        Arrays.sort(stripes);
+        //drop repeated stripes, a lock is only taken once
+        int unique = 0;
+        for (int i = 0; i < n; i++) {
+            if (unique == 0 || stripes[unique - 1] != stripes[i])
+                stripes[unique++] = stripes[i];
+        }
+        stripes = Arrays.copyOf(stripes, unique);
+
+        lockAll(stripes);
+        try {
+            for (UTXO utxo : utxos) {
+                if (!H.containsKey(utxo))
+                    return false;
+            }
+            for (UTXO utxo : utxos)
+                H.remove(utxo);
+            return true;
+        } finally {
+            unlockAll(stripes);
+        }
+    }
+
+    private void lockAll(int[] stripes) {
+        for (int stripe : stripes)
+            locks[stripe].lock();
+    }
+
+    private void unlockAll(int[] stripes) {
+        for (int i = stripes.length - 1; i >= 0; i--)
+            locks[stripes[i]].unlock();
+    }
+}
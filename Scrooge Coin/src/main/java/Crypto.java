@@ -1,11 +1,65 @@
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.util.List;
 
 public class Crypto {
 
+    /**
+     * Signature and digest engines, one of each per thread. Looking them up through the provider
+     * framework costs more than hashing a typical transaction, and an engine can be reused for
+     * any number of operations once it has been created.
+     */
+    private static final ThreadLocal<Signature> SIGNATURE = ThreadLocal.withInitial(() -> {
+        try {
+            return Signature.getInstance("SHA256withRSA");
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return null;
+        }
+    });
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return null;
+        }
+    });
+
+    /**
+     * A single signature check: either a plain message, or the data signed by one input of a
+     * transaction, which is then streamed from the transaction as in
+     * {@link Crypto#verifySignature(PublicKey, Transaction, int, byte[])}.
+     */
+    public static class VerifyRequest {
+        private final PublicKey pubKey;
+        private final byte[] message;
+        private final Transaction tx;
+        private final int index;
+        private final byte[] signature;
+
+        public VerifyRequest(PublicKey pubKey, byte[] message, byte[] signature) {
+            this.pubKey = pubKey;
+            this.message = message;
+            this.tx = null;
+            this.index = -1;
+            this.signature = signature;
+        }
+
+        public VerifyRequest(PublicKey pubKey, Transaction tx, int index, byte[] signature) {
+            this.pubKey = pubKey;
+            this.message = null;
+            this.tx = tx;
+            this.index = index;
+            this.signature = signature;
+        }
+    }
+
     /**
      * @return true is {@code signature} is a valid digital signature of {@code message} under the
      *         key {@code pubKey}. Internally, this uses RSA signature, but the student does not
@@ -13,24 +67,162 @@ public class Crypto {
      *         algorithm
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
+        return verify(SIGNATURE.get(), new VerifyRequest(pubKey, message, signature));
+    }
+
+    /**
+     * Same as {@code verifySignature(pubKey, tx.getRawDataToSign(index), signature)}, but the
+     * signed data is fed to the signature engine piece by piece, reusing the encoding of the
+     * outputs that {@code tx} keeps for all of its inputs instead of building the whole message.
+     */
+    public static boolean verifySignature(PublicKey pubKey, Transaction tx, int index, byte[] signature) {
+        return verify(SIGNATURE.get(), new VerifyRequest(pubKey, tx, index, signature));
+    }
+
+    /**
+     * Runs all of {@code requests} on the engine of the calling thread.
+     *
+     * @return for each request, in order, whether its signature is valid
+     */
+    public static boolean[] verifyAll(List<VerifyRequest> requests) {
+        Signature sig = SIGNATURE.get();
+        boolean[] valid = new boolean[requests.size()];
+        int i = 0;
+        for (VerifyRequest request : requests)
+            valid[i++] = verify(sig, request);
+        return valid;
+    }
+
+    /** @return the SHA-256 digest of {@code data} */
+    public static byte[] hash(byte[] data) {
+        MessageDigest md = DIGEST.get();
+        md.reset();
+        return md.digest(data);
+    }
+
+    /**
+     * @return the SHA-256 digest of the raw form of the transaction {@code view} is on, i.e. what
+     *         {@code finalize()} would set as its hash, computed from the record in place
+     */
+    public static byte[] hash(TransactionView view) {
+        MessageDigest md = DIGEST.get();
+        md.reset();
+        for (int i = 0; i < view.numInputs(); i++) {
+            md.update(view.range(view.prevTxHashOffset(i), view.prevTxHashLength(i) + Integer.BYTES));
+            md.update(view.range(view.signatureOffset(i), view.signatureLength(i)));
+        }
+        md.update(view.range(view.outputsSectionOffset(), view.outputsSectionLength()));
+        return md.digest();
+    }
+
+    /**
+     * Same as {@link #verifySignature(PublicKey, Transaction, int, byte[])} for the signature of
+     * input {@code index} of the transaction {@code view} is on, with the signed data read from
+     * the record in place
+     */
+    public static boolean verifySignature(PublicKey pubKey, TransactionView view, int index) {
+        Signature sig = SIGNATURE.get();
         try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
+            sig.initVerify(pubKey);
+            //previous hash and output index lie next to each other in the record
+            sig.update(view.range(view.prevTxHashOffset(index), view.prevTxHashLength(index) + Integer.BYTES));
+            sig.update(view.range(view.outputsSectionOffset(), view.outputsSectionLength()));
+            byte[] signature = view.getSignature(index);
+            return signature != null && sig.verify(signature);
+        } catch (InvalidKeyException | SignatureException e) {
             e.printStackTrace();
         }
+        return false;
+    }
+
+    /**
+     * @return a SHA-256 digest identifying {@code request}, covering its public key, the data it
+     *         checks and its signature
+     */
+    static byte[] digest(VerifyRequest request) {
+        MessageDigest md = DIGEST.get();
+        md.reset();
+        byte[] key = request.pubKey == null ? new byte[0] : request.pubKey.getEncoded();
+        updateInt(md, key.length);
+        md.update(key);
+        if (request.tx == null) {
+            updateInt(md, request.message.length);
+            md.update(request.message);
+        } else {
+            byte[] section = request.tx.outputsSection();
+            Transaction.Input in = request.tx.getInput(request.index);
+            int prefix = in.prevTxHash == null ? 0 : in.prevTxHash.length;
+            updateInt(md, prefix + Integer.BYTES + section.length);
+            if (in.prevTxHash != null)
+                md.update(in.prevTxHash);
+            updateInt(md, in.outputIndex);
+            md.update(section);
+        }
+        if (request.signature == null) {
+            updateInt(md, -1);
+        } else {
+            updateInt(md, request.signature.length);
+            md.update(request.signature);
+        }
+        return md.digest();
+    }
+
+    /**
+     * @return the same digest as {@link #digest(VerifyRequest)} gives the signature of input
+     *         {@code index} of the transaction the record of {@code view} decodes to, checked
+     *         under {@code pubKey}
+     */
+    static byte[] digest(PublicKey pubKey, TransactionView view, int index) {
+        MessageDigest md = DIGEST.get();
+        md.reset();
+        byte[] key = pubKey == null ? new byte[0] : pubKey.getEncoded();
+        updateInt(md, key.length);
+        md.update(key);
+        //previous hash and output index lie next to each other in the record
+        int prefix = view.prevTxHashLength(index) + Integer.BYTES;
+        updateInt(md, prefix + view.outputsSectionLength());
+        md.update(view.range(view.prevTxHashOffset(index), prefix));
+        md.update(view.range(view.outputsSectionOffset(), view.outputsSectionLength()));
+        //an empty signature decodes to none
+        int length = view.signatureLength(index);
+        updateInt(md, length == 0 ? -1 : length);
+        md.update(view.range(view.signatureOffset(index), length));
+        return md.digest();
+    }
+
+    private static void updateInt(MessageDigest md, int value) {
+        md.update((byte) (value >>> 24));
+        md.update((byte) (value >>> 16));
+        md.update((byte) (value >>> 8));
+        md.update((byte) value);
+    }
+
+    private static boolean verify(Signature sig, VerifyRequest request) {
         try {
-            sig.initVerify(pubKey);
+            //initVerify also resets anything left over from an earlier failed check
+            sig.initVerify(request.pubKey);
         } catch (InvalidKeyException e) {
             e.printStackTrace();
+            return false;
         }
         try {
-            sig.update(message);
-            return sig.verify(signature);
+            if (request.tx == null) {
+                sig.update(request.message);
+            } else {
+                Transaction.Input in = request.tx.getInput(request.index);
+                if (in.prevTxHash != null)
+                    sig.update(in.prevTxHash);
+                int outputIndex = in.outputIndex;
+                sig.update((byte) (outputIndex >>> 24));
+                sig.update((byte) (outputIndex >>> 16));
+                sig.update((byte) (outputIndex >>> 8));
+                sig.update((byte) outputIndex);
+                sig.update(request.tx.outputsSection());
+            }
+            return sig.verify(request.signature);
         } catch (SignatureException e) {
             e.printStackTrace();
         }
         return false;
-
     }
 }
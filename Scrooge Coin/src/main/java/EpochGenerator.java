@@ -0,0 +1,194 @@
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Generates a synthetic epoch: a genesis UTXOPool and an array of signed transactions spending
+ * from it, shaped by a few {@link Settings}. Transactions are laid out in {@code chainDepth}
+ * levels, each spending outputs of the level before it (the first level spends genesis outputs),
+ * and the epoch is shuffled so that children may come before their parents. A share of the
+ * transactions given by {@code conflictRatio} claims an output already claimed earlier in the
+ * epoch, and another share given by {@code invalidSignatureRatio} carries a corrupted signature.
+ * The same settings always produce the same epoch.
+ *
+ * <p>Signing dominates the cost of generating an epoch, so large ones are best generated once and
+ * replayed from a file, see {@link Workload#cached(java.nio.file.Path, Settings)}.
+ */
+public class EpochGenerator {
+
+    /** value of every genesis output, in units */
+    private static final long GENESIS_VALUE = 100 * Amount.UNITS_PER_COIN;
+    private static final int OUTPUTS_PER_GENESIS_TX = 64;
+
+    /** Shape of a generated epoch */
+    public static class Settings {
+        public int txCount = 1000;
+        /** inputs per transaction */
+        public int fanIn = 2;
+        /** outputs per transaction */
+        public int fanOut = 2;
+        /** share of transactions double spending an output claimed earlier in the epoch */
+        public double conflictRatio = 0;
+        /** levels of transactions spending outputs of the level before */
+        public int chainDepth = 1;
+        /** share of transactions with a signature that does not verify */
+        public double invalidSignatureRatio = 0;
+        /** number of distinct owners */
+        public int keyCount = 8;
+        public long seed = 1;
+
+        public Settings txCount(int txCount) { this.txCount = txCount; return this; }
+        public Settings fanIn(int fanIn) { this.fanIn = fanIn; return this; }
+        public Settings fanOut(int fanOut) { this.fanOut = fanOut; return this; }
+        public Settings conflictRatio(double conflictRatio) { this.conflictRatio = conflictRatio; return this; }
+        public Settings chainDepth(int chainDepth) { this.chainDepth = chainDepth; return this; }
+        public Settings invalidSignatureRatio(double invalidSignatureRatio) { this.invalidSignatureRatio = invalidSignatureRatio; return this; }
+        public Settings keyCount(int keyCount) { this.keyCount = keyCount; return this; }
+        public Settings seed(long seed) { this.seed = seed; return this; }
+    }
+
+    /** an output that can be spent, with the key of its owner */
+    private static class Coin {
+        private final Transaction tx;
+        private final int index;
+        private final int owner;
+
+        private Coin(Transaction tx, int index, int owner) {
+            this.tx = tx;
+            this.index = index;
+            this.owner = owner;
+        }
+
+        private long value() {
+            return tx.getOutput(index).value;
+        }
+    }
+
+    private final Settings settings;
+    private final Random random;
+    private final KeyPair[] keys;
+    private final Signature signature;
+    private final UTXOPool genesis = new UTXOPool();
+    private final Transaction[] epoch;
+
+    /**
+     * Generates the epoch described by {@code settings}
+     *
+     * @throws GeneralSecurityException if no RSA key generator or SHA256withRSA signer is available
+     */
+    public EpochGenerator(Settings settings) throws GeneralSecurityException {
+        this.settings = settings;
+        this.random = new Random(settings.seed);
+        SecureRandom keyRandom = SecureRandom.getInstance("SHA1PRNG");
+        keyRandom.setSeed(settings.seed);
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(1024, keyRandom);
+        this.keys = new KeyPair[settings.keyCount];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = keyGen.generateKeyPair();
+        this.signature = Signature.getInstance("SHA256withRSA");
+        this.epoch = generate();
+    }
+
+    /** @return a copy of the UTXOPool the epoch spends from */
+    public UTXOPool genesis() {
+        return new UTXOPool(genesis);
+    }
+
+    /** @return a copy of the generated epoch */
+    public Transaction[] epoch() {
+        return epoch.clone();
+    }
+
+    /** @return the genesis pool and epoch, ready to be written to a file */
+    public Workload workload() {
+        return new Workload(settings, genesis(), epoch());
+    }
+
+    private Transaction[] generate() throws GeneralSecurityException {
+        int depth = Math.max(1, settings.chainDepth);
+        int perLevel = (settings.txCount + depth - 1) / depth;
+        ArrayList<Coin> available = genesisCoins(perLevel * settings.fanIn + settings.fanIn);
+        ArrayList<Transaction> txs = new ArrayList<>();
+        for (int level = 0; level < depth && txs.size() < settings.txCount; level++) {
+            ArrayList<Coin> created = new ArrayList<>();
+            ArrayList<Coin> claimed = new ArrayList<>();
+            Collections.shuffle(available, random);
+            for (int i = 0; i < perLevel && txs.size() < settings.txCount; i++) {
+                if (available.size() < settings.fanIn)
+                    available.addAll(genesisCoins(settings.fanIn * 16));
+                ArrayList<Coin> inputs = new ArrayList<>();
+                boolean conflict = !claimed.isEmpty() && random.nextDouble() < settings.conflictRatio;
+                if (conflict)
+                    inputs.add(claimed.get(random.nextInt(claimed.size())));
+                while (inputs.size() < settings.fanIn)
+                    inputs.add(available.remove(available.size() - 1));
+                claimed.addAll(inputs);
+                int[] owners = new int[settings.fanOut];
+                for (int idx = 0; idx < owners.length; idx++)
+                    owners[idx] = random.nextInt(keys.length);
+                Transaction tx = transaction(inputs, owners);
+                txs.add(tx);
+                for (int idx = 0; idx < tx.numOutputs(); idx++)
+                    created.add(new Coin(tx, idx, owners[idx]));
+            }
+            //the next level spends what this one created, topped up from genesis if need be
+            available = created;
+        }
+        Collections.shuffle(txs, random);
+        return txs.toArray(new Transaction[txs.size()]);
+    }
+
+    /** Adds {@code count} new outputs to the genesis pool */
+    private ArrayList<Coin> genesisCoins(int count) {
+        ArrayList<Coin> coins = new ArrayList<>();
+        while (coins.size() < count) {
+            Transaction root = new Transaction();
+            //a made up input, so that every genesis transaction has its own hash
+            root.addInput(BigInteger.valueOf(random.nextLong()).toByteArray(), 0);
+            int[] owners = new int[OUTPUTS_PER_GENESIS_TX];
+            for (int idx = 0; idx < OUTPUTS_PER_GENESIS_TX; idx++) {
+                owners[idx] = random.nextInt(keys.length);
+                root.addOutputUnits(GENESIS_VALUE, keys[owners[idx]].getPublic());
+            }
+            root.finalize();
+            for (int idx = 0; idx < OUTPUTS_PER_GENESIS_TX; idx++) {
+                genesis.addUTXO(new UTXO(root.getHash(), idx), root.getOutput(idx));
+                coins.add(new Coin(root, idx, owners[idx]));
+            }
+        }
+        return coins;
+    }
+
+    /** @return a signed transaction spending {@code inputs} to {@code owners}, leaving a small fee */
+    private Transaction transaction(ArrayList<Coin> inputs, int[] owners) throws GeneralSecurityException {
+        Transaction tx = new Transaction();
+        long total = 0;
+        for (Coin coin : inputs) {
+            tx.addInput(coin.tx.getHash(), coin.index);
+            total += coin.value();
+        }
+        long fee = total / 1000 * random.nextInt(10);
+        long share = (total - fee) / owners.length;
+        for (int owner : owners)
+            tx.addOutputUnits(share, keys[owner].getPublic());
+        for (int idx = 0; idx < inputs.size(); idx++) {
+            signature.initSign(keys[inputs.get(idx).owner].getPrivate());
+            signature.update(tx.getRawDataToSign(idx));
+            tx.addSignature(signature.sign(), idx);
+        }
+        if (random.nextDouble() < settings.invalidSignatureRatio) {
+            byte[] sig = tx.getInput(0).signature;
+            sig[random.nextInt(sig.length)] ^= 1;
+        }
+        tx.finalize();
+        return tx;
+    }
+}
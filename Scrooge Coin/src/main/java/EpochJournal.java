@@ -0,0 +1,372 @@
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only write-ahead journal of the transactions accepted in each epoch, so that the
+ * ledger survives a crash: {@link #recover(Path, UTXOPool, EpochJournal)} maps the latest snapshot
+ * and replays the epochs journaled after it, without checking a single signature again. The file
+ * is, in big-endian order:
+ *
+ * <pre>
+ * header    magic "SCEJ", version                 int, int
+ *           base epoch                            long, the epoch of the snapshot the entries follow
+ * entries   per epoch, or per part of one, numbered on from the base epoch:
+ *             int length of epoch, count and records
+ *             long epoch, int transaction count
+ *             the accepted transactions in the order applied, as {@link TxCodec} records
+ *             int CRC32 of epoch, count and records
+ * </pre>
+ *
+ * The records hold the UTXO changes of the epoch: the inputs of a transaction are the UTXOs it
+ * spent and its outputs the ones it created. An entry torn by a crash fails its length or checksum
+ * and is cut off when the journal is opened again. An epoch journaled in parts as it is accepted,
+ * see {@link #appendPart}, has an entry per part, all under its number.
+ *
+ * <p>Appending only writes. An entry is durable once {@link #sync(long)} covers it, and syncs are
+ * committed in groups: while one thread forces the file to disk, the others wait and are then all
+ * covered by the next force, so concurrent committers share fsyncs rather than queueing for one
+ * each. A journal may be appended to by many threads at once.
+ */
+public class EpochJournal implements Closeable {
+
+    private static final int MAGIC = 0x5343454a;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    /** bytes of an entry around its records */
+    private static final int FRAME_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES;
+
+    private final FileChannel channel;
+    private final TxCodec codec;
+
+    /** guarded by this */
+    private long baseEpoch;
+    private long lastEpoch;
+    /** whether parts may still be added to the last epoch */
+    private boolean epochOpen;
+    /** end of the last entry written */
+    private volatile long written;
+
+    private final Object syncLock = new Object();
+    /** guarded by syncLock: the journal is on disk up to this position */
+    private long durable;
+    private boolean syncing;
+
+    private EpochJournal(FileChannel channel) throws IOException, GeneralSecurityException {
+        this.channel = channel;
+        this.codec = new TxCodec();
+        if (channel.size() == 0) {
+            writeHeader(0);
+            channel.truncate(HEADER_SIZE);
+            channel.force(true);
+        }
+        ByteBuffer header = read(0, HEADER_SIZE);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION)
+            throw new IOException("not an epoch journal of version " + VERSION);
+        baseEpoch = header.getLong();
+        lastEpoch = baseEpoch;
+
+        //keep the entries up to the first torn or corrupt one
+        long position = HEADER_SIZE;
+        ByteBuffer entry;
+        while ((entry = readEntry(position, lastEpoch)) != null) {
+            position += entry.capacity();
+            lastEpoch = entry.getLong(Integer.BYTES);
+        }
+        if (position < channel.size()) {
+            channel.truncate(position);
+            channel.force(true);
+        }
+        written = position;
+        durable = position;
+    }
+
+    /**
+     * Opens the journal in {@code file}, creating it if there is none, and cuts off an entry left
+     * incomplete by a crash
+     *
+     * @throws IOException if the file cannot be used or is not a journal
+     */
+    public static EpochJournal open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            return new EpochJournal(channel);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            channel.close();
+            if (e instanceof IOException)
+                throw (IOException) e;
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return the pool after the latest epoch made durable: the snapshot in {@code snapshot} if
+     *         there is one, and {@code genesis} otherwise, with the epochs in {@code journal} after
+     *         it applied. Later epochs are numbered on from it.
+     * @throws IOException if the snapshot or journal cannot be read, or the journal follows a
+     *         snapshot that is missing
+     */
+    public static UTXOPool recover(Path snapshot, UTXOPool genesis, EpochJournal journal) throws IOException {
+        UTXOPool pool;
+        long epoch;
+        if (Files.exists(snapshot)) {
+            MappedUTXOStore store = MappedUTXOStore.open(snapshot);
+            pool = UTXOPool.overlay(store);
+            epoch = store.epoch();
+        } else {
+            pool = new UTXOPool(genesis);
+            epoch = 0;
+        }
+        if (epoch < journal.baseEpoch())
+            throw new IOException("journal starts after epoch " + journal.baseEpoch() + ", snapshot is of epoch " + epoch);
+        journal.replay(pool, epoch);
+        return pool;
+    }
+
+    /** @return the epoch of the snapshot the entries of the journal follow */
+    public synchronized long baseEpoch() {
+        return baseEpoch;
+    }
+
+    /** @return the number of the latest epoch journaled, the base epoch if there is none */
+    public synchronized long lastEpoch() {
+        return lastEpoch;
+    }
+
+    /**
+     * Writes the transactions accepted in the next epoch, in the order they were applied, to the
+     * end of the journal. They are not durable until {@link #sync(long)} is called.
+     *
+     * @return the position the journal has to be synced to for the entry to be durable
+     */
+    public synchronized long append(Transaction[] accepted) throws IOException {
+        if (epochOpen)
+            throw new IllegalStateException("epoch " + lastEpoch + " is still being journaled in parts");
+        return append(accepted, lastEpoch + 1);
+    }
+
+    /**
+     * Same as {@link #append(Transaction[])} for a part of an epoch, written as soon as it is
+     * accepted: the first part starts the next epoch, the later ones are journaled under its
+     * number, until {@link #endEpoch()}. Replaying the parts applies them in order, as one epoch.
+     */
+    public synchronized long appendPart(Transaction[] accepted) throws IOException {
+        long position = append(accepted, epochOpen ? lastEpoch : lastEpoch + 1);
+        epochOpen = true;
+        return position;
+    }
+
+    /** Ends the epoch whose parts {@link #appendPart} journaled, if there is one */
+    public synchronized void endEpoch() {
+        epochOpen = false;
+    }
+
+    private long append(Transaction[] accepted, long epoch) throws IOException {
+        int size = FRAME_SIZE;
+        for (Transaction tx : accepted)
+            size += TxCodec.encodedSize(tx);
+        ByteBuffer entry = ByteBuffer.allocate(size);
+        entry.putInt(size - Integer.BYTES - Integer.BYTES);
+        entry.putLong(epoch);
+        entry.putInt(accepted.length);
+        for (Transaction tx : accepted)
+            TxCodec.encode(tx, entry);
+        entry.putInt(checksum(entry, Integer.BYTES, size - Integer.BYTES - Integer.BYTES));
+        entry.flip();
+
+        long position = written;
+        while (entry.hasRemaining())
+            position += channel.write(entry, position);
+        lastEpoch = epoch;
+        written = position;
+        return position;
+    }
+
+    /**
+     * Returns once the journal is on disk up to {@code position}. If another thread is forcing the
+     * file already, this waits for it and then forces everything written meanwhile in one go.
+     */
+    public void sync(long position) throws IOException {
+        synchronized (syncLock) {
+            while (durable < position && syncing) {
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting for the journal", e);
+                }
+            }
+            if (durable >= position)
+                return;
+            syncing = true;
+        }
+        long target = written;
+        boolean forced = false;
+        try {
+            //the data and the file length, which is all an appended entry needs
+            channel.force(false);
+            forced = true;
+        } finally {
+            synchronized (syncLock) {
+                syncing = false;
+                if (forced)
+                    durable = Math.max(durable, target);
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Appends the transactions accepted in the next epoch and returns once they are durable
+     *
+     * @return the number of the epoch
+     */
+    public long commit(Transaction[] accepted) throws IOException {
+        long position;
+        long epoch;
+        synchronized (this) {
+            position = append(accepted);
+            epoch = lastEpoch;
+        }
+        sync(position);
+        return epoch;
+    }
+
+    /**
+     * Appends a part of an epoch, see {@link #appendPart}, and returns once it is durable
+     *
+     * @return the number of the epoch
+     */
+    public long commitPart(Transaction[] accepted) throws IOException {
+        long position;
+        long epoch;
+        synchronized (this) {
+            position = appendPart(accepted);
+            epoch = lastEpoch;
+        }
+        sync(position);
+        return epoch;
+    }
+
+    /**
+     * Applies the epochs journaled after {@code afterEpoch} to {@code pool}: each transaction
+     * spends its inputs and adds its outputs, unchecked, since it was validated before it was
+     * journaled
+     *
+     * @return the number of epochs applied
+     */
+    public synchronized long replay(UTXOPool pool, long afterEpoch) throws IOException {
+        TransactionView view = new TransactionView();
+        long applied = 0;
+        long position = HEADER_SIZE;
+        long epoch = baseEpoch;
+        while (position < written) {
+            ByteBuffer entry = readEntry(position, epoch);
+            if (entry == null)
+                throw new IOException("entry after epoch " + epoch + " is corrupt");
+            position += entry.capacity();
+            boolean part = entry.getLong(Integer.BYTES) == epoch;
+            epoch = entry.getLong(Integer.BYTES);
+            if (epoch <= afterEpoch)
+                continue;
+            int count = entry.getInt(Integer.BYTES + Long.BYTES);
+            int offset = FRAME_SIZE - Integer.BYTES;
+            for (int t = 0; t < count; t++) {
+                Transaction tx;
+                try {
+                    tx = codec.decode(view.wrap(entry, offset));
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("bad address in epoch " + epoch, e);
+                }
+                offset = view.end();
+                for (Transaction.Input in : tx.getInputs())
+                    pool.removeUTXO(in.getUTXO());
+                for (int j = 0; j < tx.numOutputs(); j++)
+                    pool.addUTXO(new UTXO(tx.getHash(), j), tx.getOutput(j));
+            }
+            if (!part)
+                applied++;
+        }
+        return applied;
+    }
+
+    /**
+     * Writes a snapshot of {@code pool}, which must be the ledger after the last epoch journaled,
+     * to {@code snapshot} and empties the journal, which then follows that snapshot. A crash at any
+     * point leaves a snapshot and journal that recover to the same pool.
+     *
+     * @throws IllegalStateException if an epoch is still being journaled in parts, the snapshot
+     *         would have it only in part
+     */
+    public synchronized void checkpoint(UTXOPool pool, Path snapshot) throws IOException {
+        if (epochOpen)
+            throw new IllegalStateException("epoch " + lastEpoch + " is still being journaled in parts");
+        sync(written);
+        //durable, renamed and all, when it returns, so the entries it covers are not needed any more
+        pool.writeSnapshot(snapshot, lastEpoch);
+        //the entries up to the snapshot are skipped from now on, and can then go
+        writeHeader(lastEpoch);
+        channel.force(true);
+        channel.truncate(HEADER_SIZE);
+        channel.force(true);
+        baseEpoch = lastEpoch;
+        written = HEADER_SIZE;
+        synchronized (syncLock) {
+            durable = HEADER_SIZE;
+        }
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void writeHeader(long base) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(base).flip();
+        while (header.hasRemaining())
+            channel.write(header, header.position());
+    }
+
+    /**
+     * @return the entry at {@code position}, which follows one of epoch {@code previous}, or null
+     *         if it is torn or corrupt. It is of the next epoch, or a further part of
+     *         {@code previous} if that was journaled after the base epoch.
+     */
+    private ByteBuffer readEntry(long position, long previous) throws IOException {
+        long size = channel.size();
+        if (position + Integer.BYTES > size)
+            return null;
+        int length = read(position, Integer.BYTES).getInt();
+        if (length < Long.BYTES + Integer.BYTES || position + length + Integer.BYTES + Integer.BYTES > size)
+            return null;
+        ByteBuffer entry = read(position, length + Integer.BYTES + Integer.BYTES);
+        long epoch = entry.getLong(Integer.BYTES);
+        if ((epoch != previous + 1 && (epoch != previous || previous == baseEpoch))
+                || entry.getInt(Integer.BYTES + length) != checksum(entry, Integer.BYTES, length))
+            return null;
+        return entry;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0)
+                throw new IOException("journal ends at " + (position + buf.position()));
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static int checksum(ByteBuffer buf, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), buf.arrayOffset() + offset, length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,45 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/** A {@link UTXOStore} backed by a single {@link HashMap} on the heap, copied in full */
+public class HashUTXOStore implements UTXOStore {
+
+    private final HashMap<UTXO, Transaction.Output> H;
+
+    /** Creates a new empty store */
+    public HashUTXOStore() {
+        H = new HashMap<UTXO, Transaction.Output>();
+    }
+
+    private HashUTXOStore(HashUTXOStore store) {
+        H = new HashMap<UTXO, Transaction.Output>(store.H);
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        H.put(utxo, txOut);
+    }
+
+    public void remove(UTXO utxo) {
+        H.remove(utxo);
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        return H.get(utxo);
+    }
+
+    public boolean contains(UTXO utxo) {
+        return H.containsKey(utxo);
+    }
+
+    public ArrayList<UTXO> keys() {
+        return new ArrayList<UTXO>(H.keySet());
+    }
+
+    public long size() {
+        return H.size();
+    }
+
+    public UTXOStore copy() {
+        return new HashUTXOStore(this);
+    }
+}
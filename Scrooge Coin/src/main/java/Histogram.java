@@ -0,0 +1,99 @@
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative long values, such as latencies in nanoseconds, in the manner of
+ * HdrHistogram: values below 2^{@value #SUB_BUCKET_BITS} are counted exactly, larger ones in
+ * buckets that split every power of two into 2^{@value #SUB_BUCKET_BITS} equal parts, so every
+ * recorded value is known to within about 3% over the whole range of a long. Recording is a few
+ * shifts and one atomic increment: it never allocates or blocks, and may be done by many threads
+ * at once. Reads see each count as it is at the time, not a consistent snapshot of all of them.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /** Records {@code value} once; a negative value is recorded as 0 */
+    public void record(long value) {
+        record(value, 1);
+    }
+
+    /** Records {@code value} {@code count} times; a negative value is recorded as 0 */
+    public void record(long value, long count) {
+        if (value < 0)
+            value = 0;
+        counts.addAndGet(bucketOf(value), count);
+        total.addAndGet(count);
+        sum.addAndGet(value * count);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value))
+            ;
+    }
+
+    /** @return the number of values recorded */
+    public long count() {
+        return total.get();
+    }
+
+    /** @return the largest value recorded, 0 if there is none */
+    public long max() {
+        return max.get();
+    }
+
+    /** @return the mean of the values recorded, 0 if there is none */
+    public double mean() {
+        long n = total.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @return a value at or below which {@code p} percent of the recorded values lie, the upper
+     *         end of its bucket but no more than the largest value recorded; 0 if there is none
+     */
+    public long percentile(double p) {
+        long n = total.get();
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(p / 100 * n));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank)
+                return Math.min(highestIn(bucket), max.get());
+        }
+        return max.get();
+    }
+
+    /** Forgets every value recorded so far */
+    public void reset() {
+        for (int bucket = 0; bucket < BUCKETS; bucket++)
+            counts.set(bucket, 0);
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long highestIn(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        return lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,400 @@
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A {@link ReadOnlyUTXOStore} over a snapshot file, which is memory-mapped rather than read, so
+ * that a ledger of any size can answer lookups as soon as the file is opened. Changes are made in
+ * an {@link OverlayUTXOStore} on top of it, see {@link UTXOPool#fromSnapshot(Path)}. The file is,
+ * in big-endian order:
+ *
+ * <pre>
+ * header    magic "SCUS", version                 int, int
+ *           epoch                                 long
+ *           record count                          long
+ *           index bits, key count                 int, int
+ *           index, records, unpacked, keys        long offsets in the file
+ * index     2^bits + 1 longs: the first record whose hash starts with each bits-long prefix
+ * records   sorted by hash, then output index:
+ *             hash words h0..h3                   32 bytes
+ *             output index                        4 bytes
+ *             key number                          4 bytes
+ *             value in units                      8 bytes
+ * unpacked  int count, then per UTXO whose hash is not 32 bytes long:
+ *             int length, hash, int index, int key number, long value
+ * keys      key count longs: the offset of each key, then per key: int length, X.509 encoding
+ * </pre>
+ *
+ * A lookup reads the index entry for the prefix of the hash and binary searches the few records
+ * it points to. The public keys are decoded when an output first needs them. A snapshot is written
+ * to a temporary file that then replaces the old one in one move, so a crash while writing leaves
+ * the previous snapshot intact; the directory is forced to disk after the move, so that once
+ * {@link #write} returns a crash cannot bring the previous snapshot back either.
+ */
+public class MappedUTXOStore implements ReadOnlyUTXOStore {
+
+    private static final int MAGIC = 0x53435553;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+
+    private static final int RECORD_SIZE = 48;
+    private static final int INDEX_OFFSET = 32;
+    private static final int KEY_OFFSET = 36;
+    private static final int VALUE_OFFSET = 40;
+
+    /** records per mapped segment, so that no single mapping comes near the 2GB limit */
+    private static final int SEGMENT_SHIFT = 22;
+    /** bytes of the key section per mapped segment, for the same reason; a key may span two */
+    private static final int KEY_SEGMENT_SHIFT = 30;
+
+    /** the index aims at this many records per prefix, and has at most 2^MAX_INDEX_BITS prefixes */
+    private static final int RECORDS_PER_PREFIX = 4;
+    private static final int MAX_INDEX_BITS = 20;
+
+    /** Makes the entries of a directory durable, so that a file moved into it stays there */
+    interface DirectorySync {
+        void sync(Path directory) throws IOException;
+    }
+
+    /** how {@link #write} syncs the directory after the move, replaced by tests to simulate a crash */
+    static volatile DirectorySync directorySync = MappedUTXOStore::forceDirectory;
+
+    /** creates the Output objects handed out by get, which are not bound to a real transaction */
+    private static final Transaction OUTPUT_OWNER = new Transaction();
+
+    private final long epoch;
+    private final long recordCount;
+    private final int indexBits;
+    private final ByteBuffer index;
+    private final ByteBuffer[] segments;
+    private final HashMap<UTXO, Transaction.Output> unpacked;
+
+    private final int keySegmentShift;
+    private final ByteBuffer[] keySegments;
+    private final AtomicReferenceArray<PublicKey> keys;
+    private final KeyFactory keyFactory;
+
+    private MappedUTXOStore(FileChannel channel, int keySegmentShift) throws IOException {
+        if (channel.size() < HEADER_SIZE)
+            throw new IOException("not a UTXO snapshot");
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION)
+            throw new IOException("not a UTXO snapshot of version " + VERSION);
+        epoch = header.getLong();
+        recordCount = header.getLong();
+        indexBits = header.getInt();
+        int keyCount = header.getInt();
+        long indexOffset = header.getLong();
+        long recordsOffset = header.getLong();
+        long unpackedOffset = header.getLong();
+        long keysOffset = header.getLong();
+        if (indexBits < 0 || indexBits > MAX_INDEX_BITS || recordCount < 0 || keyCount < 0
+                || indexOffset + indexSize(indexBits) != recordsOffset
+                || recordsOffset + recordCount * RECORD_SIZE != unpackedOffset
+                || unpackedOffset > keysOffset || keysOffset > channel.size())
+            throw new IOException("corrupt UTXO snapshot header");
+
+        index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, indexSize(indexBits));
+        segments = new ByteBuffer[(int) ((recordCount + (1 << SEGMENT_SHIFT) - 1) >>> SEGMENT_SHIFT)];
+        for (int i = 0; i < segments.length; i++) {
+            long first = (long) i << SEGMENT_SHIFT;
+            long records = Math.min(1L << SEGMENT_SHIFT, recordCount - first);
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, recordsOffset + first * RECORD_SIZE, records * RECORD_SIZE);
+        }
+        this.keySegmentShift = keySegmentShift;
+        long keysSize = channel.size() - keysOffset;
+        keySegments = new ByteBuffer[(int) ((keysSize + (1L << keySegmentShift) - 1) >>> keySegmentShift)];
+        for (int i = 0; i < keySegments.length; i++) {
+            long first = (long) i << keySegmentShift;
+            keySegments[i] = channel.map(FileChannel.MapMode.READ_ONLY, keysOffset + first,
+                    Math.min(1L << keySegmentShift, keysSize - first));
+        }
+        keys = new AtomicReferenceArray<>(keyCount);
+        try {
+            keyFactory = KeyFactory.getInstance("RSA");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        unpacked = new HashMap<>();
+        ByteBuffer rest = channel.map(FileChannel.MapMode.READ_ONLY, unpackedOffset, keysOffset - unpackedOffset);
+        int count = rest.getInt();
+        for (int i = 0; i < count; i++) {
+            byte[] hash = new byte[rest.getInt()];
+            rest.get(hash);
+            UTXO utxo = new UTXO(hash, rest.getInt());
+            unpacked.put(utxo, OUTPUT_OWNER.new Output(keyOf(rest.getInt()), rest.getLong()));
+        }
+    }
+
+    /**
+     * Maps the snapshot in {@code file}. The mapping stays valid after the file is replaced by a
+     * newer snapshot.
+     *
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    public static MappedUTXOStore open(Path file) throws IOException {
+        return open(file, KEY_SEGMENT_SHIFT);
+    }
+
+    /** Same as {@link #open(Path)}, mapping the key section in segments of 2^{@code keySegmentShift} bytes */
+    static MappedUTXOStore open(Path file, int keySegmentShift) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new MappedUTXOStore(channel, keySegmentShift);
+        }
+    }
+
+    /**
+     * Writes a snapshot of {@code pool}, taken after epoch {@code epoch}, to {@code file},
+     * replacing it at once and durably when complete
+     */
+    public static void write(UTXOPool pool, long epoch, Path file) throws IOException {
+        ArrayList<UTXO> records = new ArrayList<>();
+        ArrayList<UTXO> others = new ArrayList<>();
+        for (UTXO utxo : pool.getAllUTXO())
+            (utxo.isPacked() ? records : others).add(utxo);
+        Collections.sort(records, MappedUTXOStore::compareRecords);
+
+        //number the distinct keys, in order of first use
+        HashMap<PublicKey, Integer> keyRefs = new HashMap<>();
+        ArrayList<byte[]> keys = new ArrayList<>();
+        for (UTXO utxo : records)
+            refOf(pool.getTxOutput(utxo).address, keyRefs, keys);
+        for (UTXO utxo : others)
+            refOf(pool.getTxOutput(utxo).address, keyRefs, keys);
+
+        int bits = indexBitsFor(records.size());
+        long indexOffset = HEADER_SIZE;
+        long recordsOffset = indexOffset + indexSize(bits);
+        long unpackedOffset = recordsOffset + (long) records.size() * RECORD_SIZE;
+        long keysOffset = unpackedOffset + Integer.BYTES;
+        for (UTXO utxo : others)
+            keysOffset += Integer.BYTES + utxo.getTxHashLength() + Integer.BYTES + Integer.BYTES + Long.BYTES;
+
+        Path parent = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(epoch);
+                out.writeLong(records.size());
+                out.writeInt(bits);
+                out.writeInt(keys.size());
+                out.writeLong(indexOffset);
+                out.writeLong(recordsOffset);
+                out.writeLong(unpackedOffset);
+                out.writeLong(keysOffset);
+
+                int next = 0;
+                for (long prefix = 0; prefix <= 1L << bits; prefix++) {
+                    while (next < records.size() && prefixOf(records.get(next).hashWord(0), bits) < prefix)
+                        next++;
+                    out.writeLong(next);
+                }
+                for (UTXO utxo : records) {
+                    Transaction.Output op = pool.getTxOutput(utxo);
+                    for (int w = 0; w < 4; w++)
+                        out.writeLong(utxo.hashWord(w));
+                    out.writeInt(utxo.getIndex());
+                    out.writeInt(keyRefs.get(op.address));
+                    out.writeLong(op.value);
+                }
+                out.writeInt(others.size());
+                for (UTXO utxo : others) {
+                    Transaction.Output op = pool.getTxOutput(utxo);
+                    out.writeInt(utxo.getTxHashLength());
+                    out.write(utxo.getTxHash());
+                    out.writeInt(utxo.getIndex());
+                    out.writeInt(keyRefs.get(op.address));
+                    out.writeLong(op.value);
+                }
+                long keyOffset = (long) keys.size() * Long.BYTES;
+                for (byte[] key : keys) {
+                    out.writeLong(keyOffset);
+                    keyOffset += Integer.BYTES + key.length;
+                }
+                for (byte[] key : keys) {
+                    out.writeInt(key.length);
+                    out.write(key);
+                }
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        //the rename itself is only durable once the directory is
+        directorySync.sync(parent);
+    }
+
+    /** Forces the entries of {@code directory} to disk */
+    static void forceDirectory(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    /** @return the epoch after which the snapshot was taken */
+    public long epoch() {
+        return epoch;
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        if (!utxo.isPacked())
+            return unpacked.get(utxo);
+        long record = find(utxo);
+        if (record < 0)
+            return null;
+        ByteBuffer seg = segmentOf(record);
+        int off = offsetOf(record);
+        return OUTPUT_OWNER.new Output(keyOf(seg.getInt(off + KEY_OFFSET)), seg.getLong(off + VALUE_OFFSET));
+    }
+
+    public boolean contains(UTXO utxo) {
+        if (!utxo.isPacked())
+            return unpacked.containsKey(utxo);
+        return find(utxo) >= 0;
+    }
+
+    public ArrayList<UTXO> keys() {
+        ArrayList<UTXO> keys = new ArrayList<>(unpacked.keySet());
+        for (long record = 0; record < recordCount; record++) {
+            ByteBuffer seg = segmentOf(record);
+            int off = offsetOf(record);
+            keys.add(new UTXO(seg.getLong(off), seg.getLong(off + 8), seg.getLong(off + 16), seg.getLong(off + 24),
+                    seg.getInt(off + INDEX_OFFSET)));
+        }
+        return keys;
+    }
+
+    public long size() {
+        return recordCount + unpacked.size();
+    }
+
+    /** @return the record holding {@code utxo}, or -1 */
+    private long find(UTXO utxo) {
+        int prefix = (int) prefixOf(utxo.hashWord(0), indexBits);
+        long low = index.getLong(prefix * Long.BYTES);
+        long high = index.getLong((prefix + 1) * Long.BYTES) - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            int cmp = compareRecord(mid, utxo);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    private int compareRecord(long record, UTXO utxo) {
+        ByteBuffer seg = segmentOf(record);
+        int off = offsetOf(record);
+        for (int w = 0; w < 4; w++) {
+            int cmp = Long.compareUnsigned(seg.getLong(off + w * Long.BYTES), utxo.hashWord(w));
+            if (cmp != 0)
+                return cmp;
+        }
+        return Integer.compare(seg.getInt(off + INDEX_OFFSET), utxo.getIndex());
+    }
+
+    private ByteBuffer segmentOf(long record) {
+        return segments[(int) (record >>> SEGMENT_SHIFT)];
+    }
+
+    private static int offsetOf(long record) {
+        return (int) (record & ((1L << SEGMENT_SHIFT) - 1)) * RECORD_SIZE;
+    }
+
+    private PublicKey keyOf(int ref) {
+        PublicKey key = keys.get(ref);
+        if (key == null) {
+            //the offsets are longs, aligned to the segments, the keys may span two of them
+            long offset = (long) ref * Long.BYTES;
+            long position = keySegments[(int) (offset >>> keySegmentShift)].getLong(keyOffsetOf(offset));
+            int length = ByteBuffer.wrap(keyBytes(position, Integer.BYTES)).getInt();
+            byte[] encoded = keyBytes(position + Integer.BYTES, length);
+            try {
+                key = keyFactory.generatePublic(new X509EncodedKeySpec(encoded));
+            } catch (InvalidKeySpecException e) {
+                throw new IllegalStateException("corrupt key " + ref + " in UTXO snapshot", e);
+            }
+            //threads racing here decode equal keys, any of them will do
+            keys.compareAndSet(ref, null, key);
+            key = keys.get(ref);
+        }
+        return key;
+    }
+
+    /** @return {@code length} bytes at {@code position} of the key section */
+    private byte[] keyBytes(long position, int length) {
+        byte[] bytes = new byte[length];
+        for (int done = 0; done < length; ) {
+            ByteBuffer seg = keySegments[(int) ((position + done) >>> keySegmentShift)].duplicate();
+            seg.position(keyOffsetOf(position + done));
+            int count = Math.min(length - done, seg.remaining());
+            seg.get(bytes, done, count);
+            done += count;
+        }
+        return bytes;
+    }
+
+    private int keyOffsetOf(long position) {
+        return (int) (position & ((1L << keySegmentShift) - 1));
+    }
+
+    /** the records in file order: by hash words as unsigned numbers, i.e. by hash bytes, then index */
+    private static int compareRecords(UTXO a, UTXO b) {
+        for (int w = 0; w < 4; w++) {
+            int cmp = Long.compareUnsigned(a.hashWord(w), b.hashWord(w));
+            if (cmp != 0)
+                return cmp;
+        }
+        return Integer.compare(a.getIndex(), b.getIndex());
+    }
+
+    private static long prefixOf(long h0, int bits) {
+        return bits == 0 ? 0 : h0 >>> (Long.SIZE - bits);
+    }
+
+    private static int indexBitsFor(long records) {
+        int bits = 0;
+        while (bits < MAX_INDEX_BITS && (RECORDS_PER_PREFIX << (bits + 1)) <= records)
+            bits++;
+        return bits;
+    }
+
+    private static long indexSize(int bits) {
+        return ((1L << bits) + 1) * Long.BYTES;
+    }
+
+    private static void refOf(PublicKey key, HashMap<PublicKey, Integer> keyRefs, ArrayList<byte[]> keys) {
+        if (!keyRefs.containsKey(key)) {
+            keyRefs.put(key, keys.size());
+            keys.add(key.getEncoded());
+        }
+    }
+}
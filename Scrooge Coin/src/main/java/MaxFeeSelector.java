@@ -0,0 +1,424 @@
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Picks the subset of an epoch with the highest total fee. Two transactions conflict when they
+ * claim the same UTXO, and a transaction spending an output created in the epoch needs the
+ * transaction creating it; the best subset is then a maximum weight independent set of the
+ * conflict graph that is closed under the dependency DAG. Both graphs are built once, split into
+ * independent components, and every component is solved by branch and bound.
+ *
+ * <p>The search is exact unless it runs out of its time budget, in which case the best subset
+ * found so far is kept. The budget starts once the graphs are built, and the first descent of
+ * every component, which takes every vertex it can, always runs to its end. The search also
+ * starts from the seed selection it is given, typically the greedy one, so its result is never
+ * worse than the seed.
+ */
+public class MaxFeeSelector {
+
+    /**
+     * fee of a transaction that is not valid even if all of its inputs are available, the one
+     * of its {@link ValidationResult}
+     */
+    public static final long INVALID = ValidationResult.INVALID_FEE;
+
+    /** how many search nodes are expanded between two looks at the clock */
+    private static final int CLOCK_INTERVAL = 1024;
+
+    private final long timeBudgetNanos;
+
+    /** Creates a selector that spends at most about {@code timeBudgetNanos} per epoch */
+    public MaxFeeSelector(long timeBudgetNanos) {
+        this.timeBudgetNanos = timeBudgetNanos;
+    }
+
+    /**
+     * @param possibleTxs the transactions of the epoch
+     * @param fees the fee of each transaction in units, assuming its inputs are available, or
+     *        {@link #INVALID} if it is not valid even then
+     * @param ledger the UTXOs available before the epoch
+     * @param seed a mutually valid selection to start from, e.g. a greedy one; ignored if it is
+     *        not mutually valid
+     * @return the selected transactions, in an order in which they can be applied one by one
+     */
+    public Transaction[] select(Transaction[] possibleTxs, long[] fees, UTXOPool ledger, Collection<Transaction> seed) {
+        Graph graph = new Graph(possibleTxs, fees, ledger);
+
+        //mark the seed, it only counts if it respects both graphs
+        boolean[] seeded = new boolean[graph.size];
+        IdentityHashMap<Transaction, Integer> positionOf = new IdentityHashMap<>();
+        for (int v = 0; v < graph.size; v++)
+            positionOf.put(graph.txs[v], v);
+        boolean seedValid = true;
+        for (Transaction tx : seed) {
+            Integer v = positionOf.get(tx);
+            if (v == null)
+                seedValid = false;
+            else
+                seeded[v] = true;
+        }
+        seedValid = seedValid && graph.isFeasible(seeded);
+
+        //building the graphs does not count against the budget
+        long deadline = System.nanoTime() + timeBudgetNanos;
+        boolean[] chosen = new boolean[graph.size];
+        for (int[] component : graph.components()) {
+            Search search = new Search(graph, component, deadline);
+            if (seedValid)
+                search.seed(seeded);
+            search.run();
+            for (int v : component) {
+                if (search.best[v])
+                    chosen[v] = true;
+            }
+        }
+
+        //the vertices are numbered in dependency order already
+        ArrayList<Transaction> selected = new ArrayList<>();
+        for (int v = 0; v < graph.size; v++) {
+            if (chosen[v])
+                selected.add(graph.txs[v]);
+        }
+        return selected.toArray(new Transaction[selected.size()]);
+    }
+
+    /**
+     * The conflict graph and dependency DAG over the transactions that can be valid at all.
+     * Vertices are numbered in a topological order of the DAG, so parents come before children.
+     */
+    private static class Graph {
+        private final int size;
+        private final Transaction[] txs;
+        private final long[] fee;
+        private final int[][] parents;
+        private final int[][] children;
+        private final int[][] conflicts;
+
+        private Graph(Transaction[] possibleTxs, long[] fees, UTXOPool ledger) {
+            int n = possibleTxs.length;
+            HashMap<ByteBuffer, Integer> byHash = new HashMap<>();
+            for (int i = 0; i < n; i++) {
+                if (possibleTxs[i].getHash() != null && fees[i] != INVALID)
+                    byHash.putIfAbsent(ByteBuffer.wrap(possibleTxs[i].getHash()), i);
+            }
+
+            //dependency edges between epoch transactions, by position in possibleTxs
+            ArrayList<LinkedHashSet<Integer>> txParents = new ArrayList<>(n);
+            ArrayList<ArrayList<Integer>> txChildren = new ArrayList<>(n);
+            boolean[] usable = new boolean[n];
+            for (int i = 0; i < n; i++) {
+                txParents.add(new LinkedHashSet<>());
+                txChildren.add(new ArrayList<>());
+                usable[i] = fees[i] != INVALID;
+            }
+            for (int i = 0; i < n; i++) {
+                if (!usable[i])
+                    continue;
+                for (Transaction.Input inp : possibleTxs[i].getInputs()) {
+                    if (ledger.contains(inp))
+                        continue;
+                    Integer parent = byHash.get(ByteBuffer.wrap(inp.prevTxHash));
+                    if (parent == null || parent == i)
+                        usable[i] = false;
+                    else if (txParents.get(i).add(parent))
+                        txChildren.get(parent).add(i);
+                }
+            }
+
+            //number the usable transactions in topological order, taking the highest fee first
+            //among those that are ready; a transaction with an unusable parent is unusable too
+            int[] pending = new int[n];
+            PriorityQueue<Integer> ready = new PriorityQueue<>((a, b) -> Long.compare(fees[b], fees[a]));
+            for (int i = 0; i < n; i++) {
+                pending[i] = txParents.get(i).size();
+                if (usable[i] && pending[i] == 0)
+                    ready.add(i);
+            }
+            int[] vertexOf = new int[n];
+            Arrays.fill(vertexOf, -1);
+            ArrayList<Integer> order = new ArrayList<>();
+            while (!ready.isEmpty()) {
+                int i = ready.poll();
+                vertexOf[i] = order.size();
+                order.add(i);
+                for (int child : txChildren.get(i)) {
+                    if (--pending[child] == 0 && usable[child])
+                        ready.add(child);
+                }
+            }
+
+            size = order.size();
+            txs = new Transaction[size];
+            fee = new long[size];
+            parents = new int[size][];
+            children = new int[size][];
+            for (int v = 0; v < size; v++) {
+                int i = order.get(v);
+                txs[v] = possibleTxs[i];
+                fee[v] = fees[i];
+                parents[v] = txParents.get(i).stream().mapToInt(p -> vertexOf[p]).toArray();
+                children[v] = txChildren.get(i).stream().mapToInt(c -> vertexOf[c]).filter(c -> c >= 0).toArray();
+            }
+
+            //two vertices conflict when they claim the same UTXO
+            HashMap<UTXO, ArrayList<Integer>> claimants = new HashMap<>();
+            for (int v = 0; v < size; v++) {
+                for (Transaction.Input inp : txs[v].getInputs())
+                    claimants.computeIfAbsent(inp.getUTXO(), u -> new ArrayList<>()).add(v);
+            }
+            ArrayList<LinkedHashSet<Integer>> vertexConflicts = new ArrayList<>(size);
+            for (int v = 0; v < size; v++)
+                vertexConflicts.add(new LinkedHashSet<>());
+            for (ArrayList<Integer> claim : claimants.values()) {
+                for (int a : claim) {
+                    for (int b : claim) {
+                        if (a != b)
+                            vertexConflicts.get(a).add(b);
+                    }
+                }
+            }
+            conflicts = new int[size][];
+            for (int v = 0; v < size; v++)
+                conflicts[v] = vertexConflicts.get(v).stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        /** @return true if {@code chosen} is conflict free and contains the parents of each member */
+        private boolean isFeasible(boolean[] chosen) {
+            for (int v = 0; v < size; v++) {
+                if (!chosen[v])
+                    continue;
+                for (int p : parents[v]) {
+                    if (!chosen[p])
+                        return false;
+                }
+                for (int c : conflicts[v]) {
+                    if (chosen[c])
+                        return false;
+                }
+            }
+            return true;
+        }
+
+        /** @return the vertex sets connected by conflict or dependency edges, each sorted */
+        private List<int[]> components() {
+            int[] root = new int[size];
+            for (int v = 0; v < size; v++)
+                root[v] = v;
+            for (int v = 0; v < size; v++) {
+                for (int p : parents[v])
+                    union(root, v, p);
+                for (int c : conflicts[v])
+                    union(root, v, c);
+            }
+            HashMap<Integer, ArrayList<Integer>> members = new HashMap<>();
+            for (int v = 0; v < size; v++)
+                members.computeIfAbsent(find(root, v), r -> new ArrayList<>()).add(v);
+            ArrayList<int[]> components = new ArrayList<>();
+            for (ArrayList<Integer> component : members.values())
+                components.add(component.stream().mapToInt(Integer::intValue).toArray());
+            return components;
+        }
+
+        private static int find(int[] root, int v) {
+            while (root[v] != v) {
+                root[v] = root[root[v]];
+                v = root[v];
+            }
+            return v;
+        }
+
+        private static void union(int[] root, int a, int b) {
+            root[find(root, a)] = find(root, b);
+        }
+    }
+
+    /**
+     * Branch and bound over one component. Vertices are decided in topological order; taking a
+     * vertex blocks everything it conflicts with, and a blocked or skipped vertex blocks all of its
+     * descendants. The bound is the fee taken so far plus the fees of all undecided vertices that
+     * are not blocked.
+     *
+     * <p>The search keeps its own stack, one frame per vertex, since a component may be a
+     * dependency chain of any length. If the fees of the component do not fit in a long together,
+     * the bound cannot be kept exactly: the search then goes on without it, as far as its budget
+     * allows, and compares the selections it finds by their saturated sums.
+     */
+    private static class Search {
+        /** the frame has yet to decide its vertex */
+        private static final byte ENTER = 0;
+        /** the vertex of the frame was blocked, it only passed on to the next frame */
+        private static final byte PASSED = 1;
+        /** the vertex of the frame is taken, skipping it is next */
+        private static final byte TOOK = 2;
+        /** the vertex of the frame is skipped, the frame is done after that */
+        private static final byte SKIPPED = 3;
+
+        private final Graph graph;
+        private final int[] order;
+        private final long deadline;
+
+        private final boolean[] best;
+        private long bestFee = Long.MIN_VALUE;
+
+        private final boolean[] taken;
+        private final int[] blockCount;
+        /** vertices whose block count was raised, in order, so that it can be undone */
+        private int[] blockLog;
+        private int blockLogSize;
+        /** the explicit stack of {@link #block}, kept across calls */
+        private int[] blockStack;
+        private long takenFee;
+        private long openFee;
+        /** true if the fees of the component overflow a long, see the class comment */
+        private boolean unbounded;
+
+        private long nodes;
+        private boolean outOfTime;
+
+        private Search(Graph graph, int[] order, long deadline) {
+            this.graph = graph;
+            this.order = order;
+            this.deadline = deadline;
+            this.best = new boolean[graph.size];
+            this.taken = new boolean[graph.size];
+            this.blockCount = new int[graph.size];
+            this.blockLog = new int[16];
+            this.blockStack = new int[16];
+            //every sum of fees of the component lies within the sum of their sizes
+            try {
+                long magnitude = 0;
+                for (int v : order) {
+                    magnitude = Math.addExact(magnitude, Math.abs(graph.fee[v]));
+                    openFee += graph.fee[v];
+                }
+            } catch (ArithmeticException e) {
+                unbounded = true;
+            }
+        }
+
+        private void seed(boolean[] seeded) {
+            for (int v : order)
+                best[v] = seeded[v];
+            bestFee = feeOf(seeded);
+        }
+
+        /** @return the total fee of the vertices of {@code chosen}, saturated */
+        private long feeOf(boolean[] chosen) {
+            long fee = 0;
+            for (int v : order) {
+                if (chosen[v])
+                    fee = Amount.addSaturated(fee, graph.fee[v]);
+            }
+            return fee;
+        }
+
+        private void run() {
+            int n = order.length;
+            byte[] phase = new byte[n + 1];
+            int[] mark = new int[n + 1];
+            //the clock only counts once the first descent is over, it takes
+            //every vertex it can and is never cut short
+            boolean firstDescent = true;
+            int k = 0;
+            phase[0] = ENTER;
+            while (k >= 0) {
+                if (phase[k] != ENTER) {
+                    int v = order[k];
+                    if (phase[k] == TOOK) {
+                        undoBlocks(mark[k]);
+                        openFee += graph.fee[v];
+                        takenFee -= graph.fee[v];
+                        taken[v] = false;
+
+                        //skip v, which rules out its descendants as well
+                        block(v);
+                        phase[k] = SKIPPED;
+                        phase[++k] = ENTER;
+                    } else {
+                        if (phase[k] == SKIPPED)
+                            undoBlocks(mark[k]);
+                        k--;
+                    }
+                    continue;
+                }
+
+                if (outOfTime || (!unbounded && takenFee + openFee <= bestFee)) {
+                    firstDescent = false;
+                    k--;
+                    continue;
+                }
+                if (++nodes % CLOCK_INTERVAL == 0 && !firstDescent && System.nanoTime() > deadline) {
+                    outOfTime = true;
+                    k--;
+                    continue;
+                }
+                if (k == n) {
+                    //bounded, a leaf is only reached with a better selection
+                    long fee = unbounded ? feeOf(taken) : takenFee;
+                    if (fee > bestFee) {
+                        bestFee = fee;
+                        for (int v : order)
+                            best[v] = taken[v];
+                    }
+                    firstDescent = false;
+                    k--;
+                    continue;
+                }
+                int v = order[k];
+                if (blockCount[v] > 0) {
+                    phase[k] = PASSED;
+                    phase[++k] = ENTER;
+                    continue;
+                }
+
+                //take v
+                mark[k] = blockLogSize;
+                taken[v] = true;
+                takenFee += graph.fee[v];
+                openFee -= graph.fee[v];
+                for (int c : graph.conflicts[v])
+                    block(c);
+                phase[k] = TOOK;
+                phase[++k] = ENTER;
+            }
+        }
+
+        private void block(int start) {
+            //an explicit stack, dependency chains may be long
+            int[] stack = blockStack;
+            int size = 0;
+            stack[size++] = start;
+            while (size > 0) {
+                int v = stack[--size];
+                if (blockLogSize == blockLog.length)
+                    blockLog = Arrays.copyOf(blockLog, blockLogSize * 2);
+                blockLog[blockLogSize++] = v;
+                if (blockCount[v]++ == 0) {
+                    if (!taken[v])
+                        openFee -= graph.fee[v];
+                    int[] children = graph.children[v];
+                    if (size + children.length > stack.length)
+                        stack = blockStack = Arrays.copyOf(stack, Math.max(stack.length * 2, size + children.length));
+                    for (int c : children)
+                        stack[size++] = c;
+                }
+            }
+        }
+
+        private void undoBlocks(int mark) {
+            while (blockLogSize > mark) {
+                int v = blockLog[--blockLogSize];
+                if (--blockCount[v] == 0 && !taken[v])
+                    openFee += graph.fee[v];
+            }
+        }
+    }
+}
@@ -1,20 +1,26 @@
 
-import java.security.PublicKey;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.function.Function;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 public class MaxFeeTxHandler {
     
+    /** time the exact fee maximisation may take per epoch before the best selection found is used */
+    public static final long DEFAULT_TIME_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
     private UTXOPool publicLedger;
 
+    private final TxValidator validator;
+    private final MaxFeeSelector selector;
+    private TxMetrics metrics = TxMetrics.DISABLED;
+
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
      * {@code utxoPool}. This should make a copy of utxoPool by using the UTXOPool(UTXOPool uPool)
@@ -22,7 +28,30 @@ public class MaxFeeTxHandler {
      */
     public MaxFeeTxHandler(UTXOPool utxoPool) {
         // IMPLEMENT THIS
+        this(utxoPool, SignatureCache.shared());
+    }
+
+    /**
+     * Same as {@link #MaxFeeTxHandler(UTXOPool)}, but signature checks are looked up in and added
+     * to {@code signatureCache} instead of the shared cache.
+     */
+    public MaxFeeTxHandler(UTXOPool utxoPool, SignatureCache signatureCache) {
+        this(utxoPool, signatureCache, DEFAULT_TIME_BUDGET_NANOS);
+    }
+
+    /**
+     * Same as {@link #MaxFeeTxHandler(UTXOPool, SignatureCache)}, but the search for the highest
+     * fee selection of an epoch stops after about {@code timeBudgetNanos}.
+     */
+    public MaxFeeTxHandler(UTXOPool utxoPool, SignatureCache signatureCache, long timeBudgetNanos) {
         this.publicLedger = new UTXOPool(utxoPool);
+        this.validator = new TxValidator(signatureCache);
+        this.selector = new MaxFeeSelector(timeBudgetNanos);
+    }
+
+    /** @return a copy of the current UTXO pool, as left by the last epoch */
+    public UTXOPool getUTXOPool() {
+        return new UTXOPool(publicLedger);
     }
 
     /**
@@ -30,28 +59,105 @@ public class MaxFeeTxHandler {
      * (1) all outputs claimed by {@code tx} are in the current UTXO pool, 
      * (2) the signatures on each input of {@code tx} are valid, 
      * (3) no UTXO is claimed multiple times by {@code tx},
-     * (4) all of {@code tx}s output values are non-negative, and
+     * (4) all of {@code tx}s output values are non-negative,
      * (5) the sum of {@code tx}s input values is greater than or equal to the sum of its output
-     *     values; and false otherwise.
+     *     values,
+     * (6) every input of {@code tx} carries a signature of a size an RSA key can produce, and
+     * (7) the hash of {@code tx} is the SHA-256 of its raw data; and false otherwise. Rules added
+     *     to the validator are checked as well.
      */
     public boolean isValidTx(Transaction tx) {
-        return isValidTx(tx, publicLedger);
+        return validate(tx).isValid();
+    }
+
+    /**
+     * Checks the same rules as {@link #isValidTx(Transaction)}, cheapest first as laid out by
+     * {@link TxValidator}, so no signature is verified for a transaction breaking another rule
+     *
+     * @return the fee of {@code tx} if it is valid, and otherwise the first rule it breaks with
+     *         the input breaking it
+     */
+    public ValidationResult validate(Transaction tx) {
+        return validate(tx, publicLedger);
     }
-    private boolean isValidTx(Transaction tx, UTXOPool ledger) {
-        // check all tests
-        return (allInputsInPool(tx,ledger) && //valid inputs
-                allInputSignaturesValid(tx,ledger) && //valid signatures
-                noInputsClaimedMultiple(tx) && //no double spending of inputs
-                allOutputsNonNegative(tx) && //valid outputs
-                (transactionFee(tx, ledger) >= 0.0)); //proper transaction
+
+    private ValidationResult validate(Transaction tx, UTXOPool ledger) {
+        // check all tests, each timed and a failing one counted in metrics
+        return validator.validate(tx, ledger);
+    }
+
+    private ValidationResult validate(TxValidator.Context ctx, UTXOPool ledger) {
+        // the stateless rules were checked once for the epoch, see handleTxs
+        return validator.validate(ctx, ledger::getTxOutput);
+    }
+
+    /** @return the validator of this handler, which further rules can be added to */
+    public TxValidator getValidator() {
+        return validator;
+    }
+
+    /**
+     * Makes this handler time its checks, count its rejections and record its epochs in
+     * {@code metrics}, which may be shared with other handlers. Every validation is counted,
+     * including the repeated ones of the greedy pass, on a ledger with or without conflicting
+     * transactions applied; only the stateless rules are checked once per epoch.
+     */
+    public void setMetrics(TxMetrics metrics) {
+        this.metrics = metrics;
+        validator.setMetrics(metrics);
     }
 
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
-     * updating the current UTXO pool as appropriate.
+     * updating the current UTXO pool as appropriate. The accepted transactions are those with the
+     * highest total fee found by {@link MaxFeeSelector}, starting from a greedy selection.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
+        //every transaction is validated several times, its stateless rules only once
+        return handleTxs(Arrays.stream(possibleTxs)
+                .map(validator::preValidate)
+                .toArray(TxValidator.Context[]::new));
+    }
+
+    /**
+     * Same as {@link #handleTxs(Transaction[])}, for transactions pre-validated as they arrived
+     * by {@link TxValidator#preValidate}, whose stateless rules are then not checked again
+     */
+    public Transaction[] handleTxs(TxValidator.Context[] contexts) {
+        Transaction[] possibleTxs = Arrays.stream(contexts)
+                .map(TxValidator.Context::tx)
+                .toArray(Transaction[]::new);
+        //fee of every transaction as if all of its parents were accepted,
+        //so every output created in the epoch is made available up front
+        UTXOPool allOutputs = new UTXOPool(publicLedger);
+        for (Transaction tx : possibleTxs) {
+            if (tx.getHash() != null)
+                IntStream.range(0, tx.numOutputs())
+                        .forEach(idx -> allOutputs.addUTXO(new UTXO(tx.getHash(), idx), tx.getOutput(idx)));
+        }
+        long[] fees = Arrays.stream(contexts)
+                .mapToLong(ctx -> validate(ctx, allOutputs).fee()) //INVALID unless valid
+                .toArray();
+
+        List<Transaction> greedy = greedySelect(contexts);
+        Transaction[] selected = selector.select(possibleTxs, fees, publicLedger, greedy);
+
+        UTXOPool currentLedger = new UTXOPool(publicLedger);
+        for (Transaction tx : selected)
+            updateCurrentPoolLedger(tx, currentLedger);
+        publicLedger = currentLedger;
+        if (metrics.isEnabled())
+            metrics.epoch(possibleTxs.length, selected.length,
+                    Arrays.stream(selected).mapToLong(tx -> transactionFee(tx, allOutputs)).reduce(0, Amount::addSaturated));
+        return selected;
+    }
+
+    /**
+     * Single pass over {@code possibleTxs} that takes every valid transaction and swaps out
+     * earlier picks when a conflicting transaction pays more.
+     */
+    private List<Transaction> greedySelect(TxValidator.Context[] possibleTxs) {
         //MaxFeeTxHandler naive try
         //filter out invalid ones
 //        possibleTxs = Arrays.stream(possibleTxs)
@@ -65,77 +171,100 @@ public class MaxFeeTxHandler {
 //        publicLedger = finalLedger.ledger;
 //        return finalLedger.txs.stream().toArray(Transaction[]::new);
         
-        //init empty list of selected txs
-        ArrayList<TxWithValue> selectedTxs = new ArrayList<>();
+        //selected txs in the order they were accepted, which is an order they can be applied in
+        LinkedHashSet<TxWithValue> selectedTxs = new LinkedHashSet<>();
+        //inverted index from every outpoint spent by a selected tx to that tx
+        HashMap<UTXO, TxWithValue> spentBy = new HashMap<>();
+        int accepted = 0;
         //keep a copy of the ledger to make updates
         UTXOPool currentLedger = new UTXOPool(publicLedger);
         //dp approach for maxfee
         //choose each transaction
-        for(Transaction tx:possibleTxs) {
+        for(TxValidator.Context ctx:possibleTxs) {
+            if(ctx.isRejected())
+                continue; //no ledger makes it valid
+            Transaction tx = ctx.tx();
             //if transaction is valid add to selectedTxs
             //it will always be a positive contribution to fee
             //negative fee ruled out by validity check of transactionFees
-            if(isValidTx(tx, currentLedger)) {
-                selectedTxs.add(new TxWithValue(tx,transactionFee(tx,currentLedger)));
+            ValidationResult result = validate(ctx, currentLedger);
+            if(result.isValid()) {
+                TxWithValue txV = new TxWithValue(tx,result.fee(),currentLedger,accepted++);
+                select(txV, selectedTxs, spentBy);
                 //update current ledger
                 updateCurrentPoolLedger(tx, currentLedger);
             }
-            else if(!allInputsInPool(tx,currentLedger)) {
+            else if(result.failedRule() == ValidationRule.INPUTS_IN_POOL) {
                 //check if invalid due to double spend of input earlier
                 //if it's input is used earlier then all input won't be in current ledger pool
                 
                 //check if we remove earlier transactions which were selected
                 //causing this to be double spent, and add this tx to set instead of them
                 //which will yield more fees
-                double feesWithoutCurTx = getTotalFees(selectedTxs);
-                //get new array list without txs conflicting with curTx due to double spent
-                ArrayList<TxWithValue> modTxs = removeConflictingTxs(tx, selectedTxs);
-                //recalculate currentLedger with modTxs
-                UTXOPool tempLedger = recalculateLedger(modTxs);
+                Set<TxWithValue> conflicting = conflictingTxs(tx, spentBy);
+                if(conflicting.isEmpty())
+                    continue; //an input is missing for good, evicting nothing frees it
+                //undo the conflicting txs on the current ledger, newest first,
+                //journaled so that only the touched outputs are restored if this is no better
+                int checkpoint = currentLedger.checkpoint();
+                conflicting.stream()
+                        .sorted(Comparator.comparingInt((TxWithValue c) -> c.acceptedAt).reversed())
+                        .forEach(c -> undoCurrentPoolLedger(c, currentLedger));
                 //sanity check, since it should be valid now
-                if(isValidTx(tx, tempLedger)) {
-                    modTxs.add(new TxWithValue(tx,transactionFee(tx,tempLedger)));
-                    double feesWithCurTx = getTotalFees(modTxs);
+                boolean swapped = false;
+                ValidationResult swapResult = validate(ctx, currentLedger);
+                if(swapResult.isValid()) {
+                    TxWithValue txV = new TxWithValue(tx,swapResult.fee(),currentLedger,accepted++);
+                    //the fees they give up, compared with the fee of this one
+                    //rather than summed into a total that could overflow
+                    long conflictingFees = conflicting.stream()
+                            .mapToLong(c -> c.txValue)
+                            .reduce(0, Amount::addSaturated);
 
                     //choose greater yield txs combination
-                    if(feesWithCurTx > feesWithoutCurTx) {
-                        //reset selected txs
-                        selectedTxs = modTxs;
-                        //reset currentLedger
-                        currentLedger = tempLedger;
+                    if(txV.txValue > conflictingFees) {
+                        //swap the conflicting txs for this one
+                        conflicting.forEach(c -> evict(c, selectedTxs, spentBy));
+                        select(txV, selectedTxs, spentBy);
+                        updateCurrentPoolLedger(tx, currentLedger);
+                        swapped = true;
                     }
-                    //else slectedTxs remains as is, no changes
                 }
+                //else slectedTxs remains as is, and so does the ledger
+                if(swapped)
+                    currentLedger.commit(checkpoint);
+                else
+                    currentLedger.rollback(checkpoint);
             }
         }
         
-        //set updated publicLedger
-        publicLedger = currentLedger;
-        //return array of selected transactions
-        return selectedTxs.stream().map( txV -> txV.tx).toArray(Transaction[]::new);
+        //return the selected transactions
+        return selectedTxs.stream().map( txV -> txV.tx).collect(Collectors.toList());
           
     }
     
     private class TxWithValue {
-        public double txValue = 0;
+        public long txValue = 0;
         public Transaction tx = null;
+        /** outputs claimed by the inputs of tx, to put back if tx is evicted */
+        public Transaction.Output[] spentOutputs;
+        /** position of tx among the accepted txs, parents come before their children */
+        public int acceptedAt;
 
-        private TxWithValue(Transaction transc, double transactionFee) {
+        private TxWithValue(Transaction transc, long transactionFee, UTXOPool ledger, int acceptedAt) {
             tx = transc;
             txValue = transactionFee;
+            spentOutputs = transc.getInputs().stream()
+                    .map(inp -> ledger.getTxOutput(inp))
+                    .toArray(Transaction.Output[]::new);
+            this.acceptedAt = acceptedAt;
         }
     }
       
-    private double getTotalFees(List<TxWithValue> txs) {
-        return txs.stream()
-                .mapToDouble(tx -> tx.txValue)
-                .sum();
-    }
-    
     private UTXOPool updateCurrentPoolLedger(Transaction tx, UTXOPool curLedger) {
         //update UTXOPool ledger
         //remove all inputs from the ledger, since they are not 'spent'
-        tx.getInputs().forEach(inp -> curLedger.removeUTXO(new UTXO(inp.prevTxHash, inp.outputIndex)));
+        tx.getInputs().forEach(inp -> curLedger.removeUTXO(inp.getUTXO()));
 
         //add all outputs to the ledger, since they are 'unspent'
         IntStream.range(0, tx.numOutputs())
@@ -166,61 +295,10 @@ public class MaxFeeTxHandler {
 //        return ledger;
 //    }
 
-    private boolean allInputsInPool(Transaction tx, UTXOPool ledger) {
-        // (1) all outputs claimed by {@code tx} are in the current UTXO pool        
-        // basically check all inputs must be in the UTXOPool
-        // so that they can be claimed in this tx
-        return tx.getInputs().stream() //get inputs
-                .map(inp ->  new UTXO(inp.prevTxHash,inp.outputIndex)) // create UTXO temporaily with tx hash and index
-                .allMatch( utxo -> ledger.contains(utxo)); //check if UTXO exist in pool, else return false
-     
-    }
-
-    private boolean allInputSignaturesValid(Transaction tx, UTXOPool ledger) {
-        // (2) the signatures on each input of {@code tx} are valid
-        return IntStream.range(0, tx.numInputs())
-                .allMatch(idx -> {
-                    //get input at idx
-                    Transaction.Input inp = tx.getInput(idx);
-                    //since it exists check if the signature is valid
-                    //get raw data
-                    byte[] msg = tx.getRawDataToSign(idx);
-                    //get signature
-                    byte[] sig = inp.signature;
-                    //get public key
-                    //go into UTXOPool and get the output
-                    PublicKey pk = ledger.getTxOutput(new UTXO(inp.prevTxHash, inp.outputIndex)).address;
-                    //verify signatures, if not verified return false
-                    return Crypto.verifySignature(pk, msg, sig);
-                });
-    }
-
-    private boolean noInputsClaimedMultiple(Transaction tx) {
-        // (3) no UTXO is claimed multiple times by {@code tx}
-        return tx.getInputs().stream()
-                .map(inp -> new UTXO(inp.prevTxHash,inp.outputIndex)) // create UTXO temporaily with tx hash and index
-                .collect(Collectors.toSet()) // store the utxo in a set
-                //compare set size with actual size, should be same
-                //if different then inputs claimed multiple times
-                .size() == tx.numInputs();
-    }
-
-    private boolean allOutputsNonNegative(Transaction tx) {
-        // (4) all of {@code tx}s output values are non-negative
-        return tx.getOutputs().stream()
-                .allMatch(o -> o.value>=0); //check if value non-nagtive
-    }
-
-    private double transactionFee(Transaction tx, UTXOPool ledger) {
+    private long transactionFee(Transaction tx, UTXOPool ledger) {
         // (5) the sum of {@code tx}s input values is greater than or equal to the sum of its output
-        // sum all the inputSum
-        double inputSum = tx.getInputs().stream()
-                .mapToDouble(inp -> ledger.getTxOutput(new UTXO(inp.prevTxHash,inp.outputIndex)).value)
-                .sum();
-        double outputSum = tx.getOutputs().stream()
-                .mapToDouble(o -> o.value)
-                .sum();
-        return inputSum - outputSum;
+        // exact fixed-point sums, see Amount
+        return Amount.fee(tx, ledger);
     }
 
 //    private TxLedger knapSack(Transaction[] possibleTxs, int n, TxLedger txLedger) {
@@ -245,40 +323,48 @@ public class MaxFeeTxHandler {
 //        return tx2;
 //    }
 
-    private ArrayList<TxWithValue> removeConflictingTxs(Transaction tx, ArrayList<TxWithValue> selectedTxs) {
-        //make defensive copy of selectedTxs
-        ArrayList<TxWithValue> modTxs = new ArrayList<>(selectedTxs);
-        
-        //go through all inputs in tx
+    private void undoCurrentPoolLedger(TxWithValue txV, UTXOPool curLedger) {
+        //take the outputs back out, then give the inputs back their outputs
+        Transaction tx = txV.tx;
+        IntStream.range(0, tx.numOutputs())
+                .forEach(idx -> curLedger.removeUTXO(new UTXO(tx.getHash(), idx)));
+        IntStream.range(0, tx.numInputs())
+                .forEach(idx -> curLedger.addUTXO(tx.getInput(idx).getUTXO(), txV.spentOutputs[idx]));
+    }
+
+    private void select(TxWithValue txV, Set<TxWithValue> selectedTxs, HashMap<UTXO, TxWithValue> spentBy) {
+        selectedTxs.add(txV);
+        txV.tx.getInputs().forEach(inp -> spentBy.put(inp.getUTXO(), txV));
+    }
+
+    private void evict(TxWithValue txV, Set<TxWithValue> selectedTxs, HashMap<UTXO, TxWithValue> spentBy) {
+        selectedTxs.remove(txV);
+        txV.tx.getInputs().forEach(inp -> spentBy.remove(inp.getUTXO()));
+    }
+
+    /**
+     * @return the selected txs that claim an input of {@code tx}, together with every selected
+     *         tx that spends an output of one of them, directly or further down the chain
+     */
+    private Set<TxWithValue> conflictingTxs(Transaction tx, HashMap<UTXO, TxWithValue> spentBy) {
+        LinkedHashSet<TxWithValue> conflicting = new LinkedHashSet<>();
+        ArrayDeque<TxWithValue> pending = new ArrayDeque<>();
+        //go through all inputs in tx, the index tells who else claims them
         for(Transaction.Input inp:tx.getInputs()) {
-            UTXO curInp = new UTXO(inp.prevTxHash,inp.outputIndex);
-            //find if input also exists in any selcted tx
-            int foundIdx = -1;
-            for(int idx =0; idx < modTxs.size(); idx++) {
-                Transaction cur = modTxs.get(idx).tx;
-                for(Transaction.Input nestedInp:cur.getInputs()) {
-                    if(curInp.compareTo(new UTXO(nestedInp.prevTxHash,nestedInp.outputIndex)) == 0) {
-                        foundIdx = idx;
-                        break;
-                    }
-                }
-                if(foundIdx > -1)
-                    break;
+            TxWithValue claimant = spentBy.get(inp.getUTXO());
+            if(claimant != null && conflicting.add(claimant))
+                pending.push(claimant);
+        }
+        //a tx spending the output of an evicted tx has to go too
+        while(!pending.isEmpty()) {
+            Transaction evicted = pending.pop().tx;
+            for(int idx = 0; idx < evicted.numOutputs(); idx++) {
+                TxWithValue child = spentBy.get(new UTXO(evicted.getHash(), idx));
+                if(child != null && conflicting.add(child))
+                    pending.push(child);
             }
-            //if input found in any tx, delete from selected tx
-            if(foundIdx > -1)
-                modTxs.remove(foundIdx);
         }
-        
-        return modTxs;
-    }
-
-    private UTXOPool recalculateLedger(ArrayList<TxWithValue> selectedTxs) {
-        //recalculate ledger from publicLedger
-        //make defensive copy of public ledger
-        UTXOPool currentLedger = new UTXOPool(publicLedger);
-        selectedTxs.forEach(txV -> updateCurrentPoolLedger(txV.tx,currentLedger));
-        return currentLedger;
+        return conflicting;
     }
 
 //    private class TxLedger {
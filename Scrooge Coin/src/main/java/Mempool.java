@@ -0,0 +1,428 @@
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.TreeSet;
+
+/**
+ * Holds the transactions received between epochs and hands each epoch a candidate set, so that
+ * transactions no longer have to arrive in the very array they are handled in.
+ *
+ * <p>A transaction is checked when it arrives, against the ledger of the last epoch plus the
+ * outputs of the transactions already pooled: its inputs must be found, its signatures valid (the
+ * results go into the {@link SignatureCache}, so the handler finds them there), it may claim no
+ * UTXO twice, and its outputs must be non-negative and no larger than its inputs. The rules are
+ * checked cheapest first by a {@link TxValidator}, signatures last. Pooled
+ * transactions may conflict with each other, choosing between them is left to the handler.
+ *
+ * <p>A transaction spending an output that is neither in the ledger nor in the pool is kept as an
+ * orphan until the transaction creating that output arrives or is accepted in an epoch. One
+ * spending an output of a transaction that is pooled or was confirmed through {@link #confirm},
+ * but that output is gone, is rejected instead, as is one with an input missing its hash. The
+ * last {@link #MAX_CONFIRMED} confirmed hashes are remembered for this; a parent confirmed before
+ * that still makes an orphan, which is evicted in time like any other. The size
+ * of every transaction, pooled or orphaned, is the length of {@link Transaction#getRawTx()}; once
+ * the total exceeds the memory cap the oldest orphans go first, then the pooled transactions with
+ * the lowest fee per byte along with everything spending their outputs.
+ *
+ * <p>All methods are synchronized, so transactions can be added from several threads.
+ * {@link #add} checks the rules that need no ledger before it takes the lock.
+ */
+public class Mempool {
+
+    private static class Entry {
+        private final Transaction tx;
+        /** the transaction, pre-validated already, to hand to the handler */
+        private final TxValidator.Context ctx;
+        private final ByteBuffer hash;
+        private final long fee;
+        private final long size;
+        private final double feeRate;
+        /** order of arrival, parents always arrive before their children */
+        private final long seq;
+        /** pooled transactions spending an output of this one */
+        private final ArrayList<Entry> children = new ArrayList<>();
+        private boolean removed;
+
+        private Entry(TxValidator.Context ctx, long fee, long size, long seq) {
+            this.tx = ctx.tx();
+            this.ctx = ctx;
+            this.hash = ByteBuffer.wrap(tx.getHash());
+            this.fee = fee;
+            this.size = size;
+            this.feeRate = (double) fee / size;
+            this.seq = seq;
+        }
+    }
+
+    private static class Orphan {
+        /** the transaction, pre-validated already */
+        private final TxValidator.Context ctx;
+        private final long size;
+        /** hashes of the transactions it waits for */
+        private HashSet<ByteBuffer> missing;
+
+        private Orphan(TxValidator.Context ctx, long size, HashSet<ByteBuffer> missing) {
+            this.ctx = ctx;
+            this.size = size;
+            this.missing = missing;
+        }
+    }
+
+    private static final Comparator<Entry> BY_FEE = Comparator.<Entry>comparingLong(e -> -e.fee)
+            .thenComparingLong(e -> e.seq);
+    private static final Comparator<Entry> BY_FEE_RATE = Comparator.<Entry>comparingDouble(e -> -e.feeRate)
+            .thenComparingLong(e -> e.seq);
+
+    /** number of hashes of confirmed transactions remembered to reject children of spent outputs */
+    public static final int MAX_CONFIRMED = 1 << 16;
+
+    private final long maxBytes;
+    private final TxValidator validator;
+    private UTXOPool ledger;
+
+    /** pooled transactions by hash, in order of arrival */
+    private final LinkedHashMap<ByteBuffer, Entry> entries = new LinkedHashMap<>();
+    private final TreeSet<Entry> byFee = new TreeSet<>(BY_FEE);
+    private final TreeSet<Entry> byFeeRate = new TreeSet<>(BY_FEE_RATE);
+
+    /** orphans by hash, oldest first */
+    private final LinkedHashMap<ByteBuffer, Orphan> orphans = new LinkedHashMap<>();
+    /** orphans by the hash of each transaction they wait for */
+    private final HashMap<ByteBuffer, ArrayList<Orphan>> orphansByParent = new HashMap<>();
+    /** hashes of the last {@link #MAX_CONFIRMED} transactions confirmed, oldest first */
+    private final LinkedHashMap<ByteBuffer, Boolean> confirmed = new LinkedHashMap<ByteBuffer, Boolean>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(java.util.Map.Entry<ByteBuffer, Boolean> eldest) {
+            return size() > MAX_CONFIRMED;
+        }
+    };
+
+    private long bytes;
+    private long nextSeq;
+
+    /**
+     * Creates an empty pool in front of a handler whose current UTXO pool is {@code ledger}, that
+     * holds at most about {@code maxBytes} of serialized transactions
+     */
+    public Mempool(UTXOPool ledger, long maxBytes) {
+        this(ledger, maxBytes, SignatureCache.shared());
+    }
+
+    /**
+     * Same as {@link #Mempool(UTXOPool, long)}, but signature checks are looked up in and added to
+     * {@code signatureCache}, which should be the one the handler uses
+     */
+    public Mempool(UTXOPool ledger, long maxBytes, SignatureCache signatureCache) {
+        this.ledger = new UTXOPool(ledger);
+        this.maxBytes = maxBytes;
+        this.validator = new TxValidator(signatureCache);
+    }
+
+    /**
+     * Adds {@code tx} to the pool, or to the orphans if it spends the output of a transaction that
+     * has not been seen yet. Orphans waiting for {@code tx} are added along with it.
+     *
+     * <p>The rules that need no ledger are checked before the pool is locked, so threads adding
+     * transactions at once only wait for each other for the lookups and signature checks.
+     *
+     * @return false if {@code tx} is invalid or already known, true otherwise
+     */
+    public boolean add(Transaction tx) {
+        TxValidator.Context ctx = validator.preValidate(tx);
+        if (ctx.isRejected())
+            return false;
+        synchronized (this) {
+            return add(ctx);
+        }
+    }
+
+    private boolean add(TxValidator.Context ctx) {
+        Transaction tx = ctx.tx();
+        ByteBuffer hash = ByteBuffer.wrap(tx.getHash());
+        if (entries.containsKey(hash) || orphans.containsKey(hash))
+            return false;
+        long size = tx.rawTxSize();
+
+        HashSet<ByteBuffer> missing = missingParents(tx);
+        if (missing == null)
+            return false;
+        if (!missing.isEmpty()) {
+            Orphan orphan = new Orphan(ctx, size, missing);
+            orphans.put(hash, orphan);
+            for (ByteBuffer parent : missing)
+                orphansByParent.computeIfAbsent(parent, p -> new ArrayList<>()).add(orphan);
+            bytes += size;
+            evictOverCap();
+            return true;
+        }
+
+        if (!insert(ctx, size))
+            return false;
+        releaseOrphansOf(hash);
+        evictOverCap();
+        return true;
+    }
+
+    /**
+     * @return the hashes of the transactions {@code tx} spends outputs of that are neither in the
+     *         ledger nor pooled, or null if an input has no hash or claims an output that is gone
+     *         from a confirmed transaction
+     */
+    private HashSet<ByteBuffer> missingParents(Transaction tx) {
+        HashSet<ByteBuffer> missing = new HashSet<>();
+        for (Transaction.Input inp : tx.getInputs()) {
+            if (inp.prevTxHash == null)
+                return null;
+            if (ledger.contains(inp))
+                continue;
+            ByteBuffer parent = ByteBuffer.wrap(inp.prevTxHash);
+            if (confirmed.containsKey(parent))
+                return null; //spent already
+            if (!entries.containsKey(parent))
+                missing.add(parent); //a pooled parent without that output is rejected by the ledger stage
+        }
+        return missing;
+    }
+
+    /** Validates the transaction of {@code ctx}, whose inputs can all be found, and pools it if it is valid */
+    private boolean insert(TxValidator.Context ctx, long size) {
+        Transaction tx = ctx.tx();
+        ArrayList<Entry> parents = new ArrayList<>();
+        ValidationResult result = validator.validate(ctx, inp -> {
+            Transaction.Output out = ledger.getTxOutput(inp);
+            if (out != null)
+                return out;
+            Entry parent = entries.get(ByteBuffer.wrap(inp.prevTxHash));
+            if (inp.outputIndex < 0 || inp.outputIndex >= parent.tx.numOutputs())
+                return null;
+            if (!parents.contains(parent))
+                parents.add(parent);
+            return parent.tx.getOutput(inp.outputIndex);
+        });
+        if (!result.isValid())
+            return false;
+
+        Entry entry = new Entry(ctx, result.fee(), size, nextSeq++);
+        entries.put(entry.hash, entry);
+        byFee.add(entry);
+        byFeeRate.add(entry);
+        for (Entry parent : parents)
+            parent.children.add(entry);
+        bytes += size;
+        return true;
+    }
+
+    /** Moves the orphans waiting only for {@code parent}, and then for their own children, into the pool */
+    private void releaseOrphansOf(ByteBuffer parent) {
+        ArrayDeque<ByteBuffer> released = new ArrayDeque<>();
+        released.push(parent);
+        while (!released.isEmpty()) {
+            ArrayList<Orphan> waiting = orphansByParent.remove(released.pop());
+            if (waiting == null)
+                continue;
+            for (Orphan orphan : waiting) {
+                ByteBuffer hash = ByteBuffer.wrap(orphan.ctx.tx().getHash());
+                if (orphans.get(hash) != orphan)
+                    continue; //evicted in the meantime
+                HashSet<ByteBuffer> missing = missingParents(orphan.ctx.tx());
+                unlinkOrphan(orphan);
+                if (missing != null && !missing.isEmpty()) {
+                    //still waiting, for a parent it may not have known about before
+                    orphan.missing = missing;
+                    for (ByteBuffer p : missing)
+                        orphansByParent.computeIfAbsent(p, x -> new ArrayList<>()).add(orphan);
+                    continue;
+                }
+                orphans.remove(hash);
+                bytes -= orphan.size;
+                if (missing != null && insert(orphan.ctx, orphan.size))
+                    released.push(hash);
+            }
+        }
+    }
+
+    /**
+     * @return at most {@code maxTxs} pooled transactions, highest fee first, each preceded by the
+     *         pooled transactions it spends outputs of
+     */
+    public synchronized Transaction[] candidates(int maxTxs) {
+        return selectCandidates(maxTxs).stream()
+                .map(e -> e.tx)
+                .toArray(Transaction[]::new);
+    }
+
+    /** @return the entries of {@link #candidates(int)}, in the same order */
+    private ArrayList<Entry> selectCandidates(int maxTxs) {
+        HashSet<Entry> taken = new HashSet<>();
+        ArrayList<Entry> candidates = new ArrayList<>();
+        for (Entry entry : byFee) {
+            if (candidates.size() >= maxTxs)
+                break;
+            if (taken.contains(entry))
+                continue;
+            ArrayList<Entry> closure = ancestorsOf(entry, taken);
+            if (candidates.size() + closure.size() > maxTxs)
+                continue;
+            for (Entry e : closure) {
+                taken.add(e);
+                candidates.add(e);
+            }
+        }
+        return candidates;
+    }
+
+    /** @return the contexts of {@link #candidates(int)}, pre-validated when they arrived */
+    private TxValidator.Context[] candidateContexts(int maxTxs) {
+        return selectCandidates(maxTxs).stream()
+                .map(e -> e.ctx)
+                .toArray(TxValidator.Context[]::new);
+    }
+
+    /** @return {@code entry} and its pooled ancestors not in {@code taken}, oldest first */
+    private ArrayList<Entry> ancestorsOf(Entry entry, HashSet<Entry> taken) {
+        HashSet<Entry> found = new HashSet<>();
+        ArrayDeque<Entry> pending = new ArrayDeque<>();
+        found.add(entry);
+        pending.push(entry);
+        while (!pending.isEmpty()) {
+            for (Transaction.Input inp : pending.pop().tx.getInputs()) {
+                Entry parent = entries.get(ByteBuffer.wrap(inp.prevTxHash));
+                if (parent != null && !taken.contains(parent) && found.add(parent))
+                    pending.push(parent);
+            }
+        }
+        ArrayList<Entry> closure = new ArrayList<>(found);
+        closure.sort(Comparator.comparingLong(e -> e.seq));
+        return closure;
+    }
+
+    /**
+     * Records the outcome of an epoch: {@code accepted} were applied and {@code newLedger} is the
+     * handler's UTXO pool afterwards. The accepted transactions leave the pool, and so does every
+     * pooled transaction that now claims an output spent by one of them; orphans waiting for an
+     * accepted transaction are reconsidered.
+     */
+    public synchronized void confirm(Transaction[] accepted, UTXOPool newLedger) {
+        ledger = new UTXOPool(newLedger);
+        for (Transaction tx : accepted) {
+            confirmed.put(ByteBuffer.wrap(tx.getHash()), Boolean.TRUE);
+            Entry entry = entries.get(ByteBuffer.wrap(tx.getHash()));
+            if (entry != null)
+                unlink(entry);
+        }
+        //parents come first, so a transaction whose parent is gone finds out in time
+        ArrayList<Entry> conflicted = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            for (Transaction.Input inp : entry.tx.getInputs()) {
+                if (!ledger.contains(inp) && !entries.containsKey(ByteBuffer.wrap(inp.prevTxHash))) {
+                    conflicted.add(entry);
+                    break;
+                }
+            }
+        }
+        conflicted.forEach(this::removeWithDescendants);
+        for (Transaction tx : accepted)
+            releaseOrphansOf(ByteBuffer.wrap(tx.getHash()));
+        evictOverCap();
+    }
+
+    /**
+     * Runs an epoch on {@code handler} with at most {@code maxTxs} candidates from the pool, and
+     * records its outcome. The candidates are handed over pre-validated, so only the stateless
+     * rules the handler has besides those of the pool are checked again.
+     *
+     * @return the transactions accepted by the handler
+     */
+    public synchronized Transaction[] runEpoch(TxHandler handler, int maxTxs) {
+        Transaction[] accepted = handler.handleTxs(candidateContexts(maxTxs));
+        confirm(accepted, handler.ledger);
+        return accepted;
+    }
+
+    /** Same as {@link #runEpoch(TxHandler, int)}, for a {@link MaxFeeTxHandler} */
+    public synchronized Transaction[] runEpoch(MaxFeeTxHandler handler, int maxTxs) {
+        Transaction[] accepted = handler.handleTxs(candidateContexts(maxTxs));
+        confirm(accepted, handler.getUTXOPool());
+        return accepted;
+    }
+
+    /** Removes {@code entry} from the pool, leaving its children in it */
+    private void unlink(Entry entry) {
+        entries.remove(entry.hash);
+        byFee.remove(entry);
+        byFeeRate.remove(entry);
+        bytes -= entry.size;
+        entry.removed = true;
+    }
+
+    private void removeWithDescendants(Entry entry) {
+        ArrayDeque<Entry> pending = new ArrayDeque<>();
+        pending.push(entry);
+        while (!pending.isEmpty()) {
+            Entry e = pending.pop();
+            if (e.removed)
+                continue;
+            unlink(e);
+            e.children.forEach(pending::push);
+        }
+    }
+
+    private void evictOverCap() {
+        Iterator<Orphan> oldest = orphans.values().iterator();
+        while (bytes > maxBytes && oldest.hasNext()) {
+            Orphan orphan = oldest.next();
+            oldest.remove();
+            bytes -= orphan.size;
+            unlinkOrphan(orphan);
+        }
+        while (bytes > maxBytes && !byFeeRate.isEmpty())
+            removeWithDescendants(byFeeRate.last());
+    }
+
+    /** Removes {@code orphan} from those waiting for each transaction it is missing */
+    private void unlinkOrphan(Orphan orphan) {
+        for (ByteBuffer parent : orphan.missing) {
+            ArrayList<Orphan> waiting = orphansByParent.get(parent);
+            if (waiting != null && waiting.remove(orphan) && waiting.isEmpty())
+                orphansByParent.remove(parent);
+        }
+    }
+
+    /** @return true if {@code tx} is pooled, not counting orphans */
+    public synchronized boolean contains(Transaction tx) {
+        return entries.containsKey(ByteBuffer.wrap(tx.getHash()));
+    }
+
+    /** @return true if {@code tx} is waiting for a transaction it spends outputs of */
+    public synchronized boolean isOrphan(Transaction tx) {
+        return orphans.containsKey(ByteBuffer.wrap(tx.getHash()));
+    }
+
+    /** @return the number of pooled transactions, not counting orphans */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** @return the number of orphans */
+    public synchronized int orphanCount() {
+        return orphans.size();
+    }
+
+    /** @return the number of transactions orphans are waiting for */
+    synchronized int awaitedParentCount() {
+        return orphansByParent.size();
+    }
+
+    /** @return the serialized size of all pooled and orphaned transactions */
+    public synchronized long bytes() {
+        return bytes;
+    }
+}
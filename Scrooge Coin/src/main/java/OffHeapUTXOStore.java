@@ -0,0 +1,398 @@
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A {@link UTXOStore} kept outside the Java heap, for ledgers too large to hold as a HashMap of
+ * objects. Entries live in an open-addressing table of fixed-width records in direct buffers:
+ *
+ * <pre>
+ *  0  hash words h0..h3   32 bytes
+ * 32  output index         4 bytes
+ * 36  address reference    4 bytes, 0 marks a free slot
+ * 40  value in units        8 bytes
+ * </pre>
+ *
+ * 48 bytes per slot, against well over 100 bytes per HashMap entry, and nothing for the garbage
+ * collector to trace. An address reference points into a table of the distinct public keys held
+ * by the store and its copies, which share it; a key is dropped from the table once no entry of
+ * any of them refers to it. Collisions are resolved by linear probing with backward-shift
+ * deletion, so lookups never have to skip tombstones.
+ *
+ * <p>The direct memory of a store, and of each copy, is freed by {@link #release()}, or else only
+ * once the collector gets to the store.
+ *
+ * <p>The store keeps a copy of the value and address of each output. {@link #get(UTXO)} returns a
+ * new {@link Transaction.Output} holding them, changing it does not change the store. UTXOs whose
+ * hash is not a 32 byte digest cannot be packed into a record and are kept in a small map on the
+ * heap instead.
+ */
+public class OffHeapUTXOStore implements UTXOStore {
+
+    private static final int SLOT_SIZE = 48;
+    private static final int INDEX_OFFSET = 32;
+    private static final int ADDRESS_OFFSET = 36;
+    private static final int VALUE_OFFSET = 40;
+
+    /** slots per buffer, so that no single buffer comes near the 2GB limit */
+    private static final int MAX_SEGMENT_SHIFT = 22;
+
+    private static final double MAX_LOAD = 0.7;
+
+    /** creates the Output objects handed out by get, which are not bound to a real transaction */
+    private static final Transaction OUTPUT_OWNER = new Transaction();
+
+    /** sun.misc.Unsafe and its invokeCleaner(ByteBuffer) from Java 9 on, to free direct memory at once */
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            //Java 8, or no access: the buffers are freed by the collector
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final AddressTable addresses;
+    private final HashMap<UTXO, Transaction.Output> unpacked;
+
+    private ByteBuffer[] segments;
+    private int segmentShift;
+    private long capacity;
+    private long size;
+
+    /**
+     * The distinct public keys referenced by a store and its copies, each counted once per entry
+     * referring to it. A reference is only reused once its count drops to zero, i.e. once no entry
+     * holds it any more, so readers can look a key up in the current array without the lock.
+     */
+    private static class AddressTable {
+        private volatile PublicKey[] keys = new PublicKey[16];
+        private int[] counts = new int[16];
+        /** references handed out so far, the highest in use or free */
+        private int count;
+        /** references whose count dropped to zero, to be handed out again */
+        private int[] free = new int[16];
+        private int freeCount;
+        private final HashMap<PublicKey, Integer> refs = new HashMap<>();
+
+        /** @return the reference of {@code key}, counting one more entry holding it */
+        synchronized int acquire(PublicKey key) {
+            Integer ref = refs.get(key);
+            if (ref == null) {
+                PublicKey[] current = keys;
+                if (freeCount > 0) {
+                    ref = free[--freeCount];
+                } else {
+                    if (count == current.length) {
+                        current = Arrays.copyOf(current, count * 2);
+                        counts = Arrays.copyOf(counts, count * 2);
+                    }
+                    ref = ++count;
+                }
+                current[ref - 1] = key;
+                keys = current; //publishes the key along with the array
+                refs.put(key, ref);
+            }
+            counts[ref - 1]++;
+            return ref;
+        }
+
+        /** Counts one more entry holding {@code ref} */
+        synchronized void retain(int ref) {
+            counts[ref - 1]++;
+        }
+
+        /** Counts one entry fewer holding {@code ref}, and drops its key if that was the last */
+        synchronized void release(int ref) {
+            if (--counts[ref - 1] > 0)
+                return;
+            PublicKey[] current = keys;
+            refs.remove(current[ref - 1]);
+            current[ref - 1] = null;
+            if (freeCount == free.length)
+                free = Arrays.copyOf(free, freeCount * 2);
+            free[freeCount++] = ref;
+        }
+
+        synchronized int size() {
+            return refs.size();
+        }
+
+        PublicKey keyOf(int ref) {
+            return keys[ref - 1];
+        }
+    }
+
+    /** Creates a new empty store sized for about {@code expectedSize} UTXOs */
+    public OffHeapUTXOStore(long expectedSize) {
+        this.addresses = new AddressTable();
+        this.unpacked = new HashMap<>();
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    private OffHeapUTXOStore(OffHeapUTXOStore store) {
+        this.addresses = store.addresses;
+        this.unpacked = new HashMap<>(store.unpacked);
+        allocate(store.capacity);
+        for (int i = 0; i < segments.length; i++) {
+            ByteBuffer source = store.segments[i].duplicate();
+            source.clear();
+            segments[i].put(source);
+            segments[i].clear();
+        }
+        this.size = store.size;
+        //the copied entries hold their addresses too
+        synchronized (addresses) {
+            for (long slot = 0; slot < capacity; slot++) {
+                int ref = addressRefOf(slot);
+                if (ref != 0)
+                    addresses.retain(ref);
+            }
+        }
+    }
+
+    private static long tableSizeFor(long expectedSize) {
+        long slots = 16;
+        while (slots * MAX_LOAD < expectedSize)
+            slots <<= 1;
+        return slots;
+    }
+
+    private void allocate(long slots) {
+        capacity = slots;
+        segmentShift = Math.min(MAX_SEGMENT_SHIFT, Long.numberOfTrailingZeros(slots));
+        int segmentSlots = 1 << segmentShift;
+        segments = new ByteBuffer[(int) (slots >>> segmentShift)];
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = ByteBuffer.allocateDirect(segmentSlots * SLOT_SIZE).order(ByteOrder.nativeOrder());
+        size = 0;
+    }
+
+    private ByteBuffer segmentOf(long slot) {
+        return segments[(int) (slot >>> segmentShift)];
+    }
+
+    private int offsetOf(long slot) {
+        return (int) (slot & ((1L << segmentShift) - 1)) * SLOT_SIZE;
+    }
+
+    private long homeSlot(long h0, long h1, int index) {
+        //the words are digest bits already, only the index needs mixing in
+        long mixed = h0 ^ h1 ^ (index * 0x9E3779B97F4A7C15L);
+        mixed ^= mixed >>> 29;
+        return mixed & (capacity - 1);
+    }
+
+    private int addressRefOf(long slot) {
+        return segmentOf(slot).getInt(offsetOf(slot) + ADDRESS_OFFSET);
+    }
+
+    private boolean isFree(long slot) {
+        return addressRefOf(slot) == 0;
+    }
+
+    private boolean matches(long slot, UTXO utxo) {
+        ByteBuffer seg = segmentOf(slot);
+        int off = offsetOf(slot);
+        return seg.getInt(off + INDEX_OFFSET) == utxo.getIndex()
+                && seg.getLong(off) == utxo.hashWord(0)
+                && seg.getLong(off + 8) == utxo.hashWord(1)
+                && seg.getLong(off + 16) == utxo.hashWord(2)
+                && seg.getLong(off + 24) == utxo.hashWord(3);
+    }
+
+    /** @return the slot holding {@code utxo}, or -1 */
+    private long find(UTXO utxo) {
+        long mask = capacity - 1;
+        for (long slot = homeSlot(utxo.hashWord(0), utxo.hashWord(1), utxo.getIndex()); ; slot = (slot + 1) & mask) {
+            if (isFree(slot))
+                return -1;
+            if (matches(slot, utxo))
+                return slot;
+        }
+    }
+
+    private void write(long slot, long h0, long h1, long h2, long h3, int index, int addressRef, long value) {
+        ByteBuffer seg = segmentOf(slot);
+        int off = offsetOf(slot);
+        seg.putLong(off, h0);
+        seg.putLong(off + 8, h1);
+        seg.putLong(off + 16, h2);
+        seg.putLong(off + 24, h3);
+        seg.putInt(off + INDEX_OFFSET, index);
+        seg.putInt(off + ADDRESS_OFFSET, addressRef);
+        seg.putLong(off + VALUE_OFFSET, value);
+    }
+
+    private void copySlot(long from, long to) {
+        ByteBuffer src = segmentOf(from);
+        int srcOff = offsetOf(from);
+        write(to, src.getLong(srcOff), src.getLong(srcOff + 8), src.getLong(srcOff + 16), src.getLong(srcOff + 24),
+                src.getInt(srcOff + INDEX_OFFSET), src.getInt(srcOff + ADDRESS_OFFSET), src.getLong(srcOff + VALUE_OFFSET));
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        if (!utxo.isPacked()) {
+            unpacked.put(utxo, txOut);
+            return;
+        }
+        if (size + 1 > capacity * MAX_LOAD)
+            grow();
+        int addressRef = addresses.acquire(txOut.address);
+        long mask = capacity - 1;
+        long slot = homeSlot(utxo.hashWord(0), utxo.hashWord(1), utxo.getIndex());
+        while (!isFree(slot) && !matches(slot, utxo))
+            slot = (slot + 1) & mask;
+        if (isFree(slot))
+            size++;
+        else
+            addresses.release(addressRefOf(slot)); //the output replaced
+        write(slot, utxo.hashWord(0), utxo.hashWord(1), utxo.hashWord(2), utxo.hashWord(3),
+                utxo.getIndex(), addressRef, txOut.value);
+    }
+
+    public void remove(UTXO utxo) {
+        if (!utxo.isPacked()) {
+            unpacked.remove(utxo);
+            return;
+        }
+        long slot = find(utxo);
+        if (slot < 0)
+            return;
+        addresses.release(addressRefOf(slot));
+        //shift later entries of the probe run back, so no tombstone is needed
+        long mask = capacity - 1;
+        long hole = slot;
+        for (long next = (hole + 1) & mask; !isFree(next); next = (next + 1) & mask) {
+            ByteBuffer seg = segmentOf(next);
+            int off = offsetOf(next);
+            long home = homeSlot(seg.getLong(off), seg.getLong(off + 8), seg.getInt(off + INDEX_OFFSET));
+            //the entry may move into the hole unless its home lies cyclically in (hole, next]
+            boolean homeInRange = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!homeInRange) {
+                copySlot(next, hole);
+                hole = next;
+            }
+        }
+        segmentOf(hole).putInt(offsetOf(hole) + ADDRESS_OFFSET, 0);
+        size--;
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        if (!utxo.isPacked())
+            return unpacked.get(utxo);
+        long slot = find(utxo);
+        if (slot < 0)
+            return null;
+        ByteBuffer seg = segmentOf(slot);
+        int off = offsetOf(slot);
+        return OUTPUT_OWNER.new Output(addresses.keyOf(seg.getInt(off + ADDRESS_OFFSET)),
+                seg.getLong(off + VALUE_OFFSET));
+    }
+
+    public boolean contains(UTXO utxo) {
+        if (!utxo.isPacked())
+            return unpacked.containsKey(utxo);
+        return find(utxo) >= 0;
+    }
+
+    public ArrayList<UTXO> keys() {
+        ArrayList<UTXO> keys = new ArrayList<>(unpacked.keySet());
+        for (long slot = 0; slot < capacity; slot++) {
+            if (isFree(slot))
+                continue;
+            ByteBuffer seg = segmentOf(slot);
+            int off = offsetOf(slot);
+            keys.add(new UTXO(seg.getLong(off), seg.getLong(off + 8), seg.getLong(off + 16), seg.getLong(off + 24),
+                    seg.getInt(off + INDEX_OFFSET)));
+        }
+        return keys;
+    }
+
+    public long size() {
+        return size + unpacked.size();
+    }
+
+    public UTXOStore copy() {
+        return new OffHeapUTXOStore(this);
+    }
+
+    /**
+     * Frees the direct memory of the store at once, and drops the addresses no other copy refers
+     * to. The store is empty afterwards and must not be used again.
+     */
+    public void release() {
+        if (segments == null)
+            return;
+        synchronized (addresses) {
+            for (long slot = 0; slot < capacity; slot++) {
+                int ref = addressRefOf(slot);
+                if (ref != 0)
+                    addresses.release(ref);
+            }
+        }
+        for (ByteBuffer segment : segments)
+            free(segment);
+        segments = null;
+        capacity = 0;
+        size = 0;
+        unpacked.clear();
+    }
+
+    /** @return the number of distinct addresses referred to by the store and its copies */
+    int addressCount() {
+        return addresses.size();
+    }
+
+    private static void free(ByteBuffer buffer) {
+        if (INVOKE_CLEANER == null)
+            return;
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            //left to the collector
+        }
+    }
+
+    /** Doubles the table and reinserts every entry */
+    private void grow() {
+        ByteBuffer[] oldSegments = segments;
+        int oldShift = segmentShift;
+        long oldCapacity = capacity;
+        allocate(oldCapacity << 1);
+        long mask = capacity - 1;
+        for (long old = 0; old < oldCapacity; old++) {
+            ByteBuffer seg = oldSegments[(int) (old >>> oldShift)];
+            int off = (int) (old & ((1L << oldShift) - 1)) * SLOT_SIZE;
+            int addressRef = seg.getInt(off + ADDRESS_OFFSET);
+            if (addressRef == 0)
+                continue;
+            long h0 = seg.getLong(off), h1 = seg.getLong(off + 8);
+            int index = seg.getInt(off + INDEX_OFFSET);
+            long slot = homeSlot(h0, h1, index);
+            while (!isFree(slot))
+                slot = (slot + 1) & mask;
+            write(slot, h0, h1, seg.getLong(off + 16), seg.getLong(off + 24), index, addressRef,
+                    seg.getLong(off + VALUE_OFFSET));
+            size++;
+        }
+        for (ByteBuffer seg : oldSegments)
+            free(seg);
+    }
+}
@@ -0,0 +1,132 @@
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * A copy-on-write {@link UTXOStore}, the default for a UTXOPool. The store is a stack of frozen
+ * layers, each recording the entries added or removed on top of the one below, plus a private
+ * layer taking the changes made since the last copy. Copying freezes the private layer and shares
+ * the whole stack with the new store, so a copy costs O(1) and the memory held by a speculative
+ * copy grows with its own changes only; dropping the copy is all it takes to discard it.
+ *
+ * <p>To keep lookups short, a frozen layer is merged into the one below it as soon as it holds at
+ * least half as many entries, which keeps the stack logarithmic in the size of the store. The
+ * bottom of the stack may be another store, e.g. a large off-heap table, that is only read from
+ * once it has been wrapped.
+ *
+ * <p>Since copying replaces the layers of the source store, a copy counts as a modification of it
+ * when the store is shared between threads.
+ */
+public class OverlayUTXOStore implements UTXOStore {
+
+    /** marks an entry removed in a layer while it may still be present below */
+    private static final Transaction.Output REMOVED = new Transaction().new Output(0, null);
+
+    /** A frozen layer of changes, never modified once created */
+    private static final class Layer {
+        private final Layer below;
+        private final HashMap<UTXO, Transaction.Output> entries;
+
+        private Layer(Layer below, HashMap<UTXO, Transaction.Output> entries) {
+            this.below = below;
+            this.entries = entries;
+        }
+    }
+
+    /** read-only store below all layers, or null */
+    private final ReadOnlyUTXOStore root;
+    private Layer frozen;
+    private HashMap<UTXO, Transaction.Output> changes;
+    private long size;
+
+    /** Creates a new empty store */
+    public OverlayUTXOStore() {
+        this(null);
+    }
+
+    /**
+     * Creates a store holding the contents of {@code root}, which must not be changed afterwards
+     * by anyone else. The changes made to this store and its copies are kept in layers above it.
+     */
+    public OverlayUTXOStore(ReadOnlyUTXOStore root) {
+        this(root, null, root == null ? 0 : root.size());
+    }
+
+    private OverlayUTXOStore(ReadOnlyUTXOStore root, Layer frozen, long size) {
+        this.root = root;
+        this.frozen = frozen;
+        this.changes = new HashMap<>();
+        this.size = size;
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        if (!contains(utxo))
+            size++;
+        changes.put(utxo, txOut);
+    }
+
+    public void remove(UTXO utxo) {
+        if (!contains(utxo))
+            return;
+        size--;
+        if (frozen == null && root == null)
+            changes.remove(utxo);
+        else
+            changes.put(utxo, REMOVED);
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        Transaction.Output out = changes.get(utxo);
+        for (Layer layer = frozen; out == null && layer != null; layer = layer.below)
+            out = layer.entries.get(utxo);
+        if (out == null && root != null)
+            out = root.get(utxo);
+        return out == REMOVED ? null : out;
+    }
+
+    public boolean contains(UTXO utxo) {
+        return get(utxo) != null;
+    }
+
+    public ArrayList<UTXO> keys() {
+        //every key that was ever touched is a candidate, the live ones are those still found
+        HashSet<UTXO> candidates = new HashSet<>(changes.keySet());
+        for (Layer layer = frozen; layer != null; layer = layer.below)
+            candidates.addAll(layer.entries.keySet());
+        if (root != null)
+            candidates.addAll(root.keys());
+        ArrayList<UTXO> keys = new ArrayList<>();
+        for (UTXO utxo : candidates) {
+            if (contains(utxo))
+                keys.add(utxo);
+        }
+        return keys;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public UTXOStore copy() {
+        if (!changes.isEmpty()) {
+            frozen = merge(new Layer(frozen, changes));
+            changes = new HashMap<>();
+        }
+        return new OverlayUTXOStore(root, frozen, size);
+    }
+
+    /** Merges {@code top} into the layers below while it is at least half their size */
+    private Layer merge(Layer top) {
+        while (top.below != null && top.entries.size() * 2 >= top.below.entries.size()) {
+            Layer below = top.below;
+            HashMap<UTXO, Transaction.Output> entries = new HashMap<>(below.entries);
+            entries.putAll(top.entries);
+            //with nothing left below, a removal marker has nothing to hide
+            if (below.below == null && root == null)
+                entries.values().removeIf(out -> out == REMOVED);
+            top = new Layer(below.below, entries);
+        }
+        return top;
+    }
+}
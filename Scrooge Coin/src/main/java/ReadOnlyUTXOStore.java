@@ -0,0 +1,20 @@
+import java.util.ArrayList;
+
+/**
+ * Lookups into a set of UTXOs that cannot be changed through it, such as a snapshot file. It can
+ * back a {@link UTXOPool} as the bottom of an {@link OverlayUTXOStore}, which takes the changes.
+ */
+public interface ReadOnlyUTXOStore {
+
+    /** @return the output mapped to {@code utxo}, or null if there is none */
+    Transaction.Output get(UTXO utxo);
+
+    /** @return true if {@code utxo} is mapped to an output */
+    boolean contains(UTXO utxo);
+
+    /** @return all UTXOs held by the store */
+    ArrayList<UTXO> keys();
+
+    /** @return the number of UTXOs held by the store */
+    long size();
+}
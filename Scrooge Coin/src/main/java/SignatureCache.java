@@ -0,0 +1,164 @@
+
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of signature verification results, so that a transaction that is validated
+ * again - by the other handler, or in a later epoch after it was not selected - does not pay for
+ * its RSA checks twice. An entry is keyed by a digest of the public key, the signed data and the
+ * signature, and the cache is split into independently locked segments that each evict their
+ * least recently used entry once they are full.
+ */
+public class SignatureCache {
+
+    private static final int SEGMENTS = 16;
+
+    private static final SignatureCache SHARED = new SignatureCache(1 << 16);
+
+    private final Segment[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private static class Segment extends LinkedHashMap<ByteBuffer, Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        private Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    /** Creates a cache holding at most about {@code capacity} results */
+    public SignatureCache(int capacity) {
+        segments = new Segment[SEGMENTS];
+        int perSegment = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(perSegment);
+    }
+
+    /** @return the cache shared by all handlers that are not given one of their own */
+    public static SignatureCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return the same as {@code Crypto.verifySignature(pubKey, tx, index, signature)}, taken from
+     *         the cache when this check has been done before
+     */
+    public boolean verify(PublicKey pubKey, Transaction tx, int index, byte[] signature) {
+        ArrayList<Crypto.VerifyRequest> request = new ArrayList<>(1);
+        request.add(new Crypto.VerifyRequest(pubKey, tx, index, signature));
+        return verifyAll(request)[0];
+    }
+
+    /**
+     * @return the same as {@code Crypto.verifySignature(pubKey, view, index)}, taken from the
+     *         cache when this check has been done before, for the record or for the transaction
+     *         it decodes to
+     */
+    public boolean verify(PublicKey pubKey, TransactionView view, int index) {
+        ByteBuffer key = ByteBuffer.wrap(Crypto.digest(pubKey, view, index));
+        Boolean cached = get(key);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+        boolean valid = Crypto.verifySignature(pubKey, view, index);
+        put(key, valid);
+        return valid;
+    }
+
+    /**
+     * Same as {@link Crypto#verifyAll(List)}, but only the requests missing from the cache are
+     * actually verified, and their results are added to it.
+     */
+    public boolean[] verifyAll(List<Crypto.VerifyRequest> requests) {
+        boolean[] valid = new boolean[requests.size()];
+        ByteBuffer[] keys = new ByteBuffer[requests.size()];
+        ArrayList<Crypto.VerifyRequest> missing = new ArrayList<>();
+        ArrayList<Integer> missingAt = new ArrayList<>();
+        for (int i = 0; i < valid.length; i++) {
+            keys[i] = ByteBuffer.wrap(Crypto.digest(requests.get(i)));
+            Boolean cached = get(keys[i]);
+            if (cached != null) {
+                hits.increment();
+                valid[i] = cached;
+            } else {
+                misses.increment();
+                missing.add(requests.get(i));
+                missingAt.add(i);
+            }
+        }
+        if (!missing.isEmpty()) {
+            boolean[] verified = Crypto.verifyAll(missing);
+            for (int m = 0; m < verified.length; m++) {
+                int i = missingAt.get(m);
+                valid[i] = verified[m];
+                put(keys[i], verified[m]);
+            }
+        }
+        return valid;
+    }
+
+    /** @return the number of checks answered from the cache */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /** @return the number of checks that had to be verified */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /** @return the number of results currently held */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /** Drops all cached results, the counters are kept */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    private Segment segmentFor(ByteBuffer key) {
+        //the key is a digest already, any of its bytes is evenly spread
+        return segments[(key.get(0) & 0xff) % SEGMENTS];
+    }
+
+    private Boolean get(ByteBuffer key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    private void put(ByteBuffer key, boolean valid) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, valid);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Verifies the input signatures of a whole epoch up front, spreading the per-input RSA checks
+ * across the threads of a {@link ForkJoinPool}. The ledger is only read here, so the caller is
+ * free to apply the accepted transactions to it afterwards, one at a time and in order.
+ */
+public class SignatureVerifier {
+
+    /** number of signature checks handed to a worker at a time */
+    private static final int BATCH_SIZE = 16;
+
+    private final ForkJoinPool pool;
+    private final SignatureCache cache;
+
+    /** Creates a verifier that runs its checks on the common {@link ForkJoinPool} */
+    public SignatureVerifier() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /** Creates a verifier that runs its checks on {@code pool} */
+    public SignatureVerifier(ForkJoinPool pool) {
+        this(pool, SignatureCache.shared());
+    }
+
+    /**
+     * Creates a verifier that runs its checks on {@code pool}, skipping those already held by
+     * {@code cache}
+     */
+    public SignatureVerifier(ForkJoinPool pool, SignatureCache cache) {
+        this.pool = pool;
+        this.cache = cache;
+    }
+
+    /**
+     * @return an array holding, for each transaction in {@code txs}, whether every one of its
+     *         input signatures is valid. The public key of an input is taken from {@code ledger}
+     *         or, if the claimed output is created within the epoch, from the transaction in
+     *         {@code txs} that creates it. An input whose output cannot be found either way
+     *         makes its transaction fail, since it could never pass the pool check anyway.
+     */
+    public boolean[] verify(Transaction[] txs, UTXOPool ledger) {
+        return verify(txs, ledger, TxMetrics.DISABLED);
+    }
+
+    /**
+     * Same as {@link #verify(Transaction[], UTXOPool)}, timing the checks in {@code metrics}. The
+     * checks are timed a batch at a time, each counting for an equal share of its batch.
+     */
+    public boolean[] verify(Transaction[] txs, UTXOPool ledger, TxMetrics metrics) {
+        //index the transactions of this epoch by hash, so that inputs spending
+        //outputs created in the same epoch can find their public key
+        HashMap<ByteBuffer, Transaction> epochTxs = new HashMap<>();
+        for (Transaction tx : txs) {
+            if (tx.getHash() != null)
+                epochTxs.put(ByteBuffer.wrap(tx.getHash()), tx);
+        }
+
+        //flatten all inputs of the epoch into one list of signature checks,
+        //an input without a known public key fails its transaction right away
+        boolean[] txValid = new boolean[txs.length];
+        Arrays.fill(txValid, true);
+        ArrayList<Crypto.VerifyRequest> requests = new ArrayList<>();
+        ArrayList<Integer> txOf = new ArrayList<>();
+        for (int t = 0; t < txs.length; t++) {
+            for (int idx = 0; idx < txs[t].numInputs(); idx++) {
+                Crypto.VerifyRequest request = toRequest(txs[t], idx, ledger, epochTxs);
+                if (request == null) {
+                    txValid[t] = false;
+                } else {
+                    requests.add(request);
+                    txOf.add(t);
+                }
+            }
+        }
+
+        //hand out batches of checks, every batch writes only its own slots
+        boolean[] inputValid = new boolean[requests.size()];
+        int batches = (requests.size() + BATCH_SIZE - 1) / BATCH_SIZE;
+        Runnable checkAll = () -> IntStream.range(0, batches)
+                .parallel()
+                .forEach(b -> {
+                    int from = b * BATCH_SIZE;
+                    int to = Math.min(from + BATCH_SIZE, inputValid.length);
+                    long start = metrics.start();
+                    boolean[] valid = cache.verifyAll(requests.subList(from, to));
+                    metrics.checkedAll(ValidationRule.SIGNATURES_VALID, start, valid.length);
+                    System.arraycopy(valid, 0, inputValid, from, valid.length);
+                });
+        pool.submit(checkAll).join();
+
+        for (int i = 0; i < inputValid.length; i++)
+            txValid[txOf.get(i)] &= inputValid[i];
+        return txValid;
+    }
+
+    private Crypto.VerifyRequest toRequest(Transaction tx, int idx, UTXOPool ledger, HashMap<ByteBuffer, Transaction> epochTxs) {
+        Transaction.Input inp = tx.getInput(idx);
+        if (inp.prevTxHash == null)
+            return null;
+        PublicKey pk = null;
+        Transaction.Output out = ledger.getTxOutput(inp);
+        if (out != null) {
+            pk = out.address;
+        } else {
+            Transaction parent = epochTxs.get(ByteBuffer.wrap(inp.prevTxHash));
+            if (parent != null && inp.outputIndex >= 0 && parent.getOutput(inp.outputIndex) != null)
+                pk = parent.getOutput(inp.outputIndex).address;
+        }
+        if (pk == null)
+            return null;
+        return new Crypto.VerifyRequest(pk, tx, idx, inp.signature);
+    }
+}
@@ -1,8 +1,6 @@
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 
 public class Transaction {
@@ -14,6 +12,9 @@ public class Transaction {
         public int outputIndex;
         /** the signature produced to check validity */
         public byte[] signature;
+        /** key of the claimed output, kept as long as the fields above are not replaced */
+        private UTXO utxo;
+        private byte[] utxoHash;
 
         public Input(byte[] prevHash, int index) {
             if (prevHash == null)
@@ -29,18 +30,84 @@ public class Transaction {
             else
                 signature = Arrays.copyOf(sig, sig.length);
         }
+
+        /**
+         * @return the UTXO claimed by this input. It is created on the first call only, so that
+         *         repeated pool lookups for the same input do not allocate; assigning a new
+         *         {@code prevTxHash} or {@code outputIndex} makes the next call create it again.
+         */
+        public UTXO getUTXO() {
+            UTXO u = utxo;
+            if (u == null || utxoHash != prevTxHash || u.getIndex() != outputIndex) {
+                u = new UTXO(prevTxHash, outputIndex);
+                utxo = u;
+                utxoHash = prevTxHash;
+            }
+            return u;
+        }
     }
 
     public class Output {
-        /** value in bitcoins of the output */
-        public double value;
+        /** value of the output, in units of 1/{@link Amount#UNITS_PER_COIN} of a coin */
+        public long value;
         /** the address or public key of the recipient */
         public PublicKey address;
 
+        /** encoding of {@code address}, kept as long as {@code address} is not replaced */
+        private EncodedAddress encodedAddress;
+
+        /**
+         * Creates an output worth {@code v} coins, rounded to the nearest unit
+         *
+         * @throws IllegalArgumentException if {@code v} is negative, not a number or too large,
+         *         see {@link Amount#ofCoins}
+         */
         public Output(double v, PublicKey addr) {
-            value = v;
+            value = Amount.ofCoins(v);
             address = addr;
         }
+
+        /**
+         * Creates an output worth exactly {@code units}; the order of the arguments sets it apart
+         * from the constructor taking coins
+         */
+        public Output(PublicKey addr, long units) {
+            value = units;
+            address = addr;
+        }
+
+        /** @return the encoded form of {@code address}, computed once per address */
+        byte[] encodedAddress() {
+            PublicKey addr = address;
+            EncodedAddress encoded = encodedAddress;
+            if (encoded == null || encoded.key != addr) {
+                encoded = new EncodedAddress(addr);
+                encodedAddress = encoded;
+            }
+            return encoded.bytes;
+        }
+
+        /** @return the number of bytes this output takes in the raw encodings */
+        int rawSize() {
+            return Long.BYTES + encodedAddress().length;
+        }
+
+        /** Writes the value and address of this output to {@code buf} */
+        void writeRaw(ByteBuffer buf) {
+            buf.putLong(value);
+            buf.put(encodedAddress());
+        }
+    }
+
+    /** a public key together with its encoding, safe to share between threads */
+    private static class EncodedAddress {
+        private final PublicKey key;
+        private final byte[] bytes;
+
+        private EncodedAddress(PublicKey key) {
+            this.key = key;
+            this.bytes = key.getEncoded();
+        }
     }
 
     /** hash of the transaction, its unique id */
@@ -64,11 +131,24 @@ public class Transaction {
         inputs.add(in);
     }
 
+    /**
+     * Adds an output worth {@code value} coins, rounded to the nearest unit
+     *
+     * @throws IllegalArgumentException if {@code value} is negative, not a number or too large,
+     *         see {@link Amount#ofCoins}; an output of a negative value, which no transaction may
+     *         have, can be made with {@link #addOutputUnits}
+     */
     public void addOutput(double value, PublicKey address) {
         Output op = new Output(value, address);
         outputs.add(op);
     }
 
+    /** Adds an output worth exactly {@code units}, see {@link Amount} */
+    public void addOutputUnits(long units, PublicKey address) {
+        Output op = new Output(address, units);
+        outputs.add(op);
+    }
+
     public void removeInput(int index) {
         inputs.remove(index);
     }
@@ -76,8 +156,7 @@ public class Transaction {
     public void removeInput(UTXO ut) {
         for (int i = 0; i < inputs.size(); i++) {
             Input in = inputs.get(i);
-            UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
-            if (u.equals(ut)) {
+            if (in.getUTXO().equals(ut)) {
                 inputs.remove(i);
                 return;
             }
@@ -86,86 +165,100 @@ public class Transaction {
 
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
             return null;
-        Input in = inputs.get(index);
-        byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
-        if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-
-            for (int i = 0; i < addressBytes.length; i++)
-                sigData.add(addressBytes[i]);
-        }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
+        byte[] sigD = new byte[rawDataToSignSize(index)];
+        writeRawDataToSign(index, ByteBuffer.wrap(sigD));
         return sigD;
     }
 
+    /** @return the length of the array returned by {@code getRawDataToSign(index)} */
+    public int rawDataToSignSize(int index) {
+        Input in = inputs.get(index);
+        int size = Integer.BYTES + outputsSize();
+        if (in.prevTxHash != null)
+            size += in.prevTxHash.length;
+        return size;
+    }
+
+    /**
+     * Writes the data signed by input {@code index}, i.e. the contents of
+     * {@code getRawDataToSign(index)}, to {@code buf}, which must have
+     * {@code rawDataToSignSize(index)} bytes remaining
+     */
+    public void writeRawDataToSign(int index, ByteBuffer buf) {
+        Input in = inputs.get(index);
+        if (in.prevTxHash != null)
+            buf.put(in.prevTxHash);
+        buf.putInt(in.outputIndex);
+        writeOutputs(buf);
+    }
+
+    /**
+     * @return the encoding of all outputs, which ends the data signed by every input. It is built
+     *         anew on every call, since the outputs and their fields may be changed at any time;
+     *         only the encodings of the addresses are kept, see {@link Output#encodedAddress()}.
+     */
+    byte[] outputsSection() {
+        ByteBuffer buf = ByteBuffer.allocate(outputsSize());
+        writeOutputs(buf);
+        return buf.array();
+    }
+
+    /** @return the length of {@link #outputsSection()} */
+    int outputsSize() {
+        int size = 0;
+        for (Output op : outputs)
+            size += op.rawSize();
+        return size;
+    }
+
+    /** Writes the contents of {@link #outputsSection()} to {@code buf} */
+    void writeOutputs(ByteBuffer buf) {
+        for (Output op : outputs)
+            op.writeRaw(buf);
+    }
+
     public void addSignature(byte[] signature, int index) {
         inputs.get(index).addSignature(signature);
     }
 
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
+        byte[] tx = new byte[rawTxSize()];
+        writeRawTx(ByteBuffer.wrap(tx));
+        return tx;
+    }
+
+    /** @return the length of the array returned by {@code getRawTx()} */
+    public int rawTxSize() {
+        int size = 0;
         for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
+            size += Integer.BYTES;
+            if (in.prevTxHash != null)
+                size += in.prevTxHash.length;
+            if (in.signature != null)
+                size += in.signature.length;
         }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++) {
-                rawTx.add(value[i]);
-            }
-            for (int i = 0; i < addressBytes.length; i++) {
-                rawTx.add(addressBytes[i]);
-            }
+        return size + outputsSize();
+    }
 
+    /**
+     * Writes the contents of {@code getRawTx()} to {@code buf}, which must have
+     * {@code rawTxSize()} bytes remaining
+     */
+    public void writeRawTx(ByteBuffer buf) {
+        for (Input in : inputs) {
+            if (in.prevTxHash != null)
+                buf.put(in.prevTxHash);
+            buf.putInt(in.outputIndex);
+            if (in.signature != null)
+                buf.put(in.signature);
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
+        writeOutputs(buf);
     }
 
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
-        }
+        hash = Crypto.hash(getRawTx());
     }
 
     public void setHash(byte[] h) {
@@ -0,0 +1,232 @@
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A read-only flyweight over one transaction in the wire format of {@link TxCodec}, read straight
+ * from a ByteBuffer, which may be a MappedByteBuffer over a block file. Wrapping a record only
+ * locates its inputs and outputs; nothing is copied, and one view can be moved from record to
+ * record without allocating once its offset tables are large enough:
+ *
+ * <pre>
+ * TransactionView view = new TransactionView();
+ * for (int offset = 0; offset &lt; buf.limit(); offset = view.end()) {
+ *     view.wrap(buf, offset);
+ *     ...
+ * }
+ * </pre>
+ *
+ * The view reads the buffer with absolute gets in big-endian order, whatever the order of the
+ * buffer, and never moves its position. A view is not safe to share between threads.
+ */
+public class TransactionView {
+
+    /** the buffer last wrapped, and a big-endian duplicate of it to read from */
+    private ByteBuffer source;
+    private ByteBuffer buf;
+    /** a second duplicate, handed out by {@link #range(int, int)} */
+    private ByteBuffer range;
+
+    private int start;
+    private int end;
+    private int hashOffset;
+    private int hashLength;
+    private int numInputs;
+    private int numOutputs;
+    /** offset of the length byte of the previous hash of each input */
+    private int[] inputOffsets = new int[8];
+    /** offset of each output within the outputs section */
+    private int[] outputOffsets = new int[8];
+    private int outputsSectionOffset;
+    private int outputsSectionLength;
+
+    /**
+     * Points this view at the record starting at {@code offset} of {@code buffer}, up to its
+     * current limit
+     *
+     * @return this view
+     * @throws IndexOutOfBoundsException if the record runs past the limit of {@code buffer}
+     * @throws IllegalArgumentException if the record is not well formed
+     */
+    public TransactionView wrap(ByteBuffer buffer, int offset) {
+        if (buffer != source) {
+            source = buffer;
+            buf = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+            range = buffer.duplicate();
+        } else {
+            //the limit may have moved since, e.g. as records were appended
+            buf.limit(buffer.limit());
+        }
+        start = offset;
+        int length = buf.getInt(offset);
+        end = offset + Integer.BYTES + length;
+        if (length < 0 || end > buf.limit() || end < offset)
+            throw new IndexOutOfBoundsException("record at " + offset + " runs past the buffer");
+
+        int pos = offset + Integer.BYTES;
+        hashLength = buf.get(pos) & 0xff;
+        hashOffset = pos + 1;
+        pos = hashOffset + hashLength;
+
+        numInputs = buf.getShort(pos) & 0xffff;
+        pos += Short.BYTES;
+        if (inputOffsets.length < numInputs)
+            inputOffsets = Arrays.copyOf(inputOffsets, Math.max(numInputs, inputOffsets.length * 2));
+        for (int i = 0; i < numInputs; i++) {
+            inputOffsets[i] = pos;
+            pos += 1 + (buf.get(pos) & 0xff) + Integer.BYTES;
+            pos += Short.BYTES + (buf.getShort(pos) & 0xffff);
+        }
+
+        numOutputs = buf.getShort(pos) & 0xffff;
+        pos += Short.BYTES;
+        if (outputOffsets.length < numOutputs)
+            outputOffsets = Arrays.copyOf(outputOffsets, Math.max(numOutputs, outputOffsets.length * 2));
+        int addressLengths = pos;
+        outputsSectionOffset = pos + numOutputs * Short.BYTES;
+        int out = outputsSectionOffset;
+        for (int j = 0; j < numOutputs; j++) {
+            outputOffsets[j] = out;
+            out += Long.BYTES + (buf.getShort(addressLengths + j * Short.BYTES) & 0xffff);
+        }
+        outputsSectionLength = out - outputsSectionOffset;
+        if (out != end)
+            throw new IllegalArgumentException("malformed record at " + offset);
+        return this;
+    }
+
+    /** @return the offset of the record in the buffer */
+    public int start() {
+        return start;
+    }
+
+    /** @return the offset just past the record, where the next one starts */
+    public int end() {
+        return end;
+    }
+
+    /** @return true if the record carries a hash */
+    public boolean hasHash() {
+        return hashLength > 0;
+    }
+
+    /** @return a copy of the hash of the transaction, or null if it has none */
+    public byte[] getHash() {
+        return hasHash() ? copy(hashOffset, hashLength) : null;
+    }
+
+    /** @return true if the hash of the transaction equals {@code hash} */
+    public boolean hashEquals(byte[] hash) {
+        if (hash == null)
+            return !hasHash();
+        if (hash.length != hashLength)
+            return false;
+        for (int i = 0; i < hashLength; i++) {
+            if (buf.get(hashOffset + i) != hash[i])
+                return false;
+        }
+        return true;
+    }
+
+    public int numInputs() {
+        return numInputs;
+    }
+
+    public int numOutputs() {
+        return numOutputs;
+    }
+
+    /** @return the UTXO claimed by input {@code i}, built from the buffer without copying its hash */
+    public UTXO utxo(int i) {
+        int pos = inputOffsets[i];
+        int length = buf.get(pos) & 0xff;
+        int index = buf.getInt(pos + 1 + length);
+        if (length == 32)
+            return new UTXO(buf.getLong(pos + 1), buf.getLong(pos + 9), buf.getLong(pos + 17), buf.getLong(pos + 25), index);
+        return new UTXO(copy(pos + 1, length), index);
+    }
+
+    /** @return the offset of the hash of the transaction whose output input {@code i} claims */
+    public int prevTxHashOffset(int i) {
+        return inputOffsets[i] + 1;
+    }
+
+    /** @return the length of the hash of the transaction whose output input {@code i} claims */
+    public int prevTxHashLength(int i) {
+        return buf.get(inputOffsets[i]) & 0xff;
+    }
+
+    /** @return the index of the output claimed by input {@code i} */
+    public int outputIndex(int i) {
+        return buf.getInt(prevTxHashOffset(i) + prevTxHashLength(i));
+    }
+
+    /** @return the offset of the signature of input {@code i} */
+    public int signatureOffset(int i) {
+        return prevTxHashOffset(i) + prevTxHashLength(i) + Integer.BYTES + Short.BYTES;
+    }
+
+    /** @return the length of the signature of input {@code i}, 0 if it has none */
+    public int signatureLength(int i) {
+        return buf.getShort(signatureOffset(i) - Short.BYTES) & 0xffff;
+    }
+
+    /** @return a copy of the signature of input {@code i}, or null if it has none */
+    public byte[] getSignature(int i) {
+        int length = signatureLength(i);
+        return length == 0 ? null : copy(signatureOffset(i), length);
+    }
+
+    /** @return the value of output {@code j}, in units */
+    public long outputValue(int j) {
+        return buf.getLong(outputOffsets[j]);
+    }
+
+    /** @return the offset of the encoded address of output {@code j} */
+    public int addressOffset(int j) {
+        return outputOffsets[j] + Long.BYTES;
+    }
+
+    /** @return the length of the encoded address of output {@code j} */
+    public int addressLength(int j) {
+        int next = j + 1 < numOutputs ? outputOffsets[j + 1] : outputsSectionOffset + outputsSectionLength;
+        return next - addressOffset(j);
+    }
+
+    /**
+     * @return the offset of the outputs section, which holds exactly the bytes of
+     *         {@link Transaction#outputsSection()}, i.e. the part of the signed data shared by all
+     *         inputs
+     */
+    public int outputsSectionOffset() {
+        return outputsSectionOffset;
+    }
+
+    public int outputsSectionLength() {
+        return outputsSectionLength;
+    }
+
+    /** @return the byte at {@code offset} of the wrapped buffer */
+    public byte byteAt(int offset) {
+        return buf.get(offset);
+    }
+
+    /**
+     * @return a buffer whose position and limit frame {@code length} bytes at {@code offset} of the
+     *         wrapped buffer. The same buffer object is returned by every call, so the range is
+     *         only good until the next one.
+     */
+    public ByteBuffer range(int offset, int length) {
+        range.limit(offset + length);
+        range.position(offset);
+        return range;
+    }
+
+    private byte[] copy(int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = buf.get(offset + i);
+        return bytes;
+    }
+}
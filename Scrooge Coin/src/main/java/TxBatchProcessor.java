@@ -0,0 +1,169 @@
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/**
+ * Processes an epoch of transactions in dependency order instead of array order. A parent/child
+ * graph is built from {@link Transaction.Input#prevTxHash}, every transaction whose parents are
+ * already in the ledger is validated concurrently, and a child is pulled into the next round as
+ * soon as all of its in-epoch parents have been committed. The number of rounds is the length of
+ * the longest dependency chain in the epoch, not the number of transactions.
+ *
+ * <p>Validation follows the stages of {@link TxValidator}: the stateless rules are checked for the
+ * whole epoch up front, unless the transactions were pre-validated as they arrived, and only the
+ * transactions that passed them enter the dependency graph. The ledger stage is checked for each
+ * round, and the signatures of only those transactions of the round that passed it are verified
+ * together, in batches.
+ */
+public class TxBatchProcessor {
+
+    private final TxHandler handler;
+    private final ForkJoinPool pool;
+    private final SignatureVerifier verifier;
+
+    /** Creates a processor that validates and commits into the ledger of {@code handler} */
+    public TxBatchProcessor(TxHandler handler, ForkJoinPool pool) {
+        this(handler, pool, SignatureCache.shared());
+    }
+
+    /** Same as {@link #TxBatchProcessor(TxHandler, ForkJoinPool)}, using {@code signatureCache} */
+    public TxBatchProcessor(TxHandler handler, ForkJoinPool pool, SignatureCache signatureCache) {
+        this.handler = handler;
+        this.pool = pool;
+        this.verifier = new SignatureVerifier(pool, signatureCache);
+    }
+
+    /**
+     * Validates {@code possibleTxs} in dependency order, commits every valid one to the ledger of
+     * the handler and returns the accepted transactions in the order they were committed, which
+     * is always a valid order to apply them in.
+     */
+    public Transaction[] process(Transaction[] possibleTxs) {
+        TxValidator validator = handler.validator;
+        //the stateless rules do not depend on commit order, so check them all at once
+        TxValidator.Context[] preValidated = new TxValidator.Context[possibleTxs.length];
+        pool.submit(() -> IntStream.range(0, possibleTxs.length)
+                .parallel()
+                .forEach(i -> preValidated[i] = validator.preValidate(possibleTxs[i])))
+                .join();
+        return process(preValidated);
+    }
+
+    /**
+     * Same as {@link #process(Transaction[])}, for transactions that went through
+     * {@link TxValidator#preValidate} already. Only those that passed it are looked up in the
+     * ledger and have their signatures verified; a context not pre-validated yet is checked here.
+     */
+    public Transaction[] process(TxValidator.Context[] preValidated) {
+        ArrayList<Transaction> accepted = new ArrayList<>();
+        long fees = process(preValidated, accepted::add);
+        handler.metrics.epoch(preValidated.length, accepted.size(), fees);
+        return accepted.toArray(new Transaction[accepted.size()]);
+    }
+
+    /**
+     * Same as {@link #process(TxValidator.Context[])}, handing each transaction to
+     * {@code committed} as soon as it is committed, and without recording an epoch in the metrics
+     *
+     * @return the total fee of the committed transactions
+     */
+    long process(TxValidator.Context[] preValidated, Consumer<Transaction> committed) {
+        UTXOPool ledger = handler.ledger;
+        TxMetrics metrics = handler.metrics;
+        TxValidator validator = handler.validator;
+        TxValidator.Context[] contexts = Arrays.stream(preValidated)
+                .filter(ctx -> validator.checkStateless(ctx) == null)
+                .toArray(TxValidator.Context[]::new);
+        Transaction[] possibleTxs = Arrays.stream(contexts)
+                .map(TxValidator.Context::tx)
+                .toArray(Transaction[]::new);
+
+        //index the epoch by hash, the first copy of a duplicated transaction wins
+        HashMap<ByteBuffer, Integer> byHash = new HashMap<>();
+        for (int i = 0; i < possibleTxs.length; i++) {
+            if (possibleTxs[i].getHash() != null)
+                byHash.putIfAbsent(ByteBuffer.wrap(possibleTxs[i].getHash()), i);
+        }
+
+        //link every transaction to the epoch transactions whose outputs it spends
+        int[] pendingParents = new int[possibleTxs.length];
+        List<List<Integer>> children = new ArrayList<>(possibleTxs.length);
+        for (int i = 0; i < possibleTxs.length; i++)
+            children.add(new ArrayList<>());
+        for (int i = 0; i < possibleTxs.length; i++) {
+            Set<Integer> parents = new HashSet<>();
+            for (Transaction.Input inp : possibleTxs[i].getInputs()) {
+                if (inp.prevTxHash == null)
+                    continue;
+                Integer parent = byHash.get(ByteBuffer.wrap(inp.prevTxHash));
+                //an output that is already unspent needs no parent in this epoch
+                if (parent != null && parent != i && !ledger.contains(inp))
+                    parents.add(parent);
+            }
+            pendingParents[i] = parents.size();
+            for (int parent : parents)
+                children.get(parent).add(i);
+        }
+
+        List<Integer> ready = new ArrayList<>();
+        for (int i = 0; i < possibleTxs.length; i++) {
+            if (pendingParents[i] == 0)
+                ready.add(i);
+        }
+
+        long fees = 0;
+        while (!ready.isEmpty()) {
+            int[] round = ready.stream().mapToInt(Integer::intValue).toArray();
+            //the ledger is only read while the round is validated
+            ValidationResult[] results = new ValidationResult[round.length];
+            pool.submit(() -> IntStream.range(0, round.length)
+                    .parallel()
+                    .forEach(r -> {
+                        results[r] = validator.checkLedger(contexts[round[r]], ledger::getTxOutput);
+                    }))
+                    .join();
+            //only the transactions left are worth an RSA check
+            int[] unsigned = IntStream.range(0, round.length).filter(r -> results[r] == null).toArray();
+            boolean[] signed = verifier.verify(Arrays.stream(unsigned)
+                    .mapToObj(r -> possibleTxs[round[r]])
+                    .toArray(Transaction[]::new), ledger, metrics);
+            for (int u = 0; u < unsigned.length; u++) {
+                TxValidator.Context ctx = contexts[round[unsigned[u]]];
+                ValidationResult result = validator.checkSignatures(ctx, signed[u]);
+                results[unsigned[u]] = result != null ? result : ValidationResult.valid(ctx.fee());
+            }
+
+            //commit serially in array order, transactions of the same round
+            //may still conflict with each other over an input, the later one
+            //then fails to claim it
+            List<Integer> next = new ArrayList<>();
+            for (int r = 0; r < round.length; r++) {
+                Transaction tx = possibleTxs[round[r]];
+                if (!results[r].isValid())
+                    continue;
+                if (!handler.updatePoolLedger(tx)) {
+                    metrics.rejected(ValidationRule.INPUTS_IN_POOL, ValidationResult.NO_INDEX);
+                    continue;
+                }
+                committed.accept(tx);
+                fees = Amount.addSaturated(fees, results[r].fee());
+                for (int child : children.get(round[r])) {
+                    if (--pendingParents[child] == 0)
+                        next.add(child);
+                }
+            }
+            Collections.sort(next);
+            ready = next;
+        }
+        return fees;
+    }
+}
@@ -0,0 +1,147 @@
+
+import java.nio.ByteBuffer;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.HashMap;
+
+/**
+ * Encodes transactions into a compact, length-prefixed binary record and decodes them again. A
+ * file of records laid end to end can be read in place with a {@link TransactionView}. A record
+ * is, in big-endian order:
+ *
+ * <pre>
+ * int    length of the rest of the record
+ * u8     hash length, then the hash (length 0: no hash)
+ * u16    number of inputs, then per input:
+ *          u8 previous hash length, previous hash, int output index,
+ *          u16 signature length, signature (length 0: no signature)
+ * u16    number of outputs
+ * u16    encoded address length of each output
+ *        outputs section: per output long value in units, encoded address
+ * </pre>
+ *
+ * The outputs section is byte for byte {@link Transaction#outputsSection()}, so signatures and
+ * the transaction hash can be checked straight from the record, see
+ * {@link Crypto#verifySignature(PublicKey, TransactionView, int)} and
+ * {@link Crypto#hash(TransactionView)}. A missing previous hash is decoded as an empty one.
+ *
+ * <p>Decoding turns each distinct address into a PublicKey once per codec, so that the outputs of
+ * decoded transactions share their keys. A codec is not safe to share between threads.
+ */
+public class TxCodec {
+
+    private static final int MAX_U8 = 0xff;
+    private static final int MAX_U16 = 0xffff;
+
+    private final KeyFactory keyFactory;
+    private final HashMap<ByteBuffer, PublicKey> keys = new HashMap<>();
+
+    /** @throws NoSuchAlgorithmException if no RSA key factory is available */
+    public TxCodec() throws NoSuchAlgorithmException {
+        this.keyFactory = KeyFactory.getInstance("RSA");
+    }
+
+    /**
+     * @return the length of the record of {@code tx}, including its length prefix
+     * @throws IllegalArgumentException if a field of {@code tx} is too long for the format
+     */
+    public static int encodedSize(Transaction tx) {
+        int size = Integer.BYTES + 1 + checkLength(tx.getHash(), MAX_U8) + Short.BYTES;
+        for (Transaction.Input in : tx.getInputs()) {
+            size += 1 + checkLength(in.prevTxHash, MAX_U8) + Integer.BYTES;
+            size += Short.BYTES + checkLength(in.signature, MAX_U16);
+        }
+        size += Short.BYTES + tx.numOutputs() * Short.BYTES + tx.outputsSize();
+        return size;
+    }
+
+    /**
+     * Writes the record of {@code tx} to {@code buf}, which must have {@link #encodedSize}
+     * bytes remaining
+     */
+    public static void encode(Transaction tx, ByteBuffer buf) {
+        int size = encodedSize(tx);
+        if (tx.numInputs() > MAX_U16 || tx.numOutputs() > MAX_U16)
+            throw new IllegalArgumentException("too many inputs or outputs");
+        buf.putInt(size - Integer.BYTES);
+        putBytes(buf, tx.getHash(), true);
+        buf.putShort((short) tx.numInputs());
+        for (Transaction.Input in : tx.getInputs()) {
+            putBytes(buf, in.prevTxHash, true);
+            buf.putInt(in.outputIndex);
+            putBytes(buf, in.signature, false);
+        }
+        buf.putShort((short) tx.numOutputs());
+        for (Transaction.Output op : tx.getOutputs())
+            buf.putShort((short) op.encodedAddress().length);
+        tx.writeOutputs(buf);
+    }
+
+    /** @return the record of {@code tx} */
+    public static byte[] encode(Transaction tx) {
+        byte[] record = new byte[encodedSize(tx)];
+        encode(tx, ByteBuffer.wrap(record));
+        return record;
+    }
+
+    /**
+     * @return the transaction of the record {@code view} is on
+     * @throws InvalidKeySpecException if an address is not an encoded RSA public key
+     */
+    public Transaction decode(TransactionView view) throws InvalidKeySpecException {
+        Transaction tx = new Transaction();
+        for (int i = 0; i < view.numInputs(); i++) {
+            byte[] prevTxHash = new byte[view.prevTxHashLength(i)];
+            view.range(view.prevTxHashOffset(i), prevTxHash.length).get(prevTxHash);
+            tx.addInput(prevTxHash, view.outputIndex(i));
+            tx.addSignature(view.getSignature(i), i);
+        }
+        for (int j = 0; j < view.numOutputs(); j++)
+            tx.addOutputUnits(view.outputValue(j), keyAt(view, view.addressOffset(j), view.addressLength(j)));
+        tx.setHash(view.getHash());
+        return tx;
+    }
+
+    /**
+     * @return the transaction of the record at the position of {@code buf}, whose position is
+     *         moved past the record
+     */
+    public Transaction decode(ByteBuffer buf) throws InvalidKeySpecException {
+        TransactionView view = new TransactionView().wrap(buf, buf.position());
+        Transaction tx = decode(view);
+        buf.position(view.end());
+        return tx;
+    }
+
+    private PublicKey keyAt(TransactionView view, int offset, int length) throws InvalidKeySpecException {
+        byte[] encoded = new byte[length];
+        view.range(offset, length).get(encoded);
+        ByteBuffer id = ByteBuffer.wrap(encoded);
+        PublicKey key = keys.get(id);
+        if (key == null) {
+            key = keyFactory.generatePublic(new X509EncodedKeySpec(encoded));
+            keys.put(id, key);
+        }
+        return key;
+    }
+
+    private static int checkLength(byte[] bytes, int max) {
+        int length = bytes == null ? 0 : bytes.length;
+        if (length > max)
+            throw new IllegalArgumentException("field of " + length + " bytes, at most " + max + " allowed");
+        return length;
+    }
+
+    private static void putBytes(ByteBuffer buf, byte[] bytes, boolean byteLength) {
+        int length = bytes == null ? 0 : bytes.length;
+        if (byteLength)
+            buf.put((byte) length);
+        else
+            buf.putShort((short) length);
+        if (bytes != null)
+            buf.put(bytes);
+    }
+}
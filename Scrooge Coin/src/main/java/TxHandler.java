@@ -1,10 +1,9 @@
 
-import java.security.PublicKey;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.function.Function;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -12,6 +11,14 @@ public class TxHandler {
     
     public UTXOPool ledger;
 
+    /** the rules each transaction is checked against, see {@link #getValidator} */
+    final TxValidator validator;
+    final TxBatchProcessor batchProcessor;
+    private final TxStreamProcessor streamProcessor;
+    private final EpochJournal journal;
+    /** where validation is timed and rejections are counted, see {@link #setMetrics} */
+    TxMetrics metrics = TxMetrics.DISABLED;
+
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
      * {@code utxoPool}. This should make a copy of utxoPool by using the UTXOPool(UTXOPool uPool)
@@ -19,7 +26,38 @@ public class TxHandler {
      */
     public TxHandler(UTXOPool utxoPool) {
         // IMPLEMENT THIS
+        this(utxoPool, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Same as {@link #TxHandler(UTXOPool)}, but the input signatures and independent transactions
+     * of each epoch are validated on the threads of {@code workerPool}.
+     */
+    public TxHandler(UTXOPool utxoPool, ForkJoinPool workerPool) {
+        this(utxoPool, workerPool, SignatureCache.shared());
+    }
+
+    /**
+     * Same as {@link #TxHandler(UTXOPool, ForkJoinPool)}, but signature checks are looked up in
+     * and added to {@code signatureCache} instead of the shared cache.
+     */
+    public TxHandler(UTXOPool utxoPool, ForkJoinPool workerPool, SignatureCache signatureCache) {
+        this(utxoPool, workerPool, signatureCache, null);
+    }
+
+    /**
+     * Same as {@link #TxHandler(UTXOPool, ForkJoinPool, SignatureCache)}, but the transactions
+     * accepted in each epoch are committed to {@code journal} before {@link #handleTxs} returns
+     * them, so that the ledger can be recovered after a crash. {@code utxoPool} must be the pool
+     * after the last epoch of the journal, e.g. as returned by
+     * {@link EpochJournal#recover(java.nio.file.Path, UTXOPool, EpochJournal)}.
+     */
+    public TxHandler(UTXOPool utxoPool, ForkJoinPool workerPool, SignatureCache signatureCache, EpochJournal journal) {
         this.ledger = new UTXOPool(utxoPool);
+        this.validator = new TxValidator(signatureCache);
+        this.batchProcessor = new TxBatchProcessor(this, workerPool, signatureCache);
+        this.streamProcessor = new TxStreamProcessor(this, workerPool);
+        this.journal = journal;
     }
 
     /**
@@ -27,99 +65,146 @@ public class TxHandler {
      * (1) all outputs claimed by {@code tx} are in the current UTXO pool, 
      * (2) the signatures on each input of {@code tx} are valid, 
      * (3) no UTXO is claimed multiple times by {@code tx},
-     * (4) all of {@code tx}s output values are non-negative, and
+     * (4) all of {@code tx}s output values are non-negative,
      * (5) the sum of {@code tx}s input values is greater than or equal to the sum of its output
-     *     values; and false otherwise.
+     *     values,
+     * (6) every input of {@code tx} carries a signature of a size an RSA key can produce, and
+     * (7) the hash of {@code tx} is the SHA-256 of its raw data; and false otherwise. Rules added
+     *     to the validator are checked as well.
      */
     public boolean isValidTx(Transaction tx) {
+        return validate(tx).isValid();
+    }
+
+    /**
+     * Checks the same rules as {@link #isValidTx(Transaction)}, cheapest first as laid out by
+     * {@link TxValidator}, so no signature is verified for a transaction breaking another rule
+     *
+     * @return the fee of {@code tx} if it is valid, and otherwise the first rule it breaks with
+     *         the input breaking it
+     */
+    public ValidationResult validate(Transaction tx) {
         // check all tests
-        return (allInputsInPool(tx) && //valid inputs
-                allInputSignaturesValid(tx) && //valid signatures
-                noInputsClaimedMultiple(tx) && //no double spending of inputs
-                allOutputsNonNegative(tx) && //valid outputs
-                (transactionFee(tx) >= 0.0)); //proper transaction
+        return validator.validate(tx, ledger);
+    }
+
+    /** @return the validator of this handler, which further rules can be added to */
+    public TxValidator getValidator() {
+        return validator;
+    }
+
+    /**
+     * Makes this handler time its checks, count its rejections and record its epochs in
+     * {@code metrics}, which may be shared with other handlers
+     */
+    public void setMetrics(TxMetrics metrics) {
+        this.metrics = metrics;
+        validator.setMetrics(metrics);
     }
 
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
-     * updating the current UTXO pool as appropriate.
+     * updating the current UTXO pool as appropriate. A transaction that spends the output of
+     * another transaction in the same epoch is accepted regardless of where it appears in the
+     * array, the returned array lists the accepted transactions in the order they were applied.
+     *
+     * @throws UncheckedIOException if the epoch could not be journaled, the ledger then holds
+     *         the epoch but a recovered one would not
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
-        return Arrays.stream(possibleTxs)
-                .filter( tx -> isValidTx(tx))
-                .peek(this::updatePoolLedger)
-                .toArray(Transaction[]::new);
+        return commit(batchProcessor.process(possibleTxs));
+    }
+
+    /**
+     * Same as {@link #handleTxs(Transaction[])}, for transactions pre-validated as they arrived
+     * by {@link #preValidate}, or by another validator such as that of a {@link Mempool}, whose
+     * stateless rules are not checked again. Those rejected take no part in the epoch beyond being
+     * counted as proposed; the others are only looked up in the ledger and have their signatures
+     * checked.
+     */
+    public Transaction[] handleTxs(TxValidator.Context[] preValidated) {
+        return commit(batchProcessor.process(preValidated));
+    }
+
+    /**
+     * Same as {@link #handleTxs(Transaction[])}, for an epoch taken from {@code possibleTxs} as its
+     * transactions arrive, see {@link TxStreamProcessor}. Each accepted transaction is handed to
+     * {@code accepted} once it is committed, and journaled, rather than when the epoch ends; the
+     * epoch is never held in memory as a whole.
+     *
+     * @return the number of transactions accepted
+     * @throws UncheckedIOException if part of the epoch could not be journaled, the ledger then
+     *         holds it but a recovered one would not
+     */
+    public long handleTxs(Iterator<Transaction> possibleTxs, Consumer<Transaction> accepted) {
+        return streamProcessor.process(possibleTxs, accepted);
+    }
+
+    /**
+     * Checks the rules of {@code tx} that do not depend on the ledger, see
+     * {@link TxValidator#preValidate}. This may be called from any number of threads, also while
+     * an epoch is being handled.
+     */
+    public TxValidator.Context preValidate(Transaction tx) {
+        return validator.preValidate(tx);
+    }
+
+    /**
+     * Journals {@code accepted}, which were just applied to the ledger, as one epoch
+     *
+     * @return {@code accepted}
+     */
+    Transaction[] commit(Transaction[] accepted) {
+        if (journal != null) {
+            try {
+                journal.commit(accepted);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * Journals {@code accepted}, which were just applied to the ledger, as a part of the epoch
+     * being handled, see {@link EpochJournal#commitPart}
+     *
+     * @return {@code accepted}
+     */
+    Transaction[] commitPart(Transaction[] accepted) {
+        if (journal != null) {
+            try {
+                journal.commitPart(accepted);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return accepted;
+    }
+
+    /** Ends the epoch whose parts {@link #commitPart} journaled */
+    void endEpoch() {
+        if (journal != null)
+            journal.endEpoch();
     }
     
-    private void updatePoolLedger(Transaction tx) {
+    /**
+     * Applies {@code tx} to the ledger. Its inputs are claimed all at once or not at all, so
+     * this is safe against a concurrent spend of the same UTXO.
+     *
+     * @return false if some input was already spent, the ledger is then left unchanged
+     */
+    boolean updatePoolLedger(Transaction tx) {
         //update UTXOPool ledger
         //remove all inputs from the ledger, since they are not 'spent'
-        tx.getInputs().forEach(inp -> ledger.removeUTXO(new UTXO(inp.prevTxHash, inp.outputIndex)));
+        if (!ledger.trySpend(tx.getInputs().stream().map(inp -> inp.getUTXO()).collect(Collectors.toList())))
+            return false;
 
         //add all outputs to the ledger, since they are 'unspent'
         IntStream.range(0, tx.numOutputs())
                 .forEach(idx -> ledger.addUTXO(new UTXO(tx.getHash(), idx), tx.getOutput(idx)));
-        
-    }
-
-    private boolean allInputsInPool(Transaction tx) {
-        // (1) all outputs claimed by {@code tx} are in the current UTXO pool        
-        // basically check all inputs must be in the UTXOPool
-        // so that they can be claimed in this tx
-        return tx.getInputs().stream() //get inputs
-                .map(inp ->  new UTXO(inp.prevTxHash,inp.outputIndex)) // create UTXO temporaily with tx hash and index
-                .allMatch( utxo -> ledger.contains(utxo)); //check if UTXO exist in pool, else return false
-     
-    }
-
-    private boolean allInputSignaturesValid(Transaction tx) {
-        // (2) the signatures on each input of {@code tx} are valid
-        return IntStream.range(0, tx.numInputs())
-                .allMatch(idx -> {
-                    //get input at idx
-                    Transaction.Input inp = tx.getInput(idx);
-                    //since it exists check if the signature is valid
-                    //get raw data
-                    byte[] msg = tx.getRawDataToSign(idx);
-                    //get signature
-                    byte[] sig = inp.signature;
-                    //get public key
-                    //go into UTXOPool and get the output
-                    PublicKey pk = ledger.getTxOutput(new UTXO(inp.prevTxHash, inp.outputIndex)).address;
-                    //verify signatures, if not verified return false
-                    return Crypto.verifySignature(pk, msg, sig);
-                });
-    }
-
-    private boolean noInputsClaimedMultiple(Transaction tx) {
-        // (3) no UTXO is claimed multiple times by {@code tx}
-        return tx.getInputs().stream()
-                .map(inp -> new UTXO(inp.prevTxHash,inp.outputIndex)) // create UTXO temporaily with tx hash and index
-                .collect(Collectors.toSet()) // store the utxo in a set
-                //compare set size with actual size, should be same
-                //if different then inputs claimed multiple times
-                .size() == tx.numInputs();
-    }
-
-    private boolean allOutputsNonNegative(Transaction tx) {
-        // (4) all of {@code tx}s output values are non-negative
-        return tx.getOutputs().stream()
-                .allMatch(o -> o.value>=0); //check if value non-nagtive
-    }
-
-    private double transactionFee(Transaction tx) {
-        // (5) the sum of {@code tx}s input values is greater than or equal to the sum of its output
-        // sum all the inputSum
-        double inputSum = tx.getInputs().stream()
-                .mapToDouble(inp -> ledger.getTxOutput(new UTXO(inp.prevTxHash,inp.outputIndex)).value)
-                .sum();
-        double outputSum = tx.getOutputs().stream()
-                .mapToDouble(o -> o.value)
-                .sum();
-        return inputSum - outputSum;
+        return true;
     }
 
-    
-
 }
@@ -0,0 +1,216 @@
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of the transaction handlers: a latency {@link Histogram} per {@link ValidationRule},
+ * the number of transactions rejected for breaking each rule, the size of each epoch and the fees
+ * of the transactions accepted. A handler is given one with {@code setMetrics}, and several
+ * handlers may share one. The numbers can be read from here or, once {@link #register(String)}ed,
+ * over JMX as a {@link TxMetricsMXBean}.
+ *
+ * <p>Recording is meant for the validation hot path: it only reads the clock and bumps counters,
+ * and allocates nothing. A handler times a check by calling {@link #start()} before it and
+ * {@link #passed} after it, which returns the start of the next check, or {@link #rejected},
+ * which returns the result of the failed validation. {@link #DISABLED}, which handlers use by default, does not even read the clock.
+ */
+public class TxMetrics implements TxMetricsMXBean {
+
+    private static final ValidationRule[] RULES = ValidationRule.values();
+
+    /** metrics that record nothing */
+    public static final TxMetrics DISABLED = new TxMetrics(false);
+
+    private final boolean enabled;
+    private final Histogram[] checkLatency = new Histogram[RULES.length];
+    private final LongAdder[] rejections = new LongAdder[RULES.length];
+    private final Histogram epochSize = new Histogram();
+    private final LongAdder epochs = new LongAdder();
+    private final LongAdder proposed = new LongAdder();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder acceptedFees = new LongAdder();
+
+    /** Creates metrics that record everything */
+    public TxMetrics() {
+        this(true);
+    }
+
+    private TxMetrics(boolean enabled) {
+        this.enabled = enabled;
+        for (int i = 0; i < RULES.length; i++) {
+            checkLatency[i] = new Histogram();
+            rejections[i] = new LongAdder();
+        }
+    }
+
+    /** @return true unless these are the {@link #DISABLED} metrics */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server as
+     * {@code ScroogeCoin:type=TxMetrics,name=<name>}
+     *
+     * @return the name they were registered under
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName("ScroogeCoin:type=TxMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    /** @return the time a check starts at, to be passed to {@link #passed} or {@link #rejected} */
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records that a transaction satisfied {@code rule}, checked since {@code start}
+     *
+     * @return the start of the next check
+     */
+    public long passed(ValidationRule rule, long start) {
+        if (!enabled)
+            return 0;
+        long now = System.nanoTime();
+        checkLatency[rule.ordinal()].record(now - start);
+        return now;
+    }
+
+    /**
+     * Records that a transaction broke {@code rule} at input or output {@code index}, checked
+     * since {@code start}
+     *
+     * @return the result for the validation to return
+     */
+    public ValidationResult rejected(ValidationRule rule, int index, long start) {
+        if (enabled) {
+            checkLatency[rule.ordinal()].record(System.nanoTime() - start);
+            rejections[rule.ordinal()].increment();
+        }
+        return ValidationResult.invalid(rule, index);
+    }
+
+    /**
+     * Records that a transaction broke {@code rule} at input or output {@code index}, which was
+     * checked earlier and timed there
+     *
+     * @return the result for the validation to return
+     */
+    public ValidationResult rejected(ValidationRule rule, int index) {
+        if (enabled)
+            rejections[rule.ordinal()].increment();
+        return ValidationResult.invalid(rule, index);
+    }
+
+    /**
+     * Records that {@code count} checks of {@code rule} were done together since {@code start},
+     * as {@code count} checks that took an equal share of the time each
+     */
+    public void checkedAll(ValidationRule rule, long start, int count) {
+        if (enabled && count > 0)
+            checkLatency[rule.ordinal()].record((System.nanoTime() - start) / count, count);
+    }
+
+    /**
+     * Records an epoch of {@code proposedTxs} transactions, of which {@code acceptedTxs} were
+     * accepted, paying {@code fees} units in total
+     */
+    public void epoch(long proposedTxs, long acceptedTxs, long fees) {
+        if (!enabled)
+            return;
+        epochs.increment();
+        epochSize.record(proposedTxs);
+        proposed.add(proposedTxs);
+        accepted.add(acceptedTxs);
+        acceptedFees.add(fees);
+    }
+
+    /** @return the latencies of the checks of {@code rule}, in nanoseconds */
+    public Histogram checkLatency(ValidationRule rule) {
+        return checkLatency[rule.ordinal()];
+    }
+
+    /** @return the number of transactions rejected for breaking {@code rule} */
+    public long rejections(ValidationRule rule) {
+        return rejections[rule.ordinal()].sum();
+    }
+
+    /** @return the number of transactions proposed per epoch */
+    public Histogram epochSize() {
+        return epochSize;
+    }
+
+    public long getEpochs() {
+        return epochs.sum();
+    }
+
+    public long getTransactionsProposed() {
+        return proposed.sum();
+    }
+
+    public long getTransactionsAccepted() {
+        return accepted.sum();
+    }
+
+    public long getAcceptedFees() {
+        return acceptedFees.sum();
+    }
+
+    public long getEpochSizeP50() {
+        return epochSize.percentile(50);
+    }
+
+    public long getEpochSizeMax() {
+        return epochSize.max();
+    }
+
+    public Map<String, Long> getRejections() {
+        return byRule(this::rejections);
+    }
+
+    public Map<String, Long> getCheckCounts() {
+        return byRule(rule -> checkLatency(rule).count());
+    }
+
+    public Map<String, Long> getCheckLatencyP50() {
+        return byRule(rule -> checkLatency(rule).percentile(50));
+    }
+
+    public Map<String, Long> getCheckLatencyP99() {
+        return byRule(rule -> checkLatency(rule).percentile(99));
+    }
+
+    public Map<String, Long> getCheckLatencyP999() {
+        return byRule(rule -> checkLatency(rule).percentile(99.9));
+    }
+
+    public Map<String, Long> getCheckLatencyMax() {
+        return byRule(rule -> checkLatency(rule).max());
+    }
+
+    public void reset() {
+        for (int i = 0; i < RULES.length; i++) {
+            checkLatency[i].reset();
+            rejections[i].reset();
+        }
+        epochSize.reset();
+        epochs.reset();
+        proposed.reset();
+        accepted.reset();
+        acceptedFees.reset();
+    }
+
+    private static Map<String, Long> byRule(ToLongFunction<ValidationRule> value) {
+        LinkedHashMap<String, Long> map = new LinkedHashMap<>();
+        for (ValidationRule rule : RULES)
+            map.put(rule.name(), value.applyAsLong(rule));
+        return map;
+    }
+}
@@ -0,0 +1,38 @@
+import java.util.Map;
+
+/**
+ * The management interface of {@link TxMetrics}. Maps are keyed by the names of the
+ * {@link ValidationRule}s; latencies are in nanoseconds.
+ */
+public interface TxMetricsMXBean {
+
+    long getEpochs();
+
+    long getTransactionsProposed();
+
+    long getTransactionsAccepted();
+
+    /** total fee of the accepted transactions, in units */
+    long getAcceptedFees();
+
+    long getEpochSizeP50();
+
+    long getEpochSizeMax();
+
+    /** number of transactions rejected for breaking each rule */
+    Map<String, Long> getRejections();
+
+    /** number of times each rule was checked */
+    Map<String, Long> getCheckCounts();
+
+    Map<String, Long> getCheckLatencyP50();
+
+    Map<String, Long> getCheckLatencyP99();
+
+    Map<String, Long> getCheckLatencyP999();
+
+    Map<String, Long> getCheckLatencyMax();
+
+    /** Sets every count back to zero */
+    void reset();
+}
@@ -0,0 +1,231 @@
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
+/**
+ * Processes an epoch of transactions as they arrive instead of as one array. Transactions are
+ * taken from an {@link Iterator} a window at a time; while one window is looked up in the ledger,
+ * verified and committed by the {@link TxBatchProcessor} of the handler, the next one is taken and
+ * pre-validated on the threads of a {@link ForkJoinPool}. Each accepted transaction is handed to a
+ * callback once its window is committed, so the first ones are out long before the epoch ends.
+ *
+ * <p>Nothing is taken from the iterator while the callback runs or while more than two windows
+ * are in flight, which is the backpressure: memory is bounded by the window, not by the size of
+ * the epoch. A transaction spending the output of one that has not arrived yet waits for it, like
+ * an orphan in the {@link Mempool}; at most {@code maxWaiting} transactions wait at a time, the
+ * oldest are rejected to make room, and those still waiting when the epoch ends are rejected.
+ * One spending an output that is gone from a transaction committed in the epoch waits for nothing
+ * and is rejected at once; the last {@link #MAX_COMMITTED} committed hashes are remembered for this.
+ *
+ * <p>If the handler has an {@link EpochJournal}, every window that accepted a transaction is
+ * journaled as a part of the epoch before its transactions are handed to the callback, see
+ * {@link EpochJournal#appendPart}; the epoch takes one number in the journal, as one handled by
+ * {@link TxHandler#handleTxs(Transaction[])} does, and one that accepted nothing is journaled empty.
+ */
+public class TxStreamProcessor {
+
+    /** number of transactions taken from the iterator at a time by default */
+    public static final int DEFAULT_WINDOW = 256;
+
+    /** number of transactions that may wait for a parent at a time by default */
+    public static final int DEFAULT_MAX_WAITING = 4096;
+
+    /** number of hashes of transactions committed in an epoch remembered to reject children of spent outputs */
+    public static final int MAX_COMMITTED = 1 << 16;
+
+    private final TxHandler handler;
+    private final ForkJoinPool pool;
+    private final int window;
+    private final int maxWaiting;
+
+    /**
+     * Creates a processor that validates and commits into the ledger of {@code handler},
+     * pre-validating on {@code pool}
+     */
+    public TxStreamProcessor(TxHandler handler, ForkJoinPool pool) {
+        this(handler, pool, DEFAULT_WINDOW, DEFAULT_MAX_WAITING);
+    }
+
+    /**
+     * Same as {@link #TxStreamProcessor(TxHandler, ForkJoinPool)}, taking {@code window}
+     * transactions at a time and letting at most {@code maxWaiting} wait for a parent
+     */
+    public TxStreamProcessor(TxHandler handler, ForkJoinPool pool, int window, int maxWaiting) {
+        if (window <= 0 || maxWaiting < 0)
+            throw new IllegalArgumentException("window " + window + ", maxWaiting " + maxWaiting);
+        this.handler = handler;
+        this.pool = pool;
+        this.window = window;
+        this.maxWaiting = maxWaiting;
+    }
+
+    /**
+     * Validates the transactions of {@code possibleTxs} as they arrive, commits every valid one
+     * to the ledger of the handler and hands it to {@code accepted}, on the calling thread and in
+     * the order they were committed, which is always a valid order to apply them in.
+     *
+     * @return the number of transactions accepted
+     * @throws java.io.UncheckedIOException if a window could not be journaled, the ledger then
+     *         holds it but a recovered one would not
+     */
+    public long process(Iterator<Transaction> possibleTxs, Consumer<Transaction> accepted) {
+        return new Epoch(accepted).run(possibleTxs);
+    }
+
+    /** The state of one epoch, bounded by the window and the transactions waiting */
+    private class Epoch {
+        private final Consumer<Transaction> accepted;
+        /** transactions waiting, oldest first, with the hashes of the parents they wait for */
+        private final LinkedHashMap<TxValidator.Context, HashSet<ByteBuffer>> waiting = new LinkedHashMap<>();
+        private final HashMap<ByteBuffer, ArrayList<TxValidator.Context>> waitingByParent = new HashMap<>();
+        /** transactions whose parents were all committed, to go with the next window */
+        private ArrayList<TxValidator.Context> released = new ArrayList<>();
+        /** hashes of the last {@link #MAX_COMMITTED} transactions committed, oldest first */
+        private final LinkedHashMap<ByteBuffer, Boolean> committed = new LinkedHashMap<ByteBuffer, Boolean>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(java.util.Map.Entry<ByteBuffer, Boolean> eldest) {
+                return size() > MAX_COMMITTED;
+            }
+        };
+        private long proposed;
+        private long acceptedCount;
+        private long fees;
+
+        private Epoch(Consumer<Transaction> accepted) {
+            this.accepted = accepted;
+        }
+
+        private long run(Iterator<Transaction> possibleTxs) {
+            try {
+                ForkJoinTask<TxValidator.Context[]> arriving = preValidate(take(possibleTxs));
+                while (arriving != null || !released.isEmpty()) {
+                    TxValidator.Context[] arrived = arriving == null ? new TxValidator.Context[0] : arriving.join();
+                    //the next window is pre-validated while this one is committed
+                    arriving = preValidate(take(possibleTxs));
+                    ArrayList<TxValidator.Context> chunk = released;
+                    released = new ArrayList<>();
+                    chunk.addAll(Arrays.asList(arrived));
+                    commit(chunk);
+                }
+            } finally {
+                handler.endEpoch();
+            }
+            if (acceptedCount == 0)
+                handler.commit(new Transaction[0]); //the epoch is numbered all the same
+            //nothing can arrive any more for those still waiting
+            for (int i = 0; i < waiting.size(); i++)
+                handler.metrics.rejected(ValidationRule.INPUTS_IN_POOL, ValidationResult.NO_INDEX);
+            waiting.clear();
+            waitingByParent.clear();
+            handler.metrics.epoch(proposed, acceptedCount, fees);
+            return acceptedCount;
+        }
+
+        private List<Transaction> take(Iterator<Transaction> possibleTxs) {
+            ArrayList<Transaction> txs = new ArrayList<>(window);
+            while (txs.size() < window && possibleTxs.hasNext())
+                txs.add(possibleTxs.next());
+            proposed += txs.size();
+            return txs;
+        }
+
+        private ForkJoinTask<TxValidator.Context[]> preValidate(List<Transaction> txs) {
+            if (txs.isEmpty())
+                return null;
+            TxValidator validator = handler.validator;
+            return pool.submit(() -> txs.parallelStream()
+                    .map(validator::preValidate)
+                    .toArray(TxValidator.Context[]::new));
+        }
+
+        /** Commits what it can of {@code chunk}, the rest waits for its parents or is rejected */
+        private void commit(List<TxValidator.Context> chunk) {
+            //parents in the same chunk are found by the batch processor
+            HashSet<ByteBuffer> inChunk = new HashSet<>();
+            for (TxValidator.Context ctx : chunk) {
+                if (!ctx.isRejected())
+                    inChunk.add(ByteBuffer.wrap(ctx.tx().getHash()));
+            }
+            ArrayList<TxValidator.Context> batch = new ArrayList<>(chunk.size());
+            for (TxValidator.Context ctx : chunk) {
+                if (ctx.isRejected())
+                    continue; //counted when it was pre-validated
+                HashSet<ByteBuffer> missing = new HashSet<>();
+                for (Transaction.Input inp : ctx.tx().getInputs()) {
+                    if (inp.prevTxHash == null || handler.ledger.contains(inp))
+                        continue; //a missing hash is rejected by the ledger stage
+                    ByteBuffer parent = ByteBuffer.wrap(inp.prevTxHash);
+                    //a committed parent without that output has spent it, rejected by the ledger stage
+                    if (!inChunk.contains(parent) && !committed.containsKey(parent))
+                        missing.add(parent);
+                }
+                if (missing.isEmpty())
+                    batch.add(ctx);
+                else
+                    park(ctx, missing);
+            }
+
+            ArrayList<Transaction> valid = new ArrayList<>();
+            fees = Amount.addSaturated(fees, handler.batchProcessor.process(batch.toArray(new TxValidator.Context[batch.size()]), valid::add));
+            if (valid.isEmpty())
+                return; //nothing to journal
+            for (Transaction tx : handler.commitPart(valid.toArray(new Transaction[valid.size()]))) {
+                ByteBuffer hash = ByteBuffer.wrap(tx.getHash());
+                committed.put(hash, Boolean.TRUE);
+                release(hash);
+                acceptedCount++;
+                accepted.accept(tx);
+            }
+        }
+
+        private void park(TxValidator.Context ctx, HashSet<ByteBuffer> missing) {
+            if (maxWaiting == 0) {
+                handler.metrics.rejected(ValidationRule.INPUTS_IN_POOL, ValidationResult.NO_INDEX);
+                return;
+            }
+            if (waiting.size() >= maxWaiting) {
+                //the oldest is the least likely to see its parents
+                TxValidator.Context oldest = waiting.keySet().iterator().next();
+                for (ByteBuffer parent : waiting.remove(oldest))
+                    unlink(parent, oldest);
+                handler.metrics.rejected(ValidationRule.INPUTS_IN_POOL, ValidationResult.NO_INDEX);
+            }
+            waiting.put(ctx, missing);
+            for (ByteBuffer parent : missing)
+                waitingByParent.computeIfAbsent(parent, p -> new ArrayList<>()).add(ctx);
+        }
+
+        private void unlink(ByteBuffer parent, TxValidator.Context ctx) {
+            ArrayList<TxValidator.Context> children = waitingByParent.get(parent);
+            children.remove(ctx);
+            if (children.isEmpty())
+                waitingByParent.remove(parent);
+        }
+
+        /** Moves the transactions waiting only for {@code parent} to the next window */
+        private void release(ByteBuffer parent) {
+            ArrayList<TxValidator.Context> children = waitingByParent.remove(parent);
+            if (children == null)
+                return;
+            for (TxValidator.Context ctx : children) {
+                HashSet<ByteBuffer> missing = waiting.get(ctx);
+                missing.remove(parent);
+                if (missing.isEmpty()) {
+                    waiting.remove(ctx);
+                    released.add(ctx);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,471 @@
+
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * Validates transactions in stages ordered by cost, so that a transaction breaking a cheap rule is
+ * rejected before anything expensive is done for it; a flood of invalid transactions then costs
+ * next to no signature checks.
+ *
+ * <ol>
+ * <li>{@link Stage#STATELESS}: rules that only look at the transaction itself:
+ * {@link ValidationRule#NO_INPUT_CLAIMED_TWICE}, {@link ValidationRule#OUTPUTS_NON_NEGATIVE},
+ * {@link ValidationRule#SIGNATURE_SIZE} and {@link ValidationRule#HASH_MATCHES_RAW_TX}. Since they
+ * need no ledger they can be checked by {@link #preValidate} on any thread, as transactions arrive.
+ * <li>{@link Stage#LEDGER}: a single pass over the inputs looks up the output each of them claims,
+ * which checks {@link ValidationRule#INPUTS_IN_POOL} and sums the fee, then the rules that need
+ * those outputs, such as {@link ValidationRule#FEE_NON_NEGATIVE}.
+ * <li>{@link Stage#SIGNATURES}: the RSA checks of {@link ValidationRule#SIGNATURES_VALID}, with the
+ * public keys the ledger pass found, and any rule that is as costly.
+ * </ol>
+ *
+ * Further rules are plugged in with {@link #addRule}; within a stage rules run in the order they
+ * were added, after the built-in ones. Each rule is timed and a failing one counted in the
+ * {@link TxMetrics} given to {@link #setMetrics}. A validator may be used from several threads at
+ * once.
+ *
+ * <p>A record read in place through a {@link TransactionView} is validated with
+ * {@link #validate(TransactionView, UTXOPool)} by the same rules; the built-in ones read it
+ * without decoding it into a {@link Transaction}.
+ */
+public class TxValidator {
+
+    /** fewest bytes a signature may have, that of a 512 bit RSA key */
+    public static final int MIN_SIGNATURE_BYTES = 64;
+
+    /** most bytes a signature may have, that of a 4096 bit RSA key */
+    public static final int MAX_SIGNATURE_BYTES = 512;
+
+    /** The stages of validation, cheapest first */
+    public enum Stage {
+        /** rules that need nothing but the transaction */
+        STATELESS,
+        /** rules that need the outputs claimed by the inputs, or the fee */
+        LEDGER,
+        /** rules that verify signatures */
+        SIGNATURES
+    }
+
+    /** A rule checked by a {@link TxValidator} */
+    public interface Rule {
+
+        /** returned by {@link #check} when the transaction satisfies the rule */
+        int PASSED = -2;
+
+        /** @return the rule a transaction breaking this one is rejected for, and timed under */
+        ValidationRule rule();
+
+        /** @return the stage this rule is checked in */
+        Stage stage();
+
+        /**
+         * @return {@link #PASSED}, or the index of the input or output breaking the rule, or
+         *         {@link ValidationResult#NO_INDEX} if the transaction breaks it as a whole
+         */
+        int check(Context ctx);
+    }
+
+    /**
+     * The transaction being validated, with what the stages so far found out about it. A new one
+     * is used for every validation, except that one returned by {@link #preValidate} is used for
+     * the rest of the validation of its transaction, which must not be changed in between.
+     *
+     * <p>The transaction may be a record read through a {@link TransactionView}, which must stay
+     * on that record for the validation; the built-in rules read it in place, and {@link #tx()}
+     * decodes it for the others.
+     */
+    public static final class Context {
+        private Transaction tx;
+        private final TransactionView view;
+        private final Transaction.Output[] spent;
+        private long fee;
+        /**
+         * what the stateless stage found, published as a whole since a context made by
+         * {@link #preValidate} on one thread is used on another
+         */
+        private volatile StatelessCheck stateless = StatelessCheck.NONE;
+
+        Context(Transaction tx) {
+            this.tx = tx;
+            this.view = null;
+            this.spent = new Transaction.Output[tx.numInputs()];
+        }
+
+        Context(TransactionView view) {
+            this.view = view;
+            this.spent = new Transaction.Output[view.numInputs()];
+        }
+
+        /**
+         * @return the transaction, decoded from the record on the first call if it is read
+         *         through a view
+         * @throws IllegalArgumentException if the record holds an address that is not an RSA key
+         */
+        public Transaction tx() {
+            if (tx == null) {
+                try {
+                    tx = new TxCodec().decode(view);
+                } catch (InvalidKeySpecException | java.security.NoSuchAlgorithmException e) {
+                    throw new IllegalArgumentException("cannot decode the record at " + view.start(), e);
+                }
+            }
+            return tx;
+        }
+
+        private int numInputs() {
+            return spent.length;
+        }
+
+        private int numOutputs() {
+            return view != null ? view.numOutputs() : tx.numOutputs();
+        }
+
+        /** @return the UTXO claimed by input {@code idx}, null if the input has no hash */
+        private UTXO utxo(int idx) {
+            if (view != null)
+                return view.utxo(idx);
+            Transaction.Input inp = tx.getInput(idx);
+            return inp.prevTxHash == null ? null : inp.getUTXO(); //UTXO key kept by the input, no copy of the hash
+        }
+
+        private long outputValue(int idx) {
+            return view != null ? view.outputValue(idx) : tx.getOutput(idx).value;
+        }
+
+        /** @return the length of the signature of input {@code idx}, -1 if it has none */
+        private int signatureLength(int idx) {
+            if (view != null)
+                return view.signatureLength(idx) == 0 ? -1 : view.signatureLength(idx);
+            byte[] sig = tx.getInput(idx).signature;
+            return sig == null ? -1 : sig.length;
+        }
+
+        /** @return true if the transaction broke a rule of the {@link Stage#STATELESS} stage */
+        public boolean isRejected() {
+            return stateless.result != null;
+        }
+
+        /** @return the result of the transaction if {@link #isRejected()}, null otherwise */
+        public ValidationResult rejection() {
+            return stateless.result;
+        }
+
+        /** @return the output claimed by input {@code idx}, null before the {@link Stage#LEDGER} stage */
+        public Transaction.Output spent(int idx) {
+            return spent[idx];
+        }
+
+        /**
+         * @return the fee of the transaction in units, {@link Amount#OVERFLOW} if a sum
+         *         overflows; only known from the {@link Stage#LEDGER} stage on
+         */
+        public long fee() {
+            return fee;
+        }
+    }
+
+    private static final Rule[] NO_RULES = new Rule[0];
+
+    /** The stateless rules a transaction passed, or the one it broke and the result of it */
+    private static final class StatelessCheck {
+        private static final StatelessCheck NONE = new StatelessCheck(NO_RULES, null, null);
+
+        private final Rule[] checked;
+        private final Rule failed;
+        private final ValidationResult result;
+
+        private StatelessCheck(Rule[] checked, Rule failed, ValidationResult result) {
+            this.checked = checked;
+            this.failed = failed;
+            this.result = result;
+        }
+    }
+
+    /** the built-in stateless rules, shared by all validators so a context checked by one is by all */
+    private static final Rule[] BUILT_IN_STATELESS = {
+        rule(ValidationRule.NO_INPUT_CLAIMED_TWICE, Stage.STATELESS, TxValidator::firstInputClaimedTwice),
+        rule(ValidationRule.OUTPUTS_NON_NEGATIVE, Stage.STATELESS, TxValidator::firstNegativeOutput),
+        rule(ValidationRule.SIGNATURE_SIZE, Stage.STATELESS, TxValidator::firstBadSignatureSize),
+        rule(ValidationRule.HASH_MATCHES_RAW_TX, Stage.STATELESS,
+                ctx -> hashMatchesRawTx(ctx) ? Rule.PASSED : ValidationResult.NO_INDEX) //a SHA-256, last of the stage
+    };
+
+    private final SignatureCache signatureCache;
+    private final EnumMap<Stage, List<Rule>> rules = new EnumMap<>(Stage.class);
+    /** the rules of the stateless stage, replaced as a whole when one is added */
+    private volatile Rule[] statelessRules = NO_RULES;
+    private final Rule signaturesValid;
+    private volatile TxMetrics metrics = TxMetrics.DISABLED;
+
+    /** Creates a validator of the built-in rules, checking signatures through {@code signatureCache} */
+    public TxValidator(SignatureCache signatureCache) {
+        this.signatureCache = signatureCache;
+        for (Stage stage : Stage.values())
+            rules.put(stage, new CopyOnWriteArrayList<>());
+        for (Rule rule : BUILT_IN_STATELESS)
+            addRule(rule);
+        addRule(rule(ValidationRule.FEE_NON_NEGATIVE, Stage.LEDGER,
+                ctx -> ctx.fee < 0 ? ValidationResult.NO_INDEX : Rule.PASSED)); //an overflow is negative
+        signaturesValid = rule(ValidationRule.SIGNATURES_VALID, Stage.SIGNATURES, this::firstInvalidSignature);
+        addRule(signaturesValid);
+    }
+
+    /**
+     * @return a rule of {@code stage}, rejecting a transaction for {@code rule} where
+     *         {@code check} returns anything but {@link Rule#PASSED}
+     */
+    public static Rule rule(ValidationRule rule, Stage stage, ToIntFunction<Context> check) {
+        return new Rule() {
+            public ValidationRule rule() {
+                return rule;
+            }
+
+            public Stage stage() {
+                return stage;
+            }
+
+            public int check(Context ctx) {
+                return check.applyAsInt(ctx);
+            }
+        };
+    }
+
+    /** Adds {@code rule} to its stage, after the rules already there */
+    public void addRule(Rule rule) {
+        synchronized (rules) {
+            rules.get(rule.stage()).add(rule);
+            if (rule.stage() == Stage.STATELESS)
+                statelessRules = rules.get(Stage.STATELESS).toArray(NO_RULES);
+        }
+    }
+
+    /** Makes this validator time its rules and count its rejections in {@code metrics} */
+    public void setMetrics(TxMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Validates {@code tx} against {@code ledger}, stage by stage
+     *
+     * @return the fee of {@code tx} if it is valid, and otherwise the first rule it breaks with
+     *         the input or output breaking it
+     */
+    public ValidationResult validate(Transaction tx, UTXOPool ledger) {
+        return validate(tx, ledger::getTxOutput);
+    }
+
+    /**
+     * Same as {@link #validate(Transaction, UTXOPool)}, with the output claimed by each input
+     * given by {@code outputs}, or null if it cannot be claimed
+     */
+    public ValidationResult validate(Transaction tx, Function<Transaction.Input, Transaction.Output> outputs) {
+        return validate(new Context(tx), outputs);
+    }
+
+    /**
+     * Same as {@link #validate(Transaction, Function)}, for the transaction of {@code ctx}, as
+     * returned by {@link #preValidate}. The stateless stage is not checked again.
+     */
+    public ValidationResult validate(Context ctx, Function<Transaction.Input, Transaction.Output> outputs) {
+        ValidationResult result = checkStateless(ctx);
+        if (result == null)
+            result = checkLedger(ctx, outputs);
+        if (result == null)
+            result = checkSignatures(ctx);
+        return result == null ? ValidationResult.valid(ctx.fee) : result;
+    }
+
+    /**
+     * Same as {@link #validate(Transaction, UTXOPool)} for the transaction {@code view} is on,
+     * stage by stage through the same rules. The built-in ones read the record in place: the hash
+     * is computed by {@link Crypto#hash(TransactionView)} and the signatures are looked up in and
+     * added to the {@link SignatureCache}, under the same entries as for the decoded transaction.
+     * A rule added with {@link #addRule} that calls {@link Context#tx()} has the record decoded.
+     */
+    public ValidationResult validate(TransactionView view, UTXOPool ledger) {
+        Context ctx = new Context(view);
+        ValidationResult result = checkStateless(ctx);
+        if (result == null)
+            result = checkLedgerByIndex(ctx, idx -> ledger.getTxOutput(view.utxo(idx)));
+        if (result == null)
+            result = checkSignatures(ctx);
+        return result == null ? ValidationResult.valid(ctx.fee) : result;
+    }
+
+    /**
+     * Checks the {@link Stage#STATELESS} rules of {@code tx}. They read nothing but {@code tx}, so
+     * this can be done by any thread, e.g. the one that received {@code tx}, while the ledger is in
+     * use elsewhere.
+     *
+     * @return the context of {@code tx}, to finish its validation in with
+     *         {@link #validate(Context, Function)} or, if it is not {@link Context#isRejected()},
+     *         to hand to {@link TxHandler#handleTxs(Context[])}
+     */
+    public Context preValidate(Transaction tx) {
+        Context ctx = new Context(tx);
+        checkStateless(ctx);
+        return ctx;
+    }
+
+    /**
+     * @return null if the transaction of {@code ctx} passes the {@link Stage#STATELESS} stage, its
+     *         result otherwise. Each rule is checked once per context: one pre-validated by
+     *         another validator, e.g. that of a {@link Mempool}, is only checked for the rules that
+     *         validator does not have, and stays rejected if the rule it broke is one of these.
+     */
+    ValidationResult checkStateless(Context ctx) {
+        Rule[] stage = statelessRules;
+        StatelessCheck done = ctx.stateless;
+        if (done.result != null ? contains(stage, done.failed) : done.checked == stage)
+            return done.result;
+        TxMetrics m = metrics;
+        long start = m.start();
+        for (Rule rule : stage) {
+            if (contains(done.checked, rule))
+                continue;
+            int idx = rule.check(ctx);
+            if (idx != Rule.PASSED) {
+                ValidationResult result = m.rejected(rule.rule(), idx, start);
+                ctx.stateless = new StatelessCheck(done.checked, rule, result);
+                return result;
+            }
+            start = m.passed(rule.rule(), start);
+        }
+        ctx.stateless = new StatelessCheck(stage, null, null);
+        return null;
+    }
+
+    private static boolean contains(Rule[] rules, Rule rule) {
+        for (Rule r : rules) {
+            if (r == rule)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Looks up the outputs claimed by the transaction of {@code ctx} and sums its fee, then checks
+     * the rest of the {@link Stage#LEDGER} stage
+     *
+     * @return null if the transaction passes, its result otherwise
+     */
+    ValidationResult checkLedger(Context ctx, Function<Transaction.Input, Transaction.Output> outputs) {
+        return checkLedgerByIndex(ctx, idx -> {
+            Transaction.Input inp = ctx.tx.getInput(idx);
+            return inp.prevTxHash == null ? null : outputs.apply(inp); //no hash claims nothing
+        });
+    }
+
+    /** Same as {@link #checkLedger(Context, Function)}, with the output claimed by each input by its index */
+    private ValidationResult checkLedgerByIndex(Context ctx, IntFunction<Transaction.Output> outputs) {
+        // (1) all outputs claimed by {@code tx} are in the current UTXO pool, looked up once for
+        // the fee and the public keys as well
+        TxMetrics m = metrics;
+        long start = m.start();
+        for (int idx = 0; idx < ctx.spent.length; idx++) {
+            Transaction.Output out = outputs.apply(idx);
+            if (out == null)
+                return m.rejected(ValidationRule.INPUTS_IN_POOL, idx, start);
+            ctx.spent[idx] = out;
+        }
+        ctx.fee = ctx.view != null ? Amount.fee(ctx.view, ctx.spent) : Amount.fee(ctx.tx, ctx.spent);
+        m.passed(ValidationRule.INPUTS_IN_POOL, start);
+        return check(Stage.LEDGER, ctx, null);
+    }
+
+    /** @return null if the transaction of {@code ctx} passes the {@link Stage#SIGNATURES} stage, its result otherwise */
+    ValidationResult checkSignatures(Context ctx) {
+        return check(Stage.SIGNATURES, ctx, null);
+    }
+
+    /**
+     * Same as {@link #checkSignatures(Context)}, with the input signatures verified already, e.g.
+     * by a {@link SignatureVerifier} which timed them there
+     */
+    ValidationResult checkSignatures(Context ctx, boolean signaturesVerified) {
+        if (!signaturesVerified) { //the failing input comes from the cache
+            int idx = firstInvalidSignature(ctx);
+            return metrics.rejected(ValidationRule.SIGNATURES_VALID, idx == Rule.PASSED ? ValidationResult.NO_INDEX : idx);
+        }
+        return check(Stage.SIGNATURES, ctx, signaturesValid);
+    }
+
+    private ValidationResult check(Stage stage, Context ctx, Rule skipped) {
+        TxMetrics m = metrics;
+        long start = m.start();
+        for (Rule rule : rules.get(stage)) {
+            if (rule == skipped)
+                continue;
+            int idx = rule.check(ctx);
+            if (idx != Rule.PASSED)
+                return m.rejected(rule.rule(), idx, start);
+            start = m.passed(rule.rule(), start);
+        }
+        return null;
+    }
+
+    private static int firstInputClaimedTwice(Context ctx) {
+        // (3) no UTXO is claimed multiple times by {@code tx}
+        Set<UTXO> claimed = new HashSet<>(); // store the utxo in a set
+        for (int idx = 0; idx < ctx.numInputs(); idx++) {
+            UTXO utxo = ctx.utxo(idx);
+            if (utxo == null)
+                continue; //claims nothing, rejected by the ledger stage
+            //a UTXO already in the set is claimed a second time here
+            if (!claimed.add(utxo))
+                return idx;
+        }
+        return Rule.PASSED;
+    }
+
+    private static int firstNegativeOutput(Context ctx) {
+        // (4) all of {@code tx}s output values are non-negative
+        for (int idx = 0; idx < ctx.numOutputs(); idx++) {
+            if (ctx.outputValue(idx) < 0) //check if value non-nagtive
+                return idx;
+        }
+        return Rule.PASSED;
+    }
+
+    private static int firstBadSignatureSize(Context ctx) {
+        // every input carries a signature of a size an RSA key can produce, checked against the
+        // key itself only by the signature stage
+        for (int idx = 0; idx < ctx.numInputs(); idx++) {
+            int length = ctx.signatureLength(idx);
+            if (length < MIN_SIGNATURE_BYTES || length > MAX_SIGNATURE_BYTES)
+                return idx;
+        }
+        return Rule.PASSED;
+    }
+
+    private static boolean hashMatchesRawTx(Context ctx) {
+        // the hash others refer to the transaction by is the one {@code finalize()} would set
+        if (ctx.view != null)
+            return ctx.view.hasHash() && ctx.view.hashEquals(Crypto.hash(ctx.view));
+        byte[] hash = ctx.tx.getHash();
+        return hash != null && MessageDigest.isEqual(hash, Crypto.hash(ctx.tx.getRawTx()));
+    }
+
+    private int firstInvalidSignature(Context ctx) {
+        // (2) the signatures on each input of {@code tx} are valid
+        for (int idx = 0; idx < ctx.numInputs(); idx++) {
+            //public key found by the ledger pass
+            PublicKey pk = ctx.spent[idx].address;
+            //a check done before, e.g. in an earlier epoch, comes from the cache
+            boolean valid = ctx.view != null ? signatureCache.verify(pk, ctx.view, idx)
+                    : signatureCache.verify(pk, ctx.tx, idx, ctx.tx.getInput(idx).signature);
+            if (!valid)
+                return idx;
+        }
+        return Rule.PASSED;
+    }
+}
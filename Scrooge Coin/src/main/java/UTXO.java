@@ -2,26 +2,103 @@ import java.util.Arrays;
 
 public class UTXO implements Comparable<UTXO> {
 
-    /** Hash of the transaction from which this UTXO originates */
-    private byte[] txHash;
+    /** Length of a SHA-256 transaction hash, the only length stored in packed form */
+    private static final int PACKED_LENGTH = 32;
+
+    /** Flips the sign bit of every byte, so that signed bytes compare like unsigned ones */
+    private static final long SIGN_BITS = 0x8080808080808080L;
+
+    /**
+     * Hash of the transaction from which this UTXO originates, packed big-endian into four longs
+     * when it is {@value #PACKED_LENGTH} bytes long
+     */
+    private final long h0, h1, h2, h3;
+
+    /** Hash of the transaction from which this UTXO originates if it could not be packed */
+    private final byte[] unpackedHash;
 
     /** Index of the corresponding output in said transaction */
-    private int index;
+    private final int index;
+
+    /** Cached hash code, UTXOs are looked up far more often than they are created */
+    private final int hashCode;
 
     /**
      * Creates a new UTXO corresponding to the output with index <index> in the transaction whose
      * hash is {@code txHash}
      */
     public UTXO(byte[] txHash, int index) {
-        this.txHash = Arrays.copyOf(txHash, txHash.length);
+        if (txHash.length == PACKED_LENGTH) {
+            this.h0 = pack(txHash, 0);
+            this.h1 = pack(txHash, 8);
+            this.h2 = pack(txHash, 16);
+            this.h3 = pack(txHash, 24);
+            this.unpackedHash = null;
+        } else {
+            this.h0 = this.h1 = this.h2 = this.h3 = 0;
+            this.unpackedHash = Arrays.copyOf(txHash, txHash.length);
+        }
         this.index = index;
+        this.hashCode = computeHashCode();
     }
 
-    /** @return the transaction hash of this UTXO */
+    /** Creates a new UTXO from the packed words of a {@value #PACKED_LENGTH} byte hash */
+    UTXO(long h0, long h1, long h2, long h3, int index) {
+        this.h0 = h0;
+        this.h1 = h1;
+        this.h2 = h2;
+        this.h3 = h3;
+        this.unpackedHash = null;
+        this.index = index;
+        this.hashCode = computeHashCode();
+    }
+
+    private static long pack(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++)
+            value = (value << 8) | (bytes[i] & 0xff);
+        return value;
+    }
+
+    private static void unpack(long value, byte[] bytes, int offset) {
+        for (int i = offset + 7; i >= offset; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /** @return a copy of the transaction hash of this UTXO */
     public byte[] getTxHash() {
+        if (unpackedHash != null)
+            return Arrays.copyOf(unpackedHash, unpackedHash.length);
+        byte[] txHash = new byte[PACKED_LENGTH];
+        unpack(h0, txHash, 0);
+        unpack(h1, txHash, 8);
+        unpack(h2, txHash, 16);
+        unpack(h3, txHash, 24);
         return txHash;
     }
 
+    /** @return the length of the transaction hash of this UTXO */
+    public int getTxHashLength() {
+        return unpackedHash == null ? PACKED_LENGTH : unpackedHash.length;
+    }
+
+    /** @return true if the hash of this UTXO is held in packed words */
+    boolean isPacked() {
+        return unpackedHash == null;
+    }
+
+    /** @return word {@code i} (0 to 3, most significant first) of a packed hash */
+    long hashWord(int i) {
+        switch (i) {
+            case 0: return h0;
+            case 1: return h1;
+            case 2: return h2;
+            default: return h3;
+        }
+    }
+
     /** @return the index of this UTXO */
     public int getIndex() {
         return index;
@@ -40,15 +117,11 @@ public class UTXO implements Comparable<UTXO> {
         }
 
         UTXO utxo = (UTXO) other;
-        byte[] hash = utxo.txHash;
-        int in = utxo.index;
-        if (hash.length != txHash.length || index != in)
+        if (hashCode != utxo.hashCode || index != utxo.index)
             return false;
-        for (int i = 0; i < hash.length; i++) {
-            if (hash[i] != txHash[i])
-                return false;
-        }
-        return true;
+        if (unpackedHash != null || utxo.unpackedHash != null)
+            return Arrays.equals(unpackedHash, utxo.unpackedHash);
+        return h0 == utxo.h0 && h1 == utxo.h1 && h2 == utxo.h2 && h3 == utxo.h3;
     }
 
     /**
@@ -56,28 +129,49 @@ public class UTXO implements Comparable<UTXO> {
      * utxo1.equals(utxo2) => utxo1.hashCode() == utxo2.hashCode())
      */
     public int hashCode() {
+        return hashCode;
+    }
+
+    private int computeHashCode() {
         int hash = 1;
         hash = hash * 17 + index;
-        hash = hash * 31 + Arrays.hashCode(txHash);
+        if (unpackedHash != null) {
+            hash = hash * 31 + Arrays.hashCode(unpackedHash);
+        } else {
+            //the hash is a digest already, folding its words together is enough
+            long mixed = h0 ^ (h1 * 31) ^ (h2 * 961) ^ (h3 * 29791);
+            hash = hash * 31 + (int) (mixed ^ (mixed >>> 32));
+        }
         return hash;
     }
 
     /** Compares this UTXO to the one specified by {@code utxo} */
     public int compareTo(UTXO utxo) {
-        byte[] hash = utxo.txHash;
         int in = utxo.index;
         if (in > index)
             return -1;
         else if (in < index)
             return 1;
         else {
-            int len1 = txHash.length;
-            int len2 = hash.length;
+            int len1 = getTxHashLength();
+            int len2 = utxo.getTxHashLength();
             if (len2 > len1)
                 return -1;
             else if (len2 < len1)
                 return 1;
-            else {
+            else if (unpackedHash == null) {
+                //bytes compare as signed values, most significant word first
+                int cmp = Long.compareUnsigned(h0 ^ SIGN_BITS, utxo.h0 ^ SIGN_BITS);
+                if (cmp == 0)
+                    cmp = Long.compareUnsigned(h1 ^ SIGN_BITS, utxo.h1 ^ SIGN_BITS);
+                if (cmp == 0)
+                    cmp = Long.compareUnsigned(h2 ^ SIGN_BITS, utxo.h2 ^ SIGN_BITS);
+                if (cmp == 0)
+                    cmp = Long.compareUnsigned(h3 ^ SIGN_BITS, utxo.h3 ^ SIGN_BITS);
+                return cmp;
+            } else {
+                byte[] txHash = unpackedHash;
+                byte[] hash = utxo.unpackedHash;
                 for (int i = 0; i < len1; i++) {
                     if (hash[i] > txHash[i])
                         return -1;
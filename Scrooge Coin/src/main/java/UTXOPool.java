@@ -1,34 +1,196 @@
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.Collection;
 
 public class UTXOPool {
 
     /**
      * The current collection of UTXOs, with each one mapped to its corresponding transaction output
      */
-    private HashMap<UTXO, Transaction.Output> H;
+    private UTXOStore H;
 
-    /** Creates a new empty UTXOPool */
+    /**
+     * While a checkpoint is open, each change made to the pool as a UTXO paired with the output it
+     * was mapped to before, null if there was none
+     */
+    private ArrayList<UTXO> journalKeys;
+    private ArrayList<Transaction.Output> journalOutputs;
+    /** the checkpoints open, outermost first, of which there are {@code openCheckpoints} */
+    private int[] checkpoints = new int[4];
+    private int openCheckpoints;
+
+    /**
+     * Creates a new empty UTXOPool. Copies of it share their unchanged entries, see
+     * {@link OverlayUTXOStore}.
+     */
     public UTXOPool() {
-        H = new HashMap<UTXO, Transaction.Output>();
+        H = new OverlayUTXOStore();
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /**
+     * Creates a new UTXOPool that is a copy of {@code uPool}, held in the same kind of store. For
+     * the default store this takes constant time, whatever the size of {@code uPool}.
+     */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        H = uPool.H.copy();
+    }
+
+    /** Creates a new UTXOPool holding its UTXOs in {@code store} */
+    public UTXOPool(UTXOStore store) {
+        H = store;
+    }
+
+    /**
+     * Creates a new empty UTXOPool whose entries are kept outside the Java heap, sized for about
+     * {@code expectedSize} UTXOs. See {@link OffHeapUTXOStore}.
+     */
+    public static UTXOPool offHeap(long expectedSize) {
+        return new UTXOPool(new OffHeapUTXOStore(expectedSize));
+    }
+
+    /**
+     * Creates a new empty UTXOPool that may be read and changed by many threads at once, and whose
+     * {@link #trySpend(Collection)} is atomic. See {@link ConcurrentUTXOStore}.
+     */
+    public static UTXOPool concurrent() {
+        return new UTXOPool(new ConcurrentUTXOStore());
+    }
+
+    /**
+     * Creates a new UTXOPool whose entries start out as those of {@code base}, which is only read
+     * from afterwards, and whose changes and copies are layered on top of it
+     */
+    public static UTXOPool overlay(ReadOnlyUTXOStore base) {
+        return new UTXOPool(new OverlayUTXOStore(base));
+    }
+
+    /**
+     * Creates a new UTXOPool whose entries start out as those of the snapshot in {@code file},
+     * which is memory-mapped rather than read, so the pool is ready for lookups at once. See
+     * {@link MappedUTXOStore}.
+     *
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    public static UTXOPool fromSnapshot(Path file) throws IOException {
+        return overlay(MappedUTXOStore.open(file));
+    }
+
+    /**
+     * Writes the UTXOs of the pool, as they are after epoch {@code epoch}, to the snapshot file
+     * {@code file}, replacing any earlier snapshot in one step
+     */
+    public void writeSnapshot(Path file, long epoch) throws IOException {
+        MappedUTXOStore.write(this, epoch, file);
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        record(utxo);
         H.put(utxo, txOut);
     }
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
+        record(utxo);
         H.remove(utxo);
     }
 
+    /**
+     * Removes all of {@code utxos} from the pool if every one of them is in it and none is listed
+     * twice, and removes nothing otherwise. This is atomic for a {@link #concurrent()} pool, so
+     * that two threads can never both spend the same UTXO.
+     *
+     * @return true if the UTXOs were removed
+     */
+    public boolean trySpend(Collection<UTXO> utxos) {
+        if (openCheckpoints == 0)
+            return H.trySpend(utxos);
+        int mark = journalKeys.size();
+        for (UTXO utxo : utxos)
+            record(utxo);
+        if (H.trySpend(utxos))
+            return true;
+        truncateJournal(mark);
+        return false;
+    }
+
+    /**
+     * Opens a checkpoint. Until it is closed by {@link #rollback(int)} or {@link #commit(int)},
+     * every change made to the pool is journaled with the entry it replaced, so that it can be
+     * undone at a cost proportional to the number of changes rather than the size of the pool.
+     * Checkpoints nest; one opened while another is open must be closed first.
+     *
+     * @return the checkpoint, to be passed to {@link #rollback(int)} or {@link #commit(int)}
+     */
+    public int checkpoint() {
+        if (openCheckpoints == 0) {
+            journalKeys = new ArrayList<>();
+            journalOutputs = new ArrayList<>();
+        }
+        if (openCheckpoints == checkpoints.length)
+            checkpoints = Arrays.copyOf(checkpoints, checkpoints.length * 2);
+        checkpoints[openCheckpoints++] = journalKeys.size();
+        return journalKeys.size();
+    }
+
+    /**
+     * Undoes every change made since {@code checkpoint} was opened, and closes it
+     *
+     * @throws IllegalStateException if {@code checkpoint} is not the innermost open one
+     */
+    public void rollback(int checkpoint) {
+        checkInnermost(checkpoint);
+        for (int i = journalKeys.size() - 1; i >= checkpoint; i--) {
+            Transaction.Output previous = journalOutputs.get(i);
+            if (previous == null)
+                H.remove(journalKeys.get(i));
+            else
+                H.put(journalKeys.get(i), previous);
+        }
+        truncateJournal(checkpoint);
+        close();
+    }
+
+    /**
+     * Keeps the changes made since {@code checkpoint} was opened, and closes it. They can still be
+     * undone by rolling back an enclosing checkpoint.
+     *
+     * @throws IllegalStateException if {@code checkpoint} is not the innermost open one
+     */
+    public void commit(int checkpoint) {
+        checkInnermost(checkpoint);
+        close();
+    }
+
+    private void checkInnermost(int checkpoint) {
+        if (openCheckpoints == 0)
+            throw new IllegalStateException("no checkpoint is open");
+        if (checkpoints[openCheckpoints - 1] != checkpoint)
+            throw new IllegalStateException("checkpoint " + checkpoint + " is not the innermost open one, "
+                    + checkpoints[openCheckpoints - 1] + " is");
+    }
+
+    private void close() {
+        if (--openCheckpoints == 0) {
+            journalKeys = null;
+            journalOutputs = null;
+        }
+    }
+
+    private void record(UTXO utxo) {
+        if (openCheckpoints > 0) {
+            journalKeys.add(utxo);
+            journalOutputs.add(H.get(utxo));
+        }
+    }
+
+    private void truncateJournal(int size) {
+        journalKeys.subList(size, journalKeys.size()).clear();
+        journalOutputs.subList(size, journalOutputs.size()).clear();
+    }
+
     /**
      * @return the transaction output corresponding to UTXO {@code utxo}, or null if {@code utxo} is
      *         not in the pool.
@@ -39,16 +201,39 @@ public class UTXOPool {
 
     /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
     public boolean contains(UTXO utxo) {
-        return H.containsKey(utxo);
+        return H.contains(utxo);
+    }
+
+    /**
+     * @return the transaction output claimed by input {@code in}, or null if it is not in the
+     *         pool. Uses the key cached by {@code in}, so checking an input again is free of
+     *         allocation.
+     */
+    public Transaction.Output getTxOutput(Transaction.Input in) {
+        return H.get(in.getUTXO());
+    }
+
+    /** @return true if the output claimed by input {@code in} is in the pool and false otherwise */
+    public boolean contains(Transaction.Input in) {
+        return H.contains(in.getUTXO());
+    }
+
+    /**
+     * Frees the memory the pool holds outside the heap, e.g. a pool made by {@link #offHeap(long)}
+     * or a copy of one, at once rather than when it is collected. The pool must not be used
+     * afterwards.
+     */
+    public void release() {
+        H.release();
+    }
+
+    /** @return the number of UTXOs in the pool */
+    public long size() {
+        return H.size();
     }
 
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
-        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-        for (UTXO ut : setUTXO) {
-            allUTXO.add(ut);
-        }
-        return allUTXO;
+        return H.keys();
     }
 }
@@ -0,0 +1,43 @@
+import java.util.Collection;
+import java.util.HashSet;
+
+/**
+ * The storage behind a {@link UTXOPool}, mapping each UTXO to its transaction output. The pool
+ * keeps the public contract, a store only decides how and where the entries are held.
+ */
+public interface UTXOStore extends ReadOnlyUTXOStore {
+
+    /** Maps {@code utxo} to {@code txOut}, replacing any earlier mapping */
+    void put(UTXO utxo, Transaction.Output txOut);
+
+    /** Removes the mapping of {@code utxo}, if any */
+    void remove(UTXO utxo);
+
+    /** @return an independent store holding the same mappings */
+    UTXOStore copy();
+
+    /**
+     * Frees what the store holds outside the heap at once, rather than when it is collected; the
+     * store must not be used afterwards. Stores on the heap have nothing to do.
+     */
+    default void release() {
+    }
+
+    /**
+     * Removes all of {@code utxos} if every one of them is in the store and none is listed twice,
+     * and removes nothing otherwise. Stores meant to be shared between threads do this atomically,
+     * the default implementation is only safe for a store used by one thread at a time.
+     *
+     * @return true if the UTXOs were removed
+     */
+    default boolean trySpend(Collection<UTXO> utxos) {
+        HashSet<UTXO> distinct = new HashSet<>();
+        for (UTXO utxo : utxos) {
+            if (!distinct.add(utxo) || !contains(utxo))
+                return false;
+        }
+        for (UTXO utxo : utxos)
+            remove(utxo);
+        return true;
+    }
+}
@@ -0,0 +1,67 @@
+
+/**
+ * The outcome of validating a transaction in one pass: either valid, with the fee it pays, or the
+ * first {@link ValidationRule} it breaks, with the input or output breaking it where there is one.
+ * Callers can act on the reason, e.g. try to free a claimed input, without checking again.
+ */
+public final class ValidationResult {
+
+    /** the index of a result that does not point at an input or output */
+    public static final int NO_INDEX = -1;
+
+    /** the fee of a transaction that is not valid */
+    public static final long INVALID_FEE = Long.MIN_VALUE;
+
+    private final ValidationRule failedRule;
+    private final int index;
+    private final long fee;
+
+    private ValidationResult(ValidationRule failedRule, int index, long fee) {
+        this.failedRule = failedRule;
+        this.index = index;
+        this.fee = fee;
+    }
+
+    /** @return the result of a valid transaction paying {@code fee} units */
+    public static ValidationResult valid(long fee) {
+        return new ValidationResult(null, NO_INDEX, fee);
+    }
+
+    /**
+     * @return the result of a transaction breaking {@code rule}, at input (or, for
+     *         {@link ValidationRule#OUTPUTS_NON_NEGATIVE}, output) {@code index}
+     */
+    public static ValidationResult invalid(ValidationRule rule, int index) {
+        return new ValidationResult(rule, index, INVALID_FEE);
+    }
+
+    public boolean isValid() {
+        return failedRule == null;
+    }
+
+    /** @return the first rule the transaction breaks, null if it is valid */
+    public ValidationRule failedRule() {
+        return failedRule;
+    }
+
+    /**
+     * @return the index of the input breaking the rule, or of the output for
+     *         {@link ValidationRule#OUTPUTS_NON_NEGATIVE}; {@link #NO_INDEX} if the transaction is
+     *         valid, the rule concerns it as a whole, or the offending input is not known
+     */
+    public int index() {
+        return index;
+    }
+
+    /** @return the fee in units if the transaction is valid, {@link #INVALID_FEE} otherwise */
+    public long fee() {
+        return fee;
+    }
+
+    @Override
+    public String toString() {
+        if (isValid())
+            return "valid, fee " + fee;
+        return "breaks " + failedRule + (index == NO_INDEX ? "" : " at " + index);
+    }
+}
@@ -0,0 +1,34 @@
+
+/**
+ * The rules a transaction has to satisfy to be valid, each of which is also the reason a
+ * transaction breaking it is rejected for
+ */
+public enum ValidationRule {
+
+    /** (1) all outputs claimed by the transaction are in the current UTXO pool */
+    INPUTS_IN_POOL,
+
+    /** (2) the signatures on each input of the transaction are valid */
+    SIGNATURES_VALID,
+
+    /** (3) no UTXO is claimed multiple times by the transaction */
+    NO_INPUT_CLAIMED_TWICE,
+
+    /** (4) all of the transaction's output values are non-negative */
+    OUTPUTS_NON_NEGATIVE,
+
+    /** (5) the sum of the input values is at least the sum of the output values, without overflow */
+    FEE_NON_NEGATIVE,
+
+    /**
+     * (6) every input carries a signature between {@link TxValidator#MIN_SIGNATURE_BYTES} and
+     * {@link TxValidator#MAX_SIGNATURE_BYTES} long
+     */
+    SIGNATURE_SIZE,
+
+    /** (7) the hash of the transaction is the SHA-256 of its raw data, {@code getRawTx()} */
+    HASH_MATCHES_RAW_TX,
+
+    /** (8) any further rule added to a {@link TxValidator}, e.g. a limit on the number of inputs */
+    POLICY
+}
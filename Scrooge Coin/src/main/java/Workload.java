@@ -0,0 +1,250 @@
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A genesis UTXOPool and an epoch spending from it, as made by {@link EpochGenerator}, that can
+ * be written to a compact binary file and read back far faster than it can be generated, since
+ * reading signs nothing. The file holds each distinct public key once, and outputs refer to keys
+ * by number:
+ *
+ * <pre>
+ * magic "SCWL", version              int, int
+ * settings                           the fields of EpochGenerator.Settings
+ * keys                               int count, then per key: int length, X.509 encoding
+ * genesis                            int count, then per UTXO: hash, int index, output
+ * epoch                              int count, then per transaction:
+ *                                      hash
+ *                                      int inputs, then per input: hash, int index, signature
+ *                                      int outputs, then per output: output
+ * hash, signature                    int length, bytes; -1 for null
+ * output                             long value in units, int key number
+ * </pre>
+ *
+ * All numbers are big-endian. The transaction hashes are stored, not recomputed on reading.
+ */
+public class Workload {
+
+    private static final int MAGIC = 0x5343574c;
+    private static final int VERSION = 1;
+
+    private final EpochGenerator.Settings settings;
+    private final UTXOPool genesis;
+    private final Transaction[] epoch;
+
+    Workload(EpochGenerator.Settings settings, UTXOPool genesis, Transaction[] epoch) {
+        this.settings = settings;
+        this.genesis = genesis;
+        this.epoch = epoch;
+    }
+
+    /** @return a copy of the UTXOPool the epoch spends from */
+    public UTXOPool genesis() {
+        return new UTXOPool(genesis);
+    }
+
+    /** @return a copy of the epoch */
+    public Transaction[] epoch() {
+        return epoch.clone();
+    }
+
+    /** @return the settings the workload was generated with */
+    public EpochGenerator.Settings settings() {
+        return settings;
+    }
+
+    /**
+     * @return the workload stored in {@code file} if it was generated with {@code settings}, and
+     *         otherwise a newly generated one, which is then stored in {@code file}
+     */
+    public static Workload cached(Path file, EpochGenerator.Settings settings) throws IOException, GeneralSecurityException {
+        if (Files.exists(file)) {
+            Workload workload = read(file);
+            if (sameSettings(workload.settings, settings))
+                return workload;
+        }
+        Workload workload = new EpochGenerator(settings).workload();
+        workload.write(file);
+        return workload;
+    }
+
+    /** Writes this workload to {@code file}, replacing it at once when complete */
+    public void write(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream os = Files.newOutputStream(tmp)) {
+                write(new DataOutputStream(new BufferedOutputStream(os, 1 << 16)));
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeSettings(out);
+
+        //number the distinct keys, in order of first use
+        HashMap<PublicKey, Integer> keyRefs = new HashMap<>();
+        ArrayList<PublicKey> keys = new ArrayList<>();
+        ArrayList<UTXO> utxos = genesis.getAllUTXO();
+        for (UTXO utxo : utxos)
+            refOf(genesis.getTxOutput(utxo).address, keyRefs, keys);
+        for (Transaction tx : epoch) {
+            for (Transaction.Output op : tx.getOutputs())
+                refOf(op.address, keyRefs, keys);
+        }
+        out.writeInt(keys.size());
+        for (PublicKey key : keys)
+            writeBytes(out, key.getEncoded());
+
+        out.writeInt(utxos.size());
+        for (UTXO utxo : utxos) {
+            writeBytes(out, utxo.getTxHash());
+            out.writeInt(utxo.getIndex());
+            writeOutput(out, genesis.getTxOutput(utxo), keyRefs);
+        }
+
+        out.writeInt(epoch.length);
+        for (Transaction tx : epoch) {
+            writeBytes(out, tx.getHash());
+            out.writeInt(tx.numInputs());
+            for (Transaction.Input in : tx.getInputs()) {
+                writeBytes(out, in.prevTxHash);
+                out.writeInt(in.outputIndex);
+                writeBytes(out, in.signature);
+            }
+            out.writeInt(tx.numOutputs());
+            for (Transaction.Output op : tx.getOutputs())
+                writeOutput(out, op, keyRefs);
+        }
+        out.flush();
+    }
+
+    /** @return the workload stored in {@code file} by {@link #write(Path)} */
+    public static Workload read(Path file) throws IOException, GeneralSecurityException {
+        try (InputStream is = Files.newInputStream(file)) {
+            return read(new DataInputStream(new BufferedInputStream(is, 1 << 16)));
+        }
+    }
+
+    private static Workload read(DataInputStream in) throws IOException, GeneralSecurityException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            throw new IOException("not a workload file of version " + VERSION);
+        EpochGenerator.Settings settings = readSettings(in);
+
+        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+        PublicKey[] keys = new PublicKey[in.readInt()];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = keyFactory.generatePublic(new X509EncodedKeySpec(readBytes(in)));
+
+        //outputs of the genesis pool are not bound to a transaction of the epoch
+        Transaction owner = new Transaction();
+        UTXOPool genesis = new UTXOPool();
+        int utxoCount = in.readInt();
+        for (int i = 0; i < utxoCount; i++) {
+            UTXO utxo = new UTXO(readBytes(in), in.readInt());
+            long value = in.readLong();
+            genesis.addUTXO(utxo, owner.new Output(keys[in.readInt()], value));
+        }
+
+        Transaction[] epoch = new Transaction[in.readInt()];
+        for (int t = 0; t < epoch.length; t++) {
+            Transaction tx = new Transaction();
+            byte[] hash = readBytes(in);
+            int inputs = in.readInt();
+            for (int i = 0; i < inputs; i++) {
+                tx.addInput(readBytes(in), in.readInt());
+                tx.addSignature(readBytes(in), i);
+            }
+            int outputs = in.readInt();
+            for (int i = 0; i < outputs; i++) {
+                long value = in.readLong();
+                tx.addOutputUnits(value, keys[in.readInt()]);
+            }
+            tx.setHash(hash);
+            epoch[t] = tx;
+        }
+        return new Workload(settings, genesis, epoch);
+    }
+
+    private static int refOf(PublicKey key, HashMap<PublicKey, Integer> keyRefs, ArrayList<PublicKey> keys) {
+        Integer ref = keyRefs.get(key);
+        if (ref == null) {
+            ref = keys.size();
+            keyRefs.put(key, ref);
+            keys.add(key);
+        }
+        return ref;
+    }
+
+    private static void writeOutput(DataOutputStream out, Transaction.Output op, HashMap<PublicKey, Integer> keyRefs) throws IOException {
+        out.writeLong(op.value);
+        out.writeInt(keyRefs.get(op.address));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private void writeSettings(DataOutputStream out) throws IOException {
+        out.writeInt(settings.txCount);
+        out.writeInt(settings.fanIn);
+        out.writeInt(settings.fanOut);
+        out.writeDouble(settings.conflictRatio);
+        out.writeInt(settings.chainDepth);
+        out.writeDouble(settings.invalidSignatureRatio);
+        out.writeInt(settings.keyCount);
+        out.writeLong(settings.seed);
+    }
+
+    private static EpochGenerator.Settings readSettings(DataInputStream in) throws IOException {
+        return new EpochGenerator.Settings()
+                .txCount(in.readInt())
+                .fanIn(in.readInt())
+                .fanOut(in.readInt())
+                .conflictRatio(in.readDouble())
+                .chainDepth(in.readInt())
+                .invalidSignatureRatio(in.readDouble())
+                .keyCount(in.readInt())
+                .seed(in.readLong());
+    }
+
+    private static boolean sameSettings(EpochGenerator.Settings a, EpochGenerator.Settings b) {
+        return a.txCount == b.txCount && a.fanIn == b.fanIn && a.fanOut == b.fanOut
+                && a.conflictRatio == b.conflictRatio && a.chainDepth == b.chainDepth
+                && a.invalidSignatureRatio == b.invalidSignatureRatio && a.keyCount == b.keyCount
+                && a.seed == b.seed;
+    }
+}
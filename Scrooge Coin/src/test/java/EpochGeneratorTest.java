@@ -0,0 +1,92 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that generated epochs have the shape they were asked for.
+ *
+ * @author Debanshu
+ */
+public class EpochGeneratorTest {
+
+    public EpochGeneratorTest() {
+    }
+
+    /**
+     * Without conflicts every transaction of every level is valid once its parents are applied.
+     */
+    @org.junit.Test
+    public void testEpochWithoutConflictsIsFullyValid() throws GeneralSecurityException {
+        EpochGenerator generator = new EpochGenerator(new EpochGenerator.Settings()
+                .txCount(60).fanIn(2).fanOut(3).chainDepth(3).keyCount(3));
+        Transaction[] epoch = generator.epoch();
+        assertEquals(60, epoch.length);
+        for (Transaction tx : epoch) {
+            assertEquals(2, tx.numInputs());
+            assertEquals(3, tx.numOutputs());
+        }
+        TxHandler handler = new TxHandler(generator.genesis());
+        assertEquals(60, handler.handleTxs(epoch).length);
+    }
+
+    /**
+     * Conflicting transactions are not all accepted, and the same settings give the same epoch.
+     */
+    @org.junit.Test
+    public void testConflictsAndDeterminism() throws GeneralSecurityException {
+        EpochGenerator.Settings settings = new EpochGenerator.Settings()
+                .txCount(40).conflictRatio(0.5).chainDepth(2).keyCount(2).seed(7);
+        Transaction[] epoch = new EpochGenerator(settings).epoch();
+        Transaction[] again = new EpochGenerator(settings).epoch();
+        assertEquals(epoch.length, again.length);
+        for (int i = 0; i < epoch.length; i++)
+            assertArrayEquals(epoch[i].getHash(), again[i].getHash());
+
+        EpochGenerator generator = new EpochGenerator(settings);
+        Transaction[] accepted = new MaxFeeTxHandler(generator.genesis()).handleTxs(generator.epoch());
+        assertTrue(accepted.length < epoch.length);
+        //whatever was selected applies in order on the genesis pool
+        TxHandler check = new TxHandler(generator.genesis());
+        assertEquals(accepted.length, check.handleTxs(Arrays.copyOf(accepted, accepted.length)).length);
+    }
+
+    /**
+     * A workload read back from its file is the one that was written, and a second request for
+     * the same settings is answered from the file.
+     */
+    @org.junit.Test
+    public void testWorkloadRoundTrip() throws IOException, GeneralSecurityException {
+        EpochGenerator.Settings settings = new EpochGenerator.Settings()
+                .txCount(50).conflictRatio(0.2).invalidSignatureRatio(0.2).chainDepth(2).keyCount(2).seed(3);
+        Path file = Files.createTempFile("workload", ".bin");
+        Files.delete(file);
+        try {
+            Workload written = Workload.cached(file, settings);
+            assertTrue(Files.exists(file));
+            Workload read = Workload.cached(file, settings);
+            assertNotSame(written, read);
+
+            Transaction[] expected = written.epoch();
+            Transaction[] actual = read.epoch();
+            assertEquals(expected.length, actual.length);
+            for (int i = 0; i < expected.length; i++) {
+                assertArrayEquals(expected[i].getHash(), actual[i].getHash());
+                assertArrayEquals(expected[i].getRawTx(), actual[i].getRawTx());
+            }
+            assertEquals(written.genesis().size(), read.genesis().size());
+
+            //the same transactions are accepted from either copy, and some are not
+            Transaction[] fromWritten = new TxHandler(written.genesis()).handleTxs(expected);
+            Transaction[] fromRead = new TxHandler(read.genesis()).handleTxs(actual);
+            assertEquals(fromWritten.length, fromRead.length);
+            for (int i = 0; i < fromWritten.length; i++)
+                assertArrayEquals(fromWritten[i].getHash(), fromRead[i].getHash());
+            assertTrue(fromRead.length < actual.length);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the ledger recovered from a snapshot and journal is the one the handler had, also
+ * after a crash in the middle of writing an epoch.
+ *
+ * @author Debanshu
+ */
+public class EpochJournalTest {
+
+    public EpochJournalTest() {
+    }
+
+    private static void assertSamePool(UTXOPool expected, UTXOPool actual) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(new HashSet<>(expected.getAllUTXO()), new HashSet<>(actual.getAllUTXO()));
+        for (UTXO utxo : expected.getAllUTXO()) {
+            assertEquals(expected.getTxOutput(utxo).value, actual.getTxOutput(utxo).value);
+            assertEquals(expected.getTxOutput(utxo).address, actual.getTxOutput(utxo).address);
+        }
+    }
+
+    /**
+     * Epochs journaled by a handler, with a checkpoint in between and a torn entry at the end,
+     * recover to the ledger the handler had after its last complete epoch.
+     */
+    @org.junit.Test
+    public void testRecoverAfterCheckpointAndTornEntry() throws IOException, GeneralSecurityException {
+        EpochGenerator generator = new EpochGenerator(new EpochGenerator.Settings()
+                .txCount(60).fanIn(2).fanOut(2).keyCount(2).seed(4));
+        UTXOPool genesis = generator.genesis();
+        Transaction[] epoch = generator.epoch();
+        Path dir = Files.createTempDirectory("ledger");
+        Path snapshot = dir.resolve("utxos.snapshot");
+        Path journalFile = dir.resolve("epochs.journal");
+        try {
+            UTXOPool expected;
+            try (EpochJournal journal = EpochJournal.open(journalFile)) {
+                TxHandler handler = new TxHandler(EpochJournal.recover(snapshot, genesis, journal),
+                        ForkJoinPool.commonPool(), new SignatureCache(1 << 10), journal);
+                assertEquals(20, handler.handleTxs(Arrays.copyOfRange(epoch, 0, 20)).length);
+                journal.checkpoint(handler.ledger, snapshot);
+                assertEquals(20, handler.handleTxs(Arrays.copyOfRange(epoch, 20, 40)).length);
+                assertEquals(10, handler.handleTxs(Arrays.copyOfRange(epoch, 40, 50)).length);
+                assertEquals(3, journal.lastEpoch());
+                assertEquals(1, journal.baseEpoch());
+                expected = new UTXOPool(handler.ledger);
+            }
+
+            //a crash half way through writing the next epoch
+            long complete = Files.size(journalFile);
+            try (EpochJournal journal = EpochJournal.open(journalFile)) {
+                journal.append(Arrays.copyOfRange(epoch, 50, 60));
+            }
+            try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+                channel.truncate(channel.size() - 7);
+            }
+
+            try (EpochJournal journal = EpochJournal.open(journalFile)) {
+                assertEquals(complete, Files.size(journalFile));
+                assertEquals(3, journal.lastEpoch());
+                UTXOPool recovered = EpochJournal.recover(snapshot, genesis, journal);
+                assertSamePool(expected, recovered);
+
+                //the recovered ledger goes on where the old one stopped
+                TxHandler handler = new TxHandler(recovered, ForkJoinPool.commonPool(), new SignatureCache(1 << 10), journal);
+                assertEquals(10, handler.handleTxs(Arrays.copyOfRange(epoch, 50, 60)).length);
+                assertEquals(4, journal.lastEpoch());
+                expected = new UTXOPool(handler.ledger);
+            }
+            try (EpochJournal journal = EpochJournal.open(journalFile)) {
+                assertSamePool(expected, EpochJournal.recover(snapshot, genesis, journal));
+            }
+        } finally {
+            Files.deleteIfExists(snapshot);
+            Files.deleteIfExists(journalFile);
+            Files.delete(dir);
+        }
+    }
+
+    /**
+     * A crash right after a checkpoint keeps only what was forced to disk. The snapshot moved
+     * into place counts once its directory is synced, which happens before the journal is
+     * emptied, so the journal never ends up following a snapshot the crash took back.
+     */
+    @org.junit.Test
+    public void testCheckpointSurvivesLostRename() throws IOException, GeneralSecurityException {
+        EpochGenerator generator = new EpochGenerator(new EpochGenerator.Settings()
+                .txCount(40).fanIn(2).fanOut(2).keyCount(2).seed(6));
+        UTXOPool genesis = generator.genesis();
+        Transaction[] epoch = generator.epoch();
+        Path dir = Files.createTempDirectory("ledger");
+        Path snapshot = dir.resolve("utxos.snapshot");
+        Path journalFile = dir.resolve("epochs.journal");
+        MappedUTXOStore.DirectorySync sync = MappedUTXOStore.directorySync;
+        try {
+            UTXOPool expected;
+            //the snapshot file as a crash would leave it: whatever was there when the directory was last synced
+            byte[][] durable = new byte[1][];
+            try (EpochJournal journal = EpochJournal.open(journalFile)) {
+                TxHandler handler = new TxHandler(EpochJournal.recover(snapshot, genesis, journal),
+                        ForkJoinPool.commonPool(), new SignatureCache(1 << 10), journal);
+                assertEquals(20, handler.handleTxs(Arrays.copyOfRange(epoch, 0, 20)).length);
+                journal.checkpoint(handler.ledger, snapshot);
+                durable[0] = Files.readAllBytes(snapshot);
+                MappedUTXOStore.directorySync = d -> {
+                    durable[0] = Files.readAllBytes(snapshot);
+                    MappedUTXOStore.forceDirectory(d);
+                };
+                assertEquals(20, handler.handleTxs(Arrays.copyOfRange(epoch, 20, 40)).length);
+                journal.checkpoint(handler.ledger, snapshot);
+                expected = new UTXOPool(handler.ledger);
+            }
+
+            //the crash, losing any rename the directory was not synced for
+            Files.write(snapshot, durable[0]);
+            try (EpochJournal journal = EpochJournal.open(journalFile)) {
+                assertSamePool(expected, EpochJournal.recover(snapshot, genesis, journal));
+            }
+        } finally {
+            MappedUTXOStore.directorySync = sync;
+            Files.deleteIfExists(snapshot);
+            Files.deleteIfExists(journalFile);
+            Files.delete(dir);
+        }
+    }
+
+    /**
+     * Epochs committed from many threads at once are all journaled, each under its own number.
+     */
+    @org.junit.Test
+    public void testConcurrentCommits() throws Exception {
+        EpochGenerator generator = new EpochGenerator(new EpochGenerator.Settings()
+                .txCount(40).fanIn(1).fanOut(1).keyCount(1).seed(8));
+        Transaction[] epoch = generator.epoch();
+        Path journalFile = Files.createTempFile("epochs", ".journal");
+        Files.delete(journalFile);
+        try {
+            try (EpochJournal journal = EpochJournal.open(journalFile)) {
+                Thread[] threads = new Thread[8];
+                long[] epochs = new long[epoch.length];
+                for (int t = 0; t < threads.length; t++) {
+                    int first = t;
+                    threads[t] = new Thread(() -> {
+                        try {
+                            for (int i = first; i < epoch.length; i += threads.length)
+                                epochs[i] = journal.commit(new Transaction[] {epoch[i]});
+                        } catch (IOException e) {
+                            throw new AssertionError(e);
+                        }
+                    });
+                    threads[t].start();
+                }
+                for (Thread thread : threads)
+                    thread.join();
+                assertEquals(epoch.length, journal.lastEpoch());
+                Arrays.sort(epochs);
+                for (int i = 0; i < epochs.length; i++)
+                    assertEquals(i + 1, epochs[i]);
+            }
+            try (EpochJournal journal = EpochJournal.open(journalFile)) {
+                UTXOPool pool = new UTXOPool(generator.genesis());
+                assertEquals(epoch.length, journal.replay(pool, 0));
+                TxHandler handler = new TxHandler(generator.genesis());
+                assertEquals(epoch.length, handler.handleTxs(epoch).length);
+                assertSamePool(handler.ledger, pool);
+            }
+        } finally {
+            Files.deleteIfExists(journalFile);
+        }
+    }
+
+    /**
+     * An epoch streamed in windows is journaled as one epoch, a part per window, and cannot be
+     * checkpointed half way; the epochs after it are numbered on from it.
+     */
+    @org.junit.Test
+    public void testStreamedEpochTakesOneNumber() throws IOException, GeneralSecurityException {
+        EpochGenerator generator = new EpochGenerator(new EpochGenerator.Settings()
+                .txCount(60).fanIn(2).fanOut(2).keyCount(2).seed(9));
+        UTXOPool genesis = generator.genesis();
+        Transaction[] epoch = generator.epoch();
+        Path dir = Files.createTempDirectory("ledger");
+        Path snapshot = dir.resolve("utxos.snapshot");
+        Path journalFile = dir.resolve("epochs.journal");
+        try {
+            UTXOPool expected;
+            try (EpochJournal journal = EpochJournal.open(journalFile)) {
+                TxHandler handler = new TxHandler(EpochJournal.recover(snapshot, genesis, journal),
+                        ForkJoinPool.commonPool(), new SignatureCache(1 << 10), journal);
+                TxStreamProcessor stream = new TxStreamProcessor(handler, ForkJoinPool.commonPool(), 8, 64);
+                long[] streamed = new long[1];
+                assertEquals(40, stream.process(Arrays.asList(epoch).subList(0, 40).iterator(), tx -> {
+                    streamed[0]++;
+                    assertEquals(1, journal.lastEpoch());
+                    try {
+                        journal.checkpoint(handler.ledger, snapshot);
+                        fail("checkpoint of an open epoch");
+                    } catch (IllegalStateException | IOException e) {
+                        assertTrue(e instanceof IllegalStateException);
+                    }
+                }));
+                assertEquals(40, streamed[0]);
+                assertEquals(1, journal.lastEpoch());
+                assertEquals(0, stream.process(Collections.<Transaction>emptyIterator(), tx -> fail()));
+                assertEquals(2, journal.lastEpoch());
+                assertEquals(20, handler.handleTxs(Arrays.copyOfRange(epoch, 40, 60)).length);
+                assertEquals(3, journal.lastEpoch());
+                expected = new UTXOPool(handler.ledger);
+            }
+            try (EpochJournal journal = EpochJournal.open(journalFile)) {
+                assertEquals(3, journal.lastEpoch());
+                UTXOPool pool = new UTXOPool(genesis);
+                assertEquals(3, journal.replay(pool, 0));
+                assertSamePool(expected, pool);
+                journal.checkpoint(pool, snapshot);
+                assertEquals(3, MappedUTXOStore.open(snapshot).epoch());
+            }
+        } finally {
+            Files.deleteIfExists(snapshot);
+            Files.deleteIfExists(journalFile);
+            Files.delete(dir);
+        }
+    }
+}
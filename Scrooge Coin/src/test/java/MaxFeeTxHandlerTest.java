@@ -8,13 +8,13 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.security.Security;
 import java.security.Signature;
 import java.security.SignatureException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import java.util.stream.IntStream;
+import java.util.Arrays;
+import java.util.HashSet;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import static org.junit.Assert.*;
@@ -28,46 +28,10 @@ public class MaxFeeTxHandlerTest {
     public static MaxFeeTxHandler txHandler;
     public static Transaction[] txs;
     public static Signature signature;
-
-    private static Transaction createTransaction(
-            int[] inpIndexes,
-            Transaction[] inpTransactions,
-            PrivateKey[] privateKeys,
-            double[] outValues,
-            PublicKey[] publicKeys) {
-        //init new transaction
-        Transaction tx = new Transaction();
-        
-        //add the transaction inputs
-        IntStream.range(0, inpIndexes.length)
-                .forEach(idx -> {
-                    tx.addInput(inpTransactions[idx].getHash(), inpIndexes[idx]);
-                });
-
-        // add the transaction outputs
-        IntStream.range(0, outValues.length)
-                .forEach(idx -> {
-                    tx.addOutput(outValues[idx], publicKeys[idx]);
-                });
-        
-        //sign the input indexes with private keys
-        IntStream.range(0, inpIndexes.length)
-                .forEach(idx -> {
-                    try {
-                        signature.initSign(privateKeys[idx]);
-                        signature.update(tx.getRawDataToSign(idx));
-                        tx.addSignature(signature.sign(), idx);
-                    } catch (InvalidKeyException ex) {
-                        Logger.getLogger(MaxFeeTxHandlerTest.class.getName()).log(Level.SEVERE, null, ex);
-                    } catch (SignatureException ex) {
-                        Logger.getLogger(MaxFeeTxHandlerTest.class.getName()).log(Level.SEVERE, null, ex);
-                    }
-                });
-
-        //finalize and return transaction
-        tx.finalize();
-        return tx;
-    }
+    public static PrivateKey private_key_scrooge;
+    public static PublicKey public_key_scrooge;
+    public static PrivateKey private_key_alice;
+    public static PublicKey public_key_alice;
 
     public MaxFeeTxHandlerTest() {
     }
@@ -84,12 +48,12 @@ public class MaxFeeTxHandlerTest {
 
         // Generating two key pairs, one for Scrooge and one for Alice
         KeyPair pair = keyGen.generateKeyPair();
-        PrivateKey private_key_scrooge = pair.getPrivate();
-        PublicKey public_key_scrooge = pair.getPublic();
+        private_key_scrooge = pair.getPrivate();
+        public_key_scrooge = pair.getPublic();
 
         pair = keyGen.generateKeyPair();
-        PrivateKey private_key_alice = pair.getPrivate();
-        PublicKey public_key_alice = pair.getPublic();
+        private_key_alice = pair.getPrivate();
+        public_key_alice = pair.getPublic();
 
         // START - ROOT TRANSACTION
         // Generating a root transaction tx out of thin air, so that Scrooge owns a coin of value 10
@@ -117,13 +81,13 @@ public class MaxFeeTxHandlerTest {
         utxoPool.addUTXO(utxo, rootTransaction.getOutput(0));
 
         // START - PROPER TRANSACTION
-        Transaction tx1 = createTransaction(new int[]{0},
+        Transaction tx1 = TestTransactions.createTransaction(new int[]{0},
                 new Transaction[]{rootTransaction},
                 new PrivateKey[]{private_key_scrooge},
                 new double[]{5, 3, 1},
                 new PublicKey[]{public_key_alice, public_key_alice, public_key_alice});
         
-        Transaction tx2 = createTransaction(new int[]{0},
+        Transaction tx2 = TestTransactions.createTransaction(new int[]{0},
                 new Transaction[]{rootTransaction},
                 new PrivateKey[]{private_key_scrooge},
                 new double[]{4, 3, 1},
@@ -156,4 +120,98 @@ public class MaxFeeTxHandlerTest {
         assertArrayEquals(expResult, result);
     }
 
+    /**
+     * Two small transactions beat the one big transaction they both conflict with, which the
+     * greedy pass alone does not find.
+     */
+    @org.junit.Test
+    public void testHandleTxsFindsBestCombination() throws SignatureException, InvalidKeyException {
+        Transaction root = new Transaction();
+        root.addOutput(10, public_key_scrooge);
+        root.addOutput(10, public_key_scrooge);
+        root.addInput(BigInteger.valueOf(42).toByteArray(), 0);
+        signature.initSign(private_key_scrooge);
+        signature.update(root.getRawDataToSign(0));
+        root.addSignature(signature.sign(), 0);
+        root.finalize();
+
+        UTXOPool utxoPool = new UTXOPool();
+        utxoPool.addUTXO(new UTXO(root.getHash(), 0), root.getOutput(0));
+        utxoPool.addUTXO(new UTXO(root.getHash(), 1), root.getOutput(1));
+        MaxFeeTxHandler handler = new MaxFeeTxHandler(utxoPool);
+
+        Transaction first = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{root},
+                new PrivateKey[]{private_key_scrooge},
+                new double[]{7},
+                new PublicKey[]{public_key_alice});
+        Transaction both = TestTransactions.createTransaction(new int[]{0, 1},
+                new Transaction[]{root, root},
+                new PrivateKey[]{private_key_scrooge, private_key_scrooge},
+                new double[]{16},
+                new PublicKey[]{public_key_alice});
+        Transaction second = TestTransactions.createTransaction(new int[]{1},
+                new Transaction[]{root},
+                new PrivateKey[]{private_key_scrooge},
+                new double[]{7},
+                new PublicKey[]{public_key_alice});
+        // the child of first is listed before its parent and adds one more to the fees
+        Transaction childOfFirst = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{first},
+                new PrivateKey[]{private_key_alice},
+                new double[]{6},
+                new PublicKey[]{public_key_alice});
+
+        Transaction[] result = handler.handleTxs(new Transaction[]{childOfFirst, first, both, second});
+        assertEquals(3, result.length);
+        assertEquals(new HashSet<>(Arrays.asList(first, second, childOfFirst)), new HashSet<>(Arrays.asList(result)));
+        // the parent is applied before its child
+        assertTrue(Arrays.asList(result).indexOf(first) < Arrays.asList(result).indexOf(childOfFirst));
+    }
+
+    /**
+     * A long dependency chain is searched without running out of stack, and although building
+     * its graphs takes a good part of the default budget, the whole chain is selected.
+     */
+    @org.junit.Test
+    public void testHandleTxsLongChain() throws GeneralSecurityException {
+        EpochGenerator generator = new EpochGenerator(new EpochGenerator.Settings()
+                .txCount(10000).chainDepth(10000).fanIn(1).fanOut(1).keyCount(2));
+        Transaction[] result = new MaxFeeTxHandler(generator.genesis()).handleTxs(generator.epoch());
+        assertEquals(10000, result.length);
+    }
+
+    /**
+     * Fees whose total overflows a long still lead to the best selection instead of cutting the
+     * search off.
+     */
+    @org.junit.Test
+    public void testSelectWithOverflowingFees() {
+        Transaction root = new Transaction();
+        root.addOutput(1, public_key_scrooge);
+        root.addOutput(1, public_key_scrooge);
+        root.finalize();
+        UTXOPool ledger = new UTXOPool();
+        ledger.addUTXO(new UTXO(root.getHash(), 0), root.getOutput(0));
+        ledger.addUTXO(new UTXO(root.getHash(), 1), root.getOutput(1));
+        //spendsBoth conflicts with each of the others
+        Transaction spendsFirst = new Transaction();
+        spendsFirst.addInput(root.getHash(), 0);
+        spendsFirst.finalize();
+        Transaction spendsBoth = new Transaction();
+        spendsBoth.addInput(root.getHash(), 0);
+        spendsBoth.addInput(root.getHash(), 1);
+        spendsBoth.finalize();
+        Transaction spendsSecond = new Transaction();
+        spendsSecond.addInput(root.getHash(), 1);
+        spendsSecond.finalize();
+
+        long half = Long.MAX_VALUE / 2;
+        Transaction[] selected = new MaxFeeSelector(MaxFeeTxHandler.DEFAULT_TIME_BUDGET_NANOS).select(
+                new Transaction[]{spendsFirst, spendsBoth, spendsSecond},
+                new long[]{half, half + 10, half},
+                ledger, new HashSet<>());
+        assertEquals(new HashSet<>(Arrays.asList(spendsFirst, spendsSecond)), new HashSet<>(Arrays.asList(selected)));
+    }
+
 }
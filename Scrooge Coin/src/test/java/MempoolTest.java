@@ -0,0 +1,275 @@
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import java.math.BigInteger;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the Mempool in front of both handlers.
+ *
+ * @author Debanshu
+ */
+public class MempoolTest {
+
+    public static Signature signature;
+    public static PrivateKey private_key_scrooge;
+    public static PublicKey public_key_scrooge;
+    public static PrivateKey private_key_alice;
+    public static PublicKey public_key_alice;
+    public static Transaction rootTransaction;
+
+
+    public MempoolTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws InvalidKeyException, SignatureException, NoSuchAlgorithmException, NoSuchProviderException {
+        Security.addProvider(new BouncyCastleProvider());
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        SecureRandom random = SecureRandom.getInstance("SHA1PRNG", "SUN");
+        keyGen.initialize(1024, random);
+
+        KeyPair pair = keyGen.generateKeyPair();
+        private_key_scrooge = pair.getPrivate();
+        public_key_scrooge = pair.getPublic();
+
+        pair = keyGen.generateKeyPair();
+        private_key_alice = pair.getPrivate();
+        public_key_alice = pair.getPublic();
+
+        // root transaction out of thin air, so that Scrooge owns three coins of value 10
+        rootTransaction = new Transaction();
+        rootTransaction.addOutput(10, public_key_scrooge);
+        rootTransaction.addOutput(10, public_key_scrooge);
+        rootTransaction.addOutput(10, public_key_scrooge);
+        byte[] initialHash = BigInteger.valueOf(1695609641).toByteArray();
+        rootTransaction.addInput(initialHash, 0);
+
+        signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(private_key_scrooge);
+        signature.update(rootTransaction.getRawDataToSign(0));
+        rootTransaction.addSignature(signature.sign(), 0);
+        rootTransaction.finalize();
+    }
+
+    private static UTXOPool rootPool() {
+        UTXOPool utxoPool = new UTXOPool();
+        for (int idx = 0; idx < rootTransaction.numOutputs(); idx++)
+            utxoPool.addUTXO(new UTXO(rootTransaction.getHash(), idx), rootTransaction.getOutput(idx));
+        return utxoPool;
+    }
+
+    private static Transaction spendRoot(int index, double value) {
+        return TestTransactions.createTransaction(new int[]{index},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_scrooge},
+                new double[]{value},
+                new PublicKey[]{public_key_alice});
+    }
+
+    /**
+     * A child arriving before its parent waits as an orphan and is pooled with it, and the
+     * candidates list the parent first.
+     */
+    @org.junit.Test
+    public void testOrphanWaitsForParent() {
+        Mempool mempool = new Mempool(rootPool(), 1 << 20);
+        Transaction parent = spendRoot(0, 8);
+        Transaction child = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{parent},
+                new PrivateKey[]{private_key_alice},
+                new double[]{2},
+                new PublicKey[]{public_key_scrooge});
+
+        assertTrue(mempool.add(child));
+        assertTrue(mempool.isOrphan(child));
+        assertEquals(0, mempool.size());
+        assertTrue(mempool.add(parent));
+        assertFalse(mempool.isOrphan(child));
+        assertEquals(2, mempool.size());
+        //the child pays the higher fee, but cannot come before its parent
+        assertArrayEquals(new Transaction[]{parent, child}, mempool.candidates(10));
+        //with room for one, the child does not fit along with its parent
+        assertArrayEquals(new Transaction[]{parent}, mempool.candidates(1));
+
+        TxHandler handler = new TxHandler(rootPool());
+        assertArrayEquals(new Transaction[]{parent, child}, mempool.runEpoch(handler, 10));
+        assertEquals(0, mempool.size());
+    }
+
+    @org.junit.Test
+    public void testRejectsInvalidTransactions() {
+        Mempool mempool = new Mempool(rootPool(), 1 << 20);
+        Transaction wrongSigner = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_alice},
+                new double[]{5},
+                new PublicKey[]{public_key_alice});
+        assertFalse(mempool.add(wrongSigner));
+        assertFalse(mempool.add(spendRoot(0, 11)));
+        Transaction valid = spendRoot(0, 5);
+        assertTrue(mempool.add(valid));
+        assertFalse(mempool.add(valid));
+        assertEquals(1, mempool.size());
+    }
+
+    /**
+     * After an epoch the accepted transaction leaves the pool, and so does the one it conflicted
+     * with, while an unrelated one stays for the next epoch.
+     */
+    @org.junit.Test
+    public void testRunEpochDropsConflicts() {
+        Mempool mempool = new Mempool(rootPool(), 1 << 20);
+        Transaction low = spendRoot(0, 9);
+        Transaction high = spendRoot(0, 7);
+        Transaction other = spendRoot(1, 9);
+        assertTrue(mempool.add(low));
+        assertTrue(mempool.add(high));
+        assertTrue(mempool.add(other));
+        assertArrayEquals(new Transaction[]{high, low, other}, mempool.candidates(10));
+
+        MaxFeeTxHandler handler = new MaxFeeTxHandler(rootPool());
+        Transaction[] accepted = mempool.runEpoch(handler, 2);
+        assertArrayEquals(new Transaction[]{high}, accepted);
+        assertFalse(mempool.contains(high));
+        assertFalse(mempool.contains(low));
+        assertTrue(mempool.contains(other));
+    }
+
+    /**
+     * A transaction claiming an output that is gone from a confirmed parent, or an input without
+     * a hash, is rejected rather than kept as an orphan.
+     */
+    @org.junit.Test
+    public void testRejectsSpentOutputsInsteadOfOrphaning() {
+        Mempool mempool = new Mempool(rootPool(), 1 << 20);
+        Transaction parent = spendRoot(0, 8);
+        Transaction child = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{parent},
+                new PrivateKey[]{private_key_alice},
+                new double[]{8},
+                new PublicKey[]{public_key_scrooge});
+        assertTrue(mempool.add(parent));
+        assertTrue(mempool.add(child));
+        TxHandler handler = new TxHandler(rootPool());
+        assertArrayEquals(new Transaction[]{parent, child}, mempool.runEpoch(handler, 10));
+
+        Transaction spendsSpent = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{parent},
+                new PrivateKey[]{private_key_alice},
+                new double[]{7},
+                new PublicKey[]{public_key_alice});
+        Transaction spendsMissingIndex = TestTransactions.createTransaction(new int[]{1},
+                new Transaction[]{parent},
+                new PrivateKey[]{private_key_alice},
+                new double[]{1},
+                new PublicKey[]{public_key_alice});
+        assertFalse(mempool.add(spendsSpent));
+        assertFalse(mempool.add(spendsMissingIndex));
+        assertFalse(mempool.isOrphan(spendsSpent));
+        assertFalse(mempool.isOrphan(spendsMissingIndex));
+
+        Transaction noHash = new Transaction();
+        noHash.addInput(null, 0);
+        noHash.addOutput(1, public_key_alice);
+        noHash.addSignature(new byte[128], 0);
+        noHash.finalize();
+        assertFalse(mempool.add(noHash));
+        assertFalse(mempool.isOrphan(noHash));
+        assertEquals(0, mempool.size());
+    }
+
+    /**
+     * Over the memory cap the transaction paying the least per byte is evicted.
+     */
+    @org.junit.Test
+    public void testEvictsLowestFeeRateOverCap() {
+        Transaction a = spendRoot(0, 7);
+        Transaction b = spendRoot(1, 9);
+        Transaction c = spendRoot(2, 8);
+        Mempool mempool = new Mempool(rootPool(), a.rawTxSize() + c.rawTxSize());
+        assertTrue(mempool.add(a));
+        assertTrue(mempool.add(b));
+        assertTrue(mempool.add(c));
+        assertEquals(2, mempool.size());
+        assertTrue(mempool.contains(a));
+        assertFalse(mempool.contains(b));
+        assertTrue(mempool.contains(c));
+        assertTrue(mempool.bytes() <= a.rawTxSize() + c.rawTxSize());
+    }
+
+
+    /**
+     * An orphan rejected when one of its parents is confirmed stops waiting for the others too.
+     */
+    @org.junit.Test
+    public void testRejectedOrphanStopsWaiting() {
+        Mempool mempool = new Mempool(rootPool(), 1 << 20);
+        Transaction parent = spendRoot(0, 8);
+        Transaction otherParent = spendRoot(1, 8);
+        Transaction spender = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{parent},
+                new PrivateKey[]{private_key_alice},
+                new double[]{8},
+                new PublicKey[]{public_key_scrooge});
+        Transaction orphan = TestTransactions.createTransaction(new int[]{0, 0},
+                new Transaction[]{parent, otherParent},
+                new PrivateKey[]{private_key_alice, private_key_alice},
+                new double[]{16},
+                new PublicKey[]{public_key_scrooge});
+        assertTrue(mempool.add(orphan));
+        assertEquals(2, mempool.awaitedParentCount());
+
+        //the output the orphan claims is spent in the same epoch as its parent is confirmed
+        TxHandler handler = new TxHandler(rootPool());
+        Transaction[] accepted = handler.handleTxs(new Transaction[]{parent, spender});
+        assertEquals(2, accepted.length);
+        mempool.confirm(accepted, handler.ledger);
+        assertFalse(mempool.isOrphan(orphan));
+        assertEquals(0, mempool.awaitedParentCount());
+    }
+
+    /**
+     * The candidates reach the handler pre-validated: only the stateless rules the handler has
+     * besides those of the pool are checked again.
+     */
+    @org.junit.Test
+    public void testRunEpochKeepsPreValidation() {
+        Mempool mempool = new Mempool(rootPool(), 1 << 20);
+        Transaction first = spendRoot(0, 8);
+        Transaction second = spendRoot(1, 8);
+        assertTrue(mempool.add(first));
+        assertTrue(mempool.add(second));
+
+        TxHandler handler = new TxHandler(rootPool());
+        TxMetrics metrics = new TxMetrics();
+        handler.setMetrics(metrics);
+        int[] policyChecks = new int[1];
+        handler.getValidator().addRule(TxValidator.rule(ValidationRule.POLICY, TxValidator.Stage.STATELESS, ctx -> {
+            policyChecks[0]++;
+            return ctx.tx() == second ? 0 : TxValidator.Rule.PASSED;
+        }));
+        assertArrayEquals(new Transaction[]{first}, mempool.runEpoch(handler, 10));
+        assertEquals(2, policyChecks[0]);
+        assertEquals(0, metrics.checkLatency(ValidationRule.HASH_MATCHES_RAW_TX).count());
+        assertEquals(1, metrics.rejections(ValidationRule.POLICY));
+
+        MaxFeeTxHandler maxFee = new MaxFeeTxHandler(rootPool());
+        TxMetrics maxFeeMetrics = new TxMetrics();
+        maxFee.setMetrics(maxFeeMetrics);
+        assertArrayEquals(new Transaction[]{second}, mempool.runEpoch(maxFee, 10));
+        assertEquals(0, maxFeeMetrics.checkLatency(ValidationRule.HASH_MATCHES_RAW_TX).count());
+    }
+}
@@ -0,0 +1,62 @@
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.stream.IntStream;
+
+/**
+ * Builds the signed transactions the tests of the handlers and the Mempool spend their coins with.
+ *
+ * @author Debanshu
+ */
+final class TestTransactions {
+
+    private TestTransactions() {
+    }
+
+    /**
+     * @return a finalized transaction spending output {@code inpIndexes[i]} of
+     *         {@code inpTransactions[i]}, signed with {@code privateKeys[i]}, for every input
+     *         {@code i}, and paying {@code outValues[j]} coins to {@code publicKeys[j]}
+     */
+    static Transaction createTransaction(
+            int[] inpIndexes,
+            Transaction[] inpTransactions,
+            PrivateKey[] privateKeys,
+            double[] outValues,
+            PublicKey[] publicKeys) {
+        //init new transaction
+        Transaction tx = new Transaction();
+
+        //add the transaction inputs
+        IntStream.range(0, inpIndexes.length)
+                .forEach(idx -> {
+                    tx.addInput(inpTransactions[idx].getHash(), inpIndexes[idx]);
+                });
+
+        // add the transaction outputs, a negative one from its units as no amount of coins is negative
+        IntStream.range(0, outValues.length)
+                .forEach(idx -> {
+                    if (outValues[idx] < 0)
+                        tx.addOutputUnits(-Amount.ofCoins(-outValues[idx]), publicKeys[idx]);
+                    else
+                        tx.addOutput(outValues[idx], publicKeys[idx]);
+                });
+
+        //sign the input indexes with private keys, a signature of its own keeps this thread safe
+        try {
+            Signature signature = Signature.getInstance("SHA256withRSA");
+            for (int idx = 0; idx < inpIndexes.length; idx++) {
+                signature.initSign(privateKeys[idx]);
+                signature.update(tx.getRawDataToSign(idx));
+                tx.addSignature(signature.sign(), idx);
+            }
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        //finalize and return transaction
+        tx.finalize();
+        return tx;
+    }
+}
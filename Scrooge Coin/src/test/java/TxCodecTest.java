@@ -0,0 +1,180 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that transactions read through a TransactionView, in memory and from a mapped file,
+ * agree with the transactions they were encoded from.
+ *
+ * @author Debanshu
+ */
+public class TxCodecTest {
+
+    public TxCodecTest() {
+    }
+
+    /**
+     * Every field, the hash and the signatures check out from the records of an epoch, and
+     * decoding gives back the same raw transactions.
+     */
+    @org.junit.Test
+    public void testViewMatchesTransactions() throws GeneralSecurityException {
+        EpochGenerator generator = new EpochGenerator(new EpochGenerator.Settings()
+                .txCount(30).fanIn(2).fanOut(3).chainDepth(2).keyCount(2).seed(5));
+        Transaction[] epoch = generator.epoch();
+        ByteBuffer buf = ByteBuffer.allocate(size(epoch));
+        for (Transaction tx : epoch)
+            TxCodec.encode(tx, buf);
+        buf.flip();
+        check(epoch, generator.genesis(), buf);
+    }
+
+    /**
+     * Records laid end to end in a file can be read in place once the file is mapped.
+     */
+    @org.junit.Test
+    public void testMappedFile() throws IOException, GeneralSecurityException {
+        EpochGenerator generator = new EpochGenerator(new EpochGenerator.Settings()
+                .txCount(20).fanIn(1).fanOut(2).keyCount(2).seed(9));
+        Transaction[] epoch = generator.epoch();
+        Path file = Files.createTempFile("epoch", ".bin");
+        try {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                for (Transaction tx : epoch)
+                    channel.write(ByteBuffer.wrap(TxCodec.encode(tx)));
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                check(epoch, generator.genesis(), mapped);
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * A view wrapping the same buffer again sees its current limit: records appended since are
+     * read, and one cut off by a lower limit is refused.
+     */
+    @org.junit.Test
+    public void testWrapSeesCurrentLimit() throws GeneralSecurityException {
+        EpochGenerator generator = new EpochGenerator(new EpochGenerator.Settings()
+                .txCount(2).fanIn(1).fanOut(1).keyCount(2).seed(3));
+        Transaction[] epoch = generator.epoch();
+        ByteBuffer buf = ByteBuffer.allocate(size(epoch));
+        TxCodec.encode(epoch[0], buf);
+        int first = buf.position();
+        buf.flip();
+        TransactionView view = new TransactionView().wrap(buf, 0);
+        assertTrue(view.hashEquals(epoch[0].getHash()));
+
+        //append the second record behind the first
+        buf.limit(buf.capacity()).position(first);
+        TxCodec.encode(epoch[1], buf);
+        buf.flip();
+        view.wrap(buf, first);
+        assertTrue(view.hashEquals(epoch[1].getHash()));
+        assertArrayEquals(epoch[1].getHash(), Crypto.hash(view));
+
+        buf.limit(first);
+        try {
+            view.wrap(buf, first);
+            fail("wrapped past the limit");
+        } catch (IndexOutOfBoundsException e) {
+            //expected
+        }
+    }
+
+    /**
+     * Records validated in place get the result their transactions get, and a record changed
+     * after it was encoded no longer matches its hash.
+     */
+    @org.junit.Test
+    public void testValidateView() throws GeneralSecurityException {
+        EpochGenerator generator = new EpochGenerator(new EpochGenerator.Settings()
+                .txCount(20).fanIn(2).fanOut(2).chainDepth(2).keyCount(2).seed(7));
+        Transaction[] epoch = generator.epoch();
+        UTXOPool outputs = new UTXOPool(generator.genesis());
+        for (Transaction tx : epoch) {
+            for (int j = 0; j < tx.numOutputs(); j++)
+                outputs.addUTXO(new UTXO(tx.getHash(), j), tx.getOutput(j));
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size(epoch));
+        for (Transaction tx : epoch)
+            TxCodec.encode(tx, buf);
+        buf.flip();
+
+        SignatureCache cache = new SignatureCache(1024);
+        TxValidator validator = new TxValidator(cache);
+        TransactionView view = new TransactionView();
+        int offset = 0;
+        int inputs = 0;
+        for (Transaction tx : epoch) {
+            view.wrap(buf, offset);
+            ValidationResult result = validator.validate(view, outputs);
+            assertTrue(result.isValid());
+            assertEquals(validator.validate(tx, outputs).fee(), result.fee());
+            inputs += tx.numInputs();
+            offset = view.end();
+        }
+        //the decoded transactions found the signatures the records put in the cache
+        assertEquals(inputs, cache.misses());
+        assertEquals(inputs, cache.hits());
+
+        //a rule added to the validator checks the records as well, decoding them if it must
+        validator.addRule(TxValidator.rule(ValidationRule.POLICY, TxValidator.Stage.LEDGER,
+                ctx -> ctx.tx().numOutputs() > 1 ? 1 : TxValidator.Rule.PASSED));
+        view.wrap(buf, 0);
+        assertEquals(ValidationRule.POLICY, validator.validate(view, outputs).failedRule());
+
+        //raise the first output value of the first record
+        view.wrap(buf, 0);
+        int value = view.outputsSectionOffset() + Long.BYTES - 1;
+        buf.put(value, (byte) (buf.get(value) + 1));
+        ValidationResult tampered = validator.validate(view, outputs);
+        assertEquals(ValidationRule.HASH_MATCHES_RAW_TX, tampered.failedRule());
+    }
+
+    private static int size(Transaction[] epoch) {
+        int size = 0;
+        for (Transaction tx : epoch)
+            size += TxCodec.encodedSize(tx);
+        return size;
+    }
+
+    private static void check(Transaction[] epoch, UTXOPool genesis, ByteBuffer buf) throws GeneralSecurityException {
+        //the owners of every output the epoch can spend
+        UTXOPool outputs = new UTXOPool(genesis);
+        for (Transaction tx : epoch) {
+            for (int j = 0; j < tx.numOutputs(); j++)
+                outputs.addUTXO(new UTXO(tx.getHash(), j), tx.getOutput(j));
+        }
+
+        TxCodec codec = new TxCodec();
+        TransactionView view = new TransactionView();
+        int offset = 0;
+        for (Transaction tx : epoch) {
+            view.wrap(buf, offset);
+            assertTrue(view.hashEquals(tx.getHash()));
+            assertArrayEquals(tx.getHash(), Crypto.hash(view));
+            assertEquals(tx.numInputs(), view.numInputs());
+            assertEquals(tx.numOutputs(), view.numOutputs());
+            for (int i = 0; i < tx.numInputs(); i++) {
+                UTXO utxo = view.utxo(i);
+                assertEquals(tx.getInput(i).getUTXO(), utxo);
+                assertTrue(Crypto.verifySignature(outputs.getTxOutput(utxo).address, view, i));
+            }
+            for (int j = 0; j < tx.numOutputs(); j++)
+                assertEquals(tx.getOutput(j).value, view.outputValue(j));
+            assertArrayEquals(tx.getRawTx(), codec.decode(view).getRawTx());
+            offset = view.end();
+        }
+        assertEquals(buf.limit(), offset);
+    }
+}
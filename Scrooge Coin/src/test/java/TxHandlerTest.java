@@ -0,0 +1,510 @@
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Debanshu
+ */
+public class TxHandlerTest {
+
+    public static Signature signature;
+    public static PrivateKey private_key_scrooge;
+    public static PublicKey public_key_scrooge;
+    public static PrivateKey private_key_alice;
+    public static PublicKey public_key_alice;
+    public static Transaction rootTransaction;
+
+    public TxHandler txHandler;
+
+    public TxHandlerTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws InvalidKeyException, SignatureException, NoSuchAlgorithmException, NoSuchProviderException {
+        Security.addProvider(new BouncyCastleProvider());
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        SecureRandom random = SecureRandom.getInstance("SHA1PRNG", "SUN");
+        keyGen.initialize(1024, random);
+
+        KeyPair pair = keyGen.generateKeyPair();
+        private_key_scrooge = pair.getPrivate();
+        public_key_scrooge = pair.getPublic();
+
+        pair = keyGen.generateKeyPair();
+        private_key_alice = pair.getPrivate();
+        public_key_alice = pair.getPublic();
+
+        // root transaction out of thin air, so that Scrooge owns a coin of value 10
+        rootTransaction = new Transaction();
+        rootTransaction.addOutput(10, public_key_scrooge);
+        byte[] initialHash = BigInteger.valueOf(1695609641).toByteArray();
+        rootTransaction.addInput(initialHash, 0);
+
+        signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(private_key_scrooge);
+        signature.update(rootTransaction.getRawDataToSign(0));
+        rootTransaction.addSignature(signature.sign(), 0);
+        rootTransaction.finalize();
+    }
+
+    @Before
+    public void setUp() {
+        UTXOPool utxoPool = new UTXOPool();
+        utxoPool.addUTXO(new UTXO(rootTransaction.getHash(), 0), rootTransaction.getOutput(0));
+        txHandler = new TxHandler(utxoPool);
+    }
+
+    /**
+     * Test of isValidTx method, of class TxHandler.
+     */
+    @org.junit.Test
+    public void testIsValidTx() {
+        Transaction tx = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_scrooge},
+                new double[]{5, 5},
+                new PublicKey[]{public_key_alice, public_key_alice});
+        assertTrue(txHandler.isValidTx(tx));
+
+        Transaction wrongSigner = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_alice},
+                new double[]{5, 5},
+                new PublicKey[]{public_key_alice, public_key_alice});
+        assertFalse(txHandler.isValidTx(wrongSigner));
+    }
+
+    /**
+     * Validating the same transaction again is answered by the signature cache.
+     */
+    @org.junit.Test
+    public void testIsValidTxUsesSignatureCache() {
+        UTXOPool utxoPool = new UTXOPool();
+        utxoPool.addUTXO(new UTXO(rootTransaction.getHash(), 0), rootTransaction.getOutput(0));
+        SignatureCache cache = new SignatureCache(16);
+        TxHandler handler = new TxHandler(utxoPool, ForkJoinPool.commonPool(), cache);
+        Transaction tx = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_scrooge},
+                new double[]{7},
+                new PublicKey[]{public_key_alice});
+
+        assertTrue(handler.isValidTx(tx));
+        assertTrue(handler.isValidTx(tx));
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.hits());
+        assertArrayEquals(new Transaction[]{tx}, handler.handleTxs(new Transaction[]{tx}));
+        assertEquals(2, cache.hits());
+    }
+
+    /**
+     * A child listed before its parent is accepted once the parent has been applied.
+     */
+    @org.junit.Test
+    public void testHandleTxsAcceptsChildBeforeParent() {
+        Transaction parent = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_scrooge},
+                new double[]{6, 4},
+                new PublicKey[]{public_key_alice, public_key_alice});
+        Transaction child = TestTransactions.createTransaction(new int[]{0, 1},
+                new Transaction[]{parent, parent},
+                new PrivateKey[]{private_key_alice, private_key_alice},
+                new double[]{9},
+                new PublicKey[]{public_key_scrooge});
+        Transaction grandChild = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{child},
+                new PrivateKey[]{private_key_scrooge},
+                new double[]{9},
+                new PublicKey[]{public_key_alice});
+
+        Transaction[] result = txHandler.handleTxs(new Transaction[]{grandChild, child, parent});
+        assertArrayEquals(new Transaction[]{parent, child, grandChild}, result);
+        assertTrue(txHandler.ledger.contains(new UTXO(grandChild.getHash(), 0)));
+        assertFalse(txHandler.ledger.contains(new UTXO(rootTransaction.getHash(), 0)));
+    }
+
+    /**
+     * Of two transactions spending the same output only the first one is accepted, and the
+     * children of the rejected one are rejected too.
+     */
+    @org.junit.Test
+    public void testHandleTxsRejectsDoubleSpend() {
+        Transaction first = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_scrooge},
+                new double[]{10},
+                new PublicKey[]{public_key_alice});
+        Transaction second = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_scrooge},
+                new double[]{9},
+                new PublicKey[]{public_key_alice});
+        Transaction childOfSecond = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{second},
+                new PrivateKey[]{private_key_alice},
+                new double[]{9},
+                new PublicKey[]{public_key_scrooge});
+
+        Transaction[] result = txHandler.handleTxs(new Transaction[]{childOfSecond, first, second});
+        assertArrayEquals(new Transaction[]{first}, result);
+    }
+
+    /**
+     * Amounts are summed exactly: 0.1 + 0.2 is 0.3, which a sum of doubles gets wrong.
+     */
+    @org.junit.Test
+    public void testFeeIsExact() {
+        Transaction split = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_scrooge},
+                new double[]{0.3, 9.7},
+                new PublicKey[]{public_key_alice, public_key_alice});
+        Transaction spendAll = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{split},
+                new PrivateKey[]{private_key_alice},
+                new double[]{0.1, 0.2},
+                new PublicKey[]{public_key_scrooge, public_key_scrooge});
+
+        assertArrayEquals(new Transaction[]{split, spendAll}, txHandler.handleTxs(new Transaction[]{split, spendAll}));
+        assertEquals(Amount.ofCoins(0.2), txHandler.ledger.getTxOutput(new UTXO(spendAll.getHash(), 1)).value);
+    }
+
+    /**
+     * An amount of coins that is negative, however little, is rejected rather than rounded to
+     * zero, as is one that is not a number or too large.
+     */
+    @org.junit.Test
+    public void testRejectsUnrepresentableAmounts() {
+        for (double coins : new double[]{-1e-9, -1, Double.NaN, 1e300}) {
+            try {
+                Amount.ofCoins(coins);
+                fail("accepted " + coins);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        assertEquals(0, Amount.ofCoins(1e-9));
+        assertEquals(Amount.UNITS_PER_COIN, Amount.ofCoins(1));
+    }
+
+    /**
+     * An output changed through its public fields after the transaction was signed changes what
+     * is signed and hashed, so the signature no longer holds.
+     */
+    @org.junit.Test
+    public void testChangedOutputInvalidatesSignature() {
+        Transaction tx = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_scrooge},
+                new double[]{9},
+                new PublicKey[]{public_key_alice});
+        byte[] signed = tx.getRawDataToSign(0);
+        assertTrue(txHandler.isValidTx(tx));
+
+        tx.getOutput(0).value = Amount.ofCoins(10);
+        tx.getOutput(0).address = public_key_scrooge;
+        assertFalse(Arrays.equals(signed, tx.getRawDataToSign(0)));
+        tx.finalize();
+        assertFalse(txHandler.isValidTx(tx));
+    }
+
+    /**
+     * A rejected transaction is told the rule it breaks and where, a valid one its fee.
+     */
+    @org.junit.Test
+    public void testValidateReportsRuleAndIndex() {
+        Transaction valid = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_scrooge},
+                new double[]{7.5},
+                new PublicKey[]{public_key_alice});
+        ValidationResult result = txHandler.validate(valid);
+        assertTrue(result.isValid());
+        assertEquals(Amount.ofCoins(2.5), result.fee());
+
+        Transaction missingSecond = TestTransactions.createTransaction(new int[]{0, 0},
+                new Transaction[]{rootTransaction, valid},
+                new PrivateKey[]{private_key_scrooge, private_key_alice},
+                new double[]{1},
+                new PublicKey[]{public_key_alice});
+        result = txHandler.validate(missingSecond);
+        assertEquals(ValidationRule.INPUTS_IN_POOL, result.failedRule());
+        assertEquals(1, result.index());
+        assertEquals(ValidationResult.INVALID_FEE, result.fee());
+
+        Transaction wrongSigner = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_alice},
+                new double[]{5},
+                new PublicKey[]{public_key_alice});
+        result = txHandler.validate(wrongSigner);
+        assertEquals(ValidationRule.SIGNATURES_VALID, result.failedRule());
+        assertEquals(0, result.index());
+
+        Transaction claimsTwice = TestTransactions.createTransaction(new int[]{0, 0},
+                new Transaction[]{rootTransaction, rootTransaction},
+                new PrivateKey[]{private_key_scrooge, private_key_scrooge},
+                new double[]{5},
+                new PublicKey[]{public_key_alice});
+        result = txHandler.validate(claimsTwice);
+        assertEquals(ValidationRule.NO_INPUT_CLAIMED_TWICE, result.failedRule());
+        assertEquals(1, result.index());
+
+        Transaction negativeOutput = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_scrooge},
+                new double[]{5, -1},
+                new PublicKey[]{public_key_alice, public_key_alice});
+        result = txHandler.validate(negativeOutput);
+        assertEquals(ValidationRule.OUTPUTS_NON_NEGATIVE, result.failedRule());
+        assertEquals(1, result.index());
+
+        Transaction overspends = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_scrooge},
+                new double[]{10.5},
+                new PublicKey[]{public_key_alice});
+        result = txHandler.validate(overspends);
+        assertEquals(ValidationRule.FEE_NON_NEGATIVE, result.failedRule());
+        assertEquals(ValidationResult.NO_INDEX, result.index());
+    }
+
+    /**
+     * A transaction breaking a cheaper rule, including one added to the validator, is rejected
+     * without a signature being verified.
+     */
+    @org.junit.Test
+    public void testCheapRulesRejectBeforeSignatures() {
+        UTXOPool utxoPool = new UTXOPool();
+        utxoPool.addUTXO(new UTXO(rootTransaction.getHash(), 0), rootTransaction.getOutput(0));
+        SignatureCache cache = new SignatureCache(16);
+        TxHandler handler = new TxHandler(utxoPool, ForkJoinPool.commonPool(), cache);
+        handler.getValidator().addRule(TxValidator.rule(ValidationRule.POLICY, TxValidator.Stage.LEDGER,
+                ctx -> ctx.fee() < Amount.ofCoins(1) ? ValidationResult.NO_INDEX : TxValidator.Rule.PASSED));
+
+        Transaction negativeOutput = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_alice},
+                new double[]{5, -1},
+                new PublicKey[]{public_key_alice, public_key_alice});
+        Transaction overspends = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_alice},
+                new double[]{11},
+                new PublicKey[]{public_key_alice});
+        Transaction feeTooLow = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_scrooge},
+                new double[]{9.5},
+                new PublicKey[]{public_key_alice});
+        assertEquals(ValidationRule.OUTPUTS_NON_NEGATIVE, handler.validate(negativeOutput).failedRule());
+        assertEquals(ValidationRule.FEE_NON_NEGATIVE, handler.validate(overspends).failedRule());
+        assertEquals(ValidationRule.POLICY, handler.validate(feeTooLow).failedRule());
+        assertEquals(0, handler.handleTxs(new Transaction[]{negativeOutput, overspends, feeTooLow}).length);
+        assertEquals(0, cache.misses() + cache.hits());
+    }
+
+    /**
+     * Transactions pre-validated on several threads can be handed to the handler, those with a
+     * forged hash or a malformed signature are rejected before the ledger is read.
+     */
+    @org.junit.Test
+    public void testPreValidateOnIngestThreads() {
+        Transaction paysFee = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_scrooge},
+                new double[]{9},
+                new PublicKey[]{public_key_alice});
+        Transaction child = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{paysFee},
+                new PrivateKey[]{private_key_alice},
+                new double[]{9},
+                new PublicKey[]{public_key_scrooge});
+        Transaction forgedHash = new Transaction(paysFee);
+        forgedHash.setHash(child.getHash());
+        Transaction shortSignature = new Transaction();
+        shortSignature.addInput(rootTransaction.getHash(), 0);
+        shortSignature.addOutput(9, public_key_alice);
+        shortSignature.addSignature(new byte[TxValidator.MIN_SIGNATURE_BYTES - 1], 0);
+        shortSignature.finalize();
+
+        Transaction[] arrived = {child, forgedHash, shortSignature, paysFee};
+        TxValidator.Context[] preValidated = IntStream.range(0, arrived.length)
+                .parallel()
+                .mapToObj(i -> txHandler.preValidate(arrived[i]))
+                .toArray(TxValidator.Context[]::new);
+        assertFalse(preValidated[0].isRejected());
+        assertEquals(ValidationRule.HASH_MATCHES_RAW_TX, preValidated[1].rejection().failedRule());
+        assertEquals(ValidationRule.SIGNATURE_SIZE, preValidated[2].rejection().failedRule());
+        assertEquals(0, preValidated[2].rejection().index());
+        assertFalse(preValidated[3].isRejected());
+
+        assertArrayEquals(new Transaction[]{paysFee, child}, txHandler.handleTxs(preValidated));
+    }
+
+    /**
+     * A streamed epoch is committed as it arrives: a child arriving before its parent waits for
+     * it, and each accepted transaction is handed out before the rest of the epoch is taken.
+     */
+    @org.junit.Test
+    public void testStreamedEpochCommitsOnArrival() {
+        Transaction parent = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_scrooge},
+                new double[]{9},
+                new PublicKey[]{public_key_alice});
+        Transaction child = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{parent},
+                new PrivateKey[]{private_key_alice},
+                new double[]{8},
+                new PublicKey[]{public_key_scrooge});
+        Transaction conflicting = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_scrooge},
+                new double[]{5},
+                new PublicKey[]{public_key_alice});
+        Transaction alsoConflicting = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_scrooge},
+                new double[]{4},
+                new PublicKey[]{public_key_alice});
+        Transaction neverParented = TestTransactions.createTransaction(new int[]{1},
+                new Transaction[]{parent},
+                new PrivateKey[]{private_key_alice},
+                new double[]{1},
+                new PublicKey[]{public_key_scrooge});
+        TxMetrics metrics = new TxMetrics();
+        txHandler.setMetrics(metrics);
+
+        List<Transaction> arriving = Arrays.asList(child, neverParented, parent, conflicting, alsoConflicting);
+        Iterator<Transaction> it = arriving.iterator();
+        List<Transaction> accepted = new ArrayList<>();
+        List<Boolean> moreToCome = new ArrayList<>();
+        TxStreamProcessor stream = new TxStreamProcessor(txHandler, ForkJoinPool.commonPool(), 1, 16);
+        long count = stream.process(it, tx -> {
+            accepted.add(tx);
+            moreToCome.add(it.hasNext());
+        });
+
+        assertEquals(2, count);
+        assertEquals(Arrays.asList(parent, child), accepted);
+        assertTrue(moreToCome.get(0)); //one window is taken ahead of the one committed
+        assertTrue(txHandler.ledger.contains(new UTXO(child.getHash(), 0)));
+        assertEquals(5, metrics.getTransactionsProposed());
+        assertEquals(3, metrics.rejections(ValidationRule.INPUTS_IN_POOL));
+    }
+
+    /**
+     * A streamed transaction spending an output already spent in the epoch is rejected at once
+     * instead of waiting, so it does not push out one whose parent is still to come.
+     */
+    @org.junit.Test
+    public void testStreamRejectsSpentOutputsWithoutWaiting() {
+        Transaction parent = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_scrooge},
+                new double[]{9},
+                new PublicKey[]{public_key_alice});
+        Transaction child = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{parent},
+                new PrivateKey[]{private_key_alice},
+                new double[]{8},
+                new PublicKey[]{public_key_scrooge});
+        Transaction grandchild = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{child},
+                new PrivateKey[]{private_key_scrooge},
+                new double[]{7},
+                new PublicKey[]{public_key_alice});
+        Transaction greatGrandchild = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{grandchild},
+                new PrivateKey[]{private_key_alice},
+                new double[]{6},
+                new PublicKey[]{public_key_scrooge});
+        Transaction doubleSpend = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{parent},
+                new PrivateKey[]{private_key_alice},
+                new double[]{5},
+                new PublicKey[]{public_key_alice});
+
+        //room for one to wait, taken by the great-grandchild until the grandchild arrives
+        List<Transaction> arriving = Arrays.asList(parent, child, greatGrandchild, doubleSpend, grandchild);
+        List<Transaction> accepted = new ArrayList<>();
+        TxStreamProcessor stream = new TxStreamProcessor(txHandler, ForkJoinPool.commonPool(), 1, 1);
+        assertEquals(4, stream.process(arriving.iterator(), accepted::add));
+        assertEquals(Arrays.asList(parent, child, grandchild, greatGrandchild), accepted);
+    }
+
+    /**
+     * Every rejection is counted under the rule it broke, and the accepted fees add up, also as
+     * read over JMX.
+     */
+    @org.junit.Test
+    public void testMetricsCountRejections() throws JMException {
+        TxMetrics metrics = new TxMetrics();
+        txHandler.setMetrics(metrics);
+        Transaction paysFee = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_scrooge},
+                new double[]{9},
+                new PublicKey[]{public_key_alice});
+        Transaction conflicting = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_scrooge},
+                new double[]{8},
+                new PublicKey[]{public_key_alice});
+        Transaction wrongSigner = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_alice},
+                new double[]{5},
+                new PublicKey[]{public_key_alice});
+        Transaction overspends = TestTransactions.createTransaction(new int[]{0},
+                new Transaction[]{rootTransaction},
+                new PrivateKey[]{private_key_scrooge},
+                new double[]{11},
+                new PublicKey[]{public_key_alice});
+
+        Transaction[] result = txHandler.handleTxs(new Transaction[]{paysFee, conflicting, wrongSigner, overspends});
+        assertArrayEquals(new Transaction[]{paysFee}, result);
+        assertEquals(1, metrics.rejections(ValidationRule.INPUTS_IN_POOL));
+        assertEquals(1, metrics.rejections(ValidationRule.SIGNATURES_VALID));
+        assertEquals(1, metrics.rejections(ValidationRule.FEE_NON_NEGATIVE));
+        assertEquals(0, metrics.rejections(ValidationRule.OUTPUTS_NON_NEGATIVE));
+        //the fee is checked before the signatures, so overspends costs no RSA check
+        assertEquals(3, metrics.checkLatency(ValidationRule.SIGNATURES_VALID).count());
+        assertEquals(4, metrics.checkLatency(ValidationRule.FEE_NON_NEGATIVE).count());
+        assertEquals(1, metrics.getEpochs());
+        assertEquals(4, metrics.epochSize().max());
+
+        ObjectName name = metrics.register("testMetricsCountRejections");
+        try {
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "TransactionsAccepted"));
+            assertEquals(Amount.ofCoins(1), ManagementFactory.getPlatformMBeanServer().getAttribute(name, "AcceptedFees"));
+        } finally {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+    }
+
+}
@@ -0,0 +1,359 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import org.junit.BeforeClass;
+import static org.junit.Assert.*;
+
+/**
+ * Runs the same random sequence of pool operations against a plain HashMap and each kind of
+ * UTXOPool store, and checks that they always agree.
+ *
+ * @author Debanshu
+ */
+public class UTXOPoolTest {
+
+    public static PublicKey[] keys;
+
+    public UTXOPoolTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws NoSuchAlgorithmException {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(512);
+        keys = new PublicKey[3];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = keyGen.generateKeyPair().getPublic();
+    }
+
+    private static UTXO randomUTXO(Random random, ArrayList<byte[]> hashes) {
+        //reuse hashes often, so that a transaction has several outputs
+        if (hashes.isEmpty() || random.nextInt(4) == 0) {
+            byte[] hash = new byte[random.nextInt(16) == 0 ? 4 : 32];
+            random.nextBytes(hash);
+            hashes.add(hash);
+        }
+        return new UTXO(hashes.get(random.nextInt(hashes.size())), random.nextInt(4));
+    }
+
+    private static void assertSameContents(HashMap<UTXO, Transaction.Output> expected, UTXOPool pool) {
+        assertEquals(expected.size(), pool.size());
+        assertEquals(expected.keySet(), new HashSet<>(pool.getAllUTXO()));
+        for (UTXO utxo : expected.keySet()) {
+            assertTrue(pool.contains(utxo));
+            assertEquals(expected.get(utxo).value, pool.getTxOutput(utxo).value);
+            assertEquals(expected.get(utxo).address, pool.getTxOutput(utxo).address);
+        }
+    }
+
+    private static void checkAgainstHashMap(UTXOPool pool, long seed) {
+        Random random = new Random(seed);
+        Transaction owner = new Transaction();
+        ArrayList<byte[]> hashes = new ArrayList<>();
+        HashMap<UTXO, Transaction.Output> expected = new HashMap<>();
+        UTXOPool copy = null;
+        HashMap<UTXO, Transaction.Output> expectedCopy = null;
+        for (int op = 0; op < 20000; op++) {
+            UTXO utxo = randomUTXO(random, hashes);
+            if (random.nextInt(3) == 0) {
+                pool.removeUTXO(utxo);
+                expected.remove(utxo);
+            } else {
+                Transaction.Output out = owner.new Output(random.nextInt(1000) / 8.0, keys[random.nextInt(keys.length)]);
+                pool.addUTXO(utxo, out);
+                expected.put(utxo, out);
+            }
+            assertEquals(expected.containsKey(utxo), pool.contains(utxo));
+            if (op == 10000) {
+                copy = new UTXOPool(pool);
+                expectedCopy = new HashMap<>(expected);
+            }
+        }
+        assertSameContents(expected, pool);
+        //changes made after the copy must not show up in it
+        assertSameContents(expectedCopy, copy);
+    }
+
+    @org.junit.Test
+    public void testHashStore() {
+        checkAgainstHashMap(new UTXOPool(new HashUTXOStore()), 1);
+    }
+
+    @org.junit.Test
+    public void testOverlayStore() {
+        checkAgainstHashMap(new UTXOPool(), 3);
+    }
+
+    @org.junit.Test
+    public void testOverlayOverOffHeapStore() {
+        UTXOStore base = new OffHeapUTXOStore(16);
+        checkAgainstHashMap(UTXOPool.overlay(base), 4);
+        assertEquals(0, base.size());
+    }
+
+    /**
+     * An address stays in the table of an off-heap store only while an entry of the store or of
+     * one of its copies refers to it, and releasing a store drops the ones only it referred to.
+     */
+    @org.junit.Test
+    public void testOffHeapStoreDropsUnusedAddresses() {
+        Transaction owner = new Transaction();
+        OffHeapUTXOStore store = new OffHeapUTXOStore(4);
+        ArrayList<UTXO> utxos = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            UTXO utxo = new UTXO(Crypto.hash(new byte[]{(byte) i}), i);
+            store.put(utxo, owner.new Output(i, keys[i % 2]));
+            utxos.add(utxo);
+        }
+        assertEquals(2, store.addressCount());
+        //replacing the output replaces the address it holds
+        store.put(utxos.get(0), owner.new Output(1, keys[2]));
+        assertEquals(3, store.addressCount());
+
+        UTXOStore copy = store.copy();
+        for (UTXO utxo : utxos)
+            store.remove(utxo);
+        assertEquals(0, store.size());
+        assertEquals(3, store.addressCount()); //still held by the copy
+        assertEquals(keys[2], copy.get(utxos.get(0)).address);
+
+        copy.release();
+        assertEquals(0, store.addressCount());
+        //a freed reference is handed out again
+        store.put(utxos.get(1), owner.new Output(1, keys[1]));
+        assertEquals(keys[1], store.get(utxos.get(1)).address);
+        assertEquals(1, store.addressCount());
+        store.release();
+        assertEquals(0, store.size());
+    }
+
+    /**
+     * A chain of copies, each changed a little, sees only its own changes.
+     */
+    @org.junit.Test
+    public void testOverlayCopiesAreIndependent() {
+        Transaction owner = new Transaction();
+        ArrayList<UTXOPool> pools = new ArrayList<>();
+        UTXOPool pool = new UTXOPool();
+        for (int i = 0; i < 200; i++) {
+            pool.addUTXO(new UTXO(new byte[32], i), owner.new Output(i, keys[0]));
+            pools.add(pool);
+            pool = new UTXOPool(pool);
+            pool.removeUTXO(new UTXO(new byte[32], i / 2));
+        }
+        for (int i = 0; i < pools.size(); i++) {
+            UTXOPool p = pools.get(i);
+            //pool i has seen the removals made after copying pools 0 to i - 1
+            int removed = (i + 1) / 2;
+            assertEquals(i + 1 - removed, p.size());
+            assertEquals(i + 1 - removed, p.getAllUTXO().size());
+            assertTrue(p.contains(new UTXO(new byte[32], i)));
+            assertFalse(p.contains(new UTXO(new byte[32], i + 1)));
+        }
+    }
+
+    @org.junit.Test
+    public void testConcurrentStore() {
+        checkAgainstHashMap(UTXOPool.concurrent(), 5);
+    }
+
+    /**
+     * Many threads race to spend overlapping sets of UTXOs, every UTXO is spent exactly once.
+     */
+    @org.junit.Test
+    public void testTrySpendIsAtomic() throws InterruptedException {
+        UTXOPool pool = UTXOPool.concurrent();
+        Transaction owner = new Transaction();
+        int outputs = 2000;
+        for (int i = 0; i < outputs; i++)
+            pool.addUTXO(new UTXO(new byte[32], i), owner.new Output(1, keys[0]));
+
+        AtomicIntegerArray spentBy = new AtomicIntegerArray(outputs);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            int thread = t;
+            threads[t] = new Thread(() -> {
+                Random random = new Random(thread);
+                for (int k = 0; k < 5000; k++) {
+                    ArrayList<UTXO> claim = new ArrayList<>();
+                    for (int j = 0; j < 3; j++)
+                        claim.add(new UTXO(new byte[32], random.nextInt(outputs)));
+                    if (pool.trySpend(claim)) {
+                        for (UTXO utxo : claim)
+                            spentBy.incrementAndGet(utxo.getIndex());
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        for (int i = 0; i < outputs; i++) {
+            assertTrue(spentBy.get(i) <= 1);
+            assertEquals(spentBy.get(i) == 0, pool.contains(new UTXO(new byte[32], i)));
+        }
+    }
+
+    @org.junit.Test
+    public void testTrySpendRejectsMissingOrRepeated() {
+        UTXOPool pool = new UTXOPool();
+        Transaction owner = new Transaction();
+        UTXO a = new UTXO(new byte[32], 0);
+        UTXO b = new UTXO(new byte[32], 1);
+        pool.addUTXO(a, owner.new Output(1, keys[0]));
+        assertFalse(pool.trySpend(Arrays.asList(a, b)));
+        assertFalse(pool.trySpend(Arrays.asList(a, a)));
+        assertTrue(pool.contains(a));
+        assertTrue(pool.trySpend(Arrays.asList(a)));
+        assertFalse(pool.contains(a));
+    }
+
+    /**
+     * Random changes inside nested checkpoints, some rolled back and some committed, leave the pool
+     * as if only the committed ones had been made.
+     */
+    @org.junit.Test
+    public void testCheckpointRollback() {
+        Random random = new Random(6);
+        Transaction owner = new Transaction();
+        ArrayList<byte[]> hashes = new ArrayList<>();
+        UTXOPool pool = new UTXOPool();
+        HashMap<UTXO, Transaction.Output> expected = new HashMap<>();
+        for (int op = 0; op < 1000; op++) {
+            UTXO utxo = randomUTXO(random, hashes);
+            Transaction.Output out = owner.new Output(op, keys[0]);
+            pool.addUTXO(utxo, out);
+            expected.put(utxo, out);
+        }
+        for (int round = 0; round < 200; round++) {
+            int outer = pool.checkpoint();
+            HashMap<UTXO, Transaction.Output> before = new HashMap<>(expected);
+            for (int depth = 0; depth < 3; depth++) {
+                int inner = pool.checkpoint();
+                HashMap<UTXO, Transaction.Output> beforeInner = new HashMap<>(expected);
+                for (int op = 0; op < 20; op++) {
+                    UTXO utxo = randomUTXO(random, hashes);
+                    if (random.nextBoolean()) {
+                        pool.removeUTXO(utxo);
+                        expected.remove(utxo);
+                    } else {
+                        Transaction.Output out = owner.new Output(op, keys[1]);
+                        pool.addUTXO(utxo, out);
+                        expected.put(utxo, out);
+                    }
+                }
+                if (random.nextBoolean()) {
+                    pool.rollback(inner);
+                    expected = beforeInner;
+                } else {
+                    pool.commit(inner);
+                }
+            }
+            if (random.nextBoolean()) {
+                pool.rollback(outer);
+                expected = before;
+            } else {
+                pool.commit(outer);
+            }
+        }
+        assertSameContents(expected, pool);
+    }
+
+    /**
+     * Only the innermost open checkpoint may be closed, and a refused one stays open.
+     */
+    @org.junit.Test
+    public void testOnlyInnermostCheckpointCloses() {
+        Transaction owner = new Transaction();
+        UTXOPool pool = new UTXOPool();
+        UTXO first = new UTXO(new byte[]{1}, 0);
+        UTXO second = new UTXO(new byte[]{2}, 0);
+        int outer = pool.checkpoint();
+        pool.addUTXO(first, owner.new Output(1, keys[0]));
+        int inner = pool.checkpoint();
+        pool.addUTXO(second, owner.new Output(2, keys[0]));
+        try {
+            pool.commit(outer);
+            fail("committed an enclosing checkpoint");
+        } catch (IllegalStateException e) {
+            //expected
+        }
+        try {
+            pool.rollback(outer);
+            fail("rolled back an enclosing checkpoint");
+        } catch (IllegalStateException e) {
+            //expected
+        }
+        assertTrue(pool.contains(second));
+        pool.rollback(inner);
+        assertFalse(pool.contains(second));
+        pool.commit(outer);
+        assertTrue(pool.contains(first));
+        try {
+            pool.commit(outer);
+            fail("committed a closed checkpoint");
+        } catch (IllegalStateException e) {
+            //expected
+        }
+    }
+
+    @org.junit.Test
+    public void testOffHeapStore() {
+        //start small, so that the table has to grow several times
+        checkAgainstHashMap(UTXOPool.offHeap(4), 2);
+    }
+
+    /**
+     * A pool read back from its snapshot holds the same UTXOs, and changing it leaves the file
+     * alone.
+     */
+    @org.junit.Test
+    public void testSnapshotRoundTrip() throws IOException {
+        Random random = new Random(6);
+        Transaction owner = new Transaction();
+        ArrayList<byte[]> hashes = new ArrayList<>();
+        HashMap<UTXO, Transaction.Output> expected = new HashMap<>();
+        UTXOPool pool = new UTXOPool();
+        for (int i = 0; i < 5000; i++) {
+            UTXO utxo = randomUTXO(random, hashes);
+            Transaction.Output out = owner.new Output(random.nextInt(1000) / 8.0, keys[random.nextInt(keys.length)]);
+            pool.addUTXO(utxo, out);
+            expected.put(utxo, out);
+        }
+        Path file = Files.createTempFile("utxos", ".snapshot");
+        try {
+            pool.writeSnapshot(file, 42);
+            assertEquals(42, MappedUTXOStore.open(file).epoch());
+            UTXOPool restored = UTXOPool.fromSnapshot(file);
+            assertSameContents(expected, restored);
+            for (int i = 0; i < 1000; i++) {
+                UTXO utxo = randomUTXO(random, hashes);
+                assertEquals(expected.containsKey(utxo), restored.contains(utxo));
+            }
+
+            UTXO spent = expected.keySet().iterator().next();
+            restored.removeUTXO(spent);
+            assertFalse(restored.contains(spent));
+            assertSameContents(expected, UTXOPool.fromSnapshot(file));
+
+            //keys read the same when they span the segments of the key section
+            assertSameContents(expected, UTXOPool.overlay(MappedUTXOStore.open(file, 4)));
+
+            //an empty pool makes a valid snapshot too
+            new UTXOPool().writeSnapshot(file, 43);
+            assertEquals(0, UTXOPool.fromSnapshot(file).size());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}